@@ -0,0 +1,79 @@
+package cc.banco;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Alertas pendientes de una cuenta ordenadas por saldo minimo. Cuando
+ * el saldo de la cuenta baja se liberan de una vez las alertas con
+ * minimo mayor que el saldo, sin recorrer las que siguen sin cumplirse.
+ * No es segura para hilos: la protege el monitor, cerrojo o servidor
+ * del banco que la usa.
+ */
+public class AlertasPorSaldo<E> {
+	// Alertas agrupadas por saldo minimo; las de igual minimo, en orden de llegada
+	private final TreeMap<Integer, FIFO<E>> alertas;
+	// Numero total de alertas pendientes
+	private int tamano;
+
+	// constructor de la estructura vacia
+	public AlertasPorSaldo() {
+		this.alertas = new TreeMap<Integer, FIFO<E>>();
+		this.tamano = 0;
+	}
+
+	/**
+	 * Anade una alerta que debe saltar cuando el saldo baje de minimo.
+	 * @param minimo saldo minimo de la alerta
+	 * @param alerta alerta pendiente
+	 */
+	public void anadir(int minimo, E alerta) {
+		FIFO<E> lista = alertas.get(minimo);
+		if (lista == null) {
+			lista = new FIFOList<E>();
+			alertas.put(minimo, lista);
+		}
+		lista.enqueue(alerta);
+		tamano++;
+	}
+
+	/**
+	 * Quita todas las alertas con minimo estrictamente mayor que saldo y
+	 * las encola en liberadas, de menor a mayor minimo.
+	 * @param saldo saldo actual de la cuenta
+	 * @param liberadas cola donde se dejan las alertas que saltan
+	 * @return numero de alertas liberadas
+	 */
+	public int liberar(int saldo, FIFO<E> liberadas) {
+		NavigableMap<Integer, FIFO<E>> cumplidas = alertas.tailMap(saldo, false);
+		int liberadastotal = 0;
+		for (Map.Entry<Integer, FIFO<E>> entrada : cumplidas.entrySet()) {
+			FIFO<E> lista = entrada.getValue();
+			while (!lista.isEmpty()) {
+				liberadas.enqueue(lista.dequeue());
+				liberadastotal++;
+			}
+		}
+		cumplidas.clear();
+		tamano -= liberadastotal;
+		return liberadastotal;
+	}
+
+	/**
+	 * @return numero de alertas pendientes
+	 */
+	public int size() {
+		return tamano;
+	}
+
+	/**
+	 * @return true si no hay alertas pendientes
+	 */
+	public boolean isEmpty() {
+		return tamano == 0;
+	}
+}
@@ -0,0 +1,266 @@
+package cc.banco;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Banco en el que cada cuenta es un actor con su propio buzon de
+ * mensajes, sin cerrojos ni servidor comun: los mensajes de una cuenta
+ * los atiende de uno en uno alguna tarea del ejecutor (un ForkJoinPool
+ * por defecto, o por ejemplo hilos virtuales), y cuentas distintas se
+ * atienden a la vez en tareas distintas.
+ *
+ * ingresar y alertar son mensajes a la cuenta, que los atiende sola;
+ * disponible lee el saldo que publica el actor sin pasar por el buzon.
+ * Una transferencia es un mensaje de cargo a la cuenta origen, que lo
+ * guarda en su cola de cargos por orden de llegada y lo realiza cuando
+ * es el primero, la cuenta existe, tiene saldo y el destino existe; el
+ * origen envia entonces un mensaje de abono al destino, que completa la
+ * transferencia. Si el destino aun no existe, el origen se apunta en el
+ * destino para que le avise al crearse. Asi se mantienen las CPREs y el
+ * orden por cuenta origen de Banco.
+ *
+ * Entre el cargo y el abono el dinero esta en camino: la suma de los
+ * saldos leidos de varias cuentas puede no incluirlo (cada cuenta por
+ * separado si es coherente, y la transferencia no termina hasta que el
+ * abono esta hecho).
+ */
+public class BancoActores implements Banco {
+	// Mensajes que atiende un actor de uno en uno antes de dejar paso a otros actores
+	private static final int LOTE = 64;
+
+	// Tipos de mensaje
+	private static final int INGRESAR = 0;
+	private static final int ALERTAR = 1;
+	private static final int CARGO = 2;
+	private static final int ABONO = 3;
+	// Una cuenta origen espera a que se cree esta cuenta, su destino
+	private static final int ESPERAR = 4;
+	// Se ha creado el destino de la primera transferencia de esta cuenta origen
+	private static final int REVISAR = 5;
+
+	// Ejecutor de los actores
+	private final Executor ejecutor;
+	// Actor de cada cuenta existente o que alguien espera
+	private final ConcurrentHashMap<String, cuenta> cuentas = new ConcurrentHashMap<String, cuenta>();
+
+	// constructor con un ForkJoinPool de tantos hilos como procesadores
+	public BancoActores() {
+		this(new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+							  ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true));
+	}
+
+	/**
+	 * @param ejecutor ejecutor de los actores, p.ej.
+	 * Executors.newVirtualThreadPerTaskExecutor() (Java 21)
+	 */
+	public BancoActores(Executor ejecutor) {
+		this.ejecutor = ejecutor;
+	}
+
+	public void ingresar(String c, int v) {
+		mensaje msg = new mensaje(INGRESAR, null, null, v);
+		actor(c).entregar(msg);
+		msg.join();
+	}
+
+	public void transferir(String o, String d, int v) {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		cuenta origen = actor(o);
+		mensaje msg = new mensaje(CARGO, origen, actor(d), v);
+		origen.entregar(msg);
+		msg.join();
+	}
+
+	public int disponible(String c) {
+		cuenta cuenta = cuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null || !cuenta.existe) {
+			throw new IllegalArgumentException();
+		}
+		return cuenta.saldo;
+	}
+
+	public void alertar(String c, int m) {
+		cuenta cuenta = cuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null || !cuenta.existe) {
+			throw new IllegalArgumentException();
+		}
+		// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+		if (cuenta.saldo < m) {
+			return;
+		}
+		mensaje msg = new mensaje(ALERTAR, null, null, m);
+		cuenta.entregar(msg);
+		msg.join();
+	}
+
+	// Metodo auxiliar que devuelve el actor de una cuenta, creandolo si hace falta
+	private cuenta actor(String c) {
+		cuenta cuenta = cuentas.get(c);
+		return cuenta != null ? cuenta : cuentas.computeIfAbsent(c, k -> new cuenta());
+	}
+
+	// clase auxiliar para los mensajes; el futuro se completa al terminar la operacion que lo envio
+	private static class mensaje extends CompletableFuture<Void> {
+		private int tipo;
+		// Cuenta origen y destino de una transferencia, o cuenta que espera en ESPERAR
+		private final cuenta origen;
+		private final cuenta destino;
+		// Dinero asociado al mensaje (valor minimo o dinero a ingresar o transferir)
+		private final int dinero;
+		// Indica si un cargo ya se ha apuntado en su destino para que le avise al crearse
+		private boolean esperando;
+
+		// Constructor del metodo auxiliar
+		private mensaje(int tipo, cuenta origen, cuenta destino, int dinero) {
+			this.tipo = tipo;
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+		}
+	}
+
+	// Actor de una cuenta: solo la tarea que atiende su buzon toca su estado, salvo los atributos
+	// volatiles, que los demas pueden leer
+	private class cuenta implements Runnable {
+		// Mensajes pendientes de atender
+		private final ConcurrentLinkedQueue<mensaje> buzon = new ConcurrentLinkedQueue<mensaje>();
+		// Indica si hay una tarea del ejecutor atendiendo o a punto de atender el buzon
+		private final AtomicBoolean programada = new AtomicBoolean();
+		// Indica si la cuenta se ha creado con un ingreso; una vez creada no deja de existir
+		private volatile boolean existe;
+		private volatile int saldo;
+		// Cargos pendientes en orden de llegada
+		private final FIFO<mensaje> cargos = new FIFOList<mensaje>();
+		// Cuentas origen que esperan a que se cree esta cuenta
+		private final FIFO<cuenta> esperandodestino = new FIFOList<cuenta>();
+		// Alertas pendientes ordenadas por saldo minimo
+		private final AlertasPorSaldo<mensaje> alertas = new AlertasPorSaldo<mensaje>();
+
+		// Deja un mensaje en el buzon y programa el actor si no lo estaba
+		private void enviar(mensaje msg) {
+			buzon.add(msg);
+			if (programada.compareAndSet(false, true)) {
+				ejecutor.execute(this);
+			}
+		}
+
+		// Como enviar, pero si el actor no estaba programado atiende el buzon en el hilo que llama,
+		// que de todos modos va a esperar la respuesta: asi no se pasa el mensaje a otro hilo
+		private void entregar(mensaje msg) {
+			buzon.add(msg);
+			if (programada.compareAndSet(false, true)) {
+				run();
+			}
+		}
+
+		public void run() {
+			for (int i = 0; i < LOTE; i++) {
+				mensaje msg = buzon.poll();
+				if (msg == null) {
+					break;
+				}
+				atender(msg);
+			}
+			programada.set(false);
+			// Si ha llegado algo despues de vaciar el buzon, o quedan mensajes del lote, se vuelve a programar
+			if (!buzon.isEmpty() && programada.compareAndSet(false, true)) {
+				ejecutor.execute(this);
+			}
+		}
+
+		// Metodo auxiliar que atiende un mensaje
+		private void atender(mensaje msg) {
+			switch (msg.tipo) {
+			case INGRESAR:
+				saldo = saldo + msg.dinero;
+				if (!existe) {
+					// Se crea la cuenta y se avisa a los origenes que esperaban a que existiera
+					existe = true;
+					while (!esperandodestino.isEmpty()) {
+						esperandodestino.dequeue().enviar(new mensaje(REVISAR, null, null, 0));
+					}
+				}
+				msg.complete(null);
+				// Un ingreso negativo baja el saldo
+				desbloquearalertar();
+				desbloquearcargos();
+				break;
+			case ALERTAR:
+				if (saldo < msg.dinero) {
+					msg.complete(null);
+				} else {
+					alertas.anadir(msg.dinero, msg);
+				}
+				break;
+			case CARGO:
+				cargos.enqueue(msg);
+				desbloquearcargos();
+				break;
+			case ABONO:
+				saldo = saldo + msg.dinero;
+				msg.complete(null);
+				desbloquearcargos();
+				break;
+			case ESPERAR:
+				if (existe) {
+					msg.origen.enviar(new mensaje(REVISAR, null, null, 0));
+				} else {
+					esperandodestino.enqueue(msg.origen);
+				}
+				break;
+			default:
+				desbloquearcargos();
+			}
+		}
+
+		// Metodo auxiliar que realiza los primeros cargos mientras cumplan las CPREs. Los demas
+		// esperan por orden de llegada
+		private void desbloquearcargos() {
+			while (!cargos.isEmpty()) {
+				mensaje primero = cargos.first();
+				if (!existe || saldo < primero.dinero) {
+					return;
+				}
+				if (!primero.destino.existe) {
+					// Se pide al destino que avise al crearse; hasta entonces espera todo el origen
+					if (!primero.esperando) {
+						primero.esperando = true;
+						primero.destino.enviar(new mensaje(ESPERAR, this, null, 0));
+					}
+					return;
+				}
+				cargos.dequeue();
+				saldo = saldo - primero.dinero;
+				// El saldo ha bajado, se comprueban sus alertas
+				desbloquearalertar();
+				primero.tipo = ABONO;
+				primero.destino.enviar(primero);
+			}
+		}
+
+		// Metodo auxiliar que cumple las alertas cuyo saldo minimo es mayor que el saldo
+		private void desbloquearalertar() {
+			if (alertas.isEmpty()) {
+				return;
+			}
+			FIFO<mensaje> liberadas = new FIFOList<mensaje>();
+			alertas.liberar(saldo, liberadas);
+			while (!liberadas.isEmpty()) {
+				liberadas.dequeue().complete(null);
+			}
+		}
+	}
+}
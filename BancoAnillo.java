@@ -0,0 +1,436 @@
+package cc.banco;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Banco con un unico hilo que realiza todas las operaciones, como el
+ * servidor de BancoCSP, pero las peticiones le llegan por un anillo de
+ * huecos reservados de antemano en lugar de por canales: cada cliente
+ * reserva el siguiente numero de secuencia, escribe su peticion en el
+ * hueco correspondiente y lo publica. El hilo del banco recorre los
+ * huecos publicados en orden, por lotes, sin cerrojos ni cambios de
+ * contexto mientras haya peticiones.
+ *
+ * La respuesta no va en el hueco, que se reutiliza en cuanto el hilo
+ * del banco lo ha leido, sino en una espera que cada hilo cliente
+ * reserva una vez y reutiliza en todas sus operaciones. Las peticiones
+ * que no se pueden realizar todavia se guardan enlazando su espera en
+ * las colas de su cuenta, asi en regimen permanente ni los clientes ni
+ * el hilo del banco crean objetos (salvo las alertas bloqueadas, que se
+ * guardan en AlertasPorSaldo).
+ *
+ * Los clientes y el hilo del banco esperan dando unas vueltas y despues
+ * durmiendo con LockSupport; quien publica o responde solo despierta al
+ * otro si estaba dormido.
+ */
+public class BancoAnillo implements Banco {
+	// Tamano del anillo por defecto
+	private static final int TAMANO = 1024;
+	// Vueltas de espera activa antes de dormir, y cuantas de ellas sin ceder el procesador
+	private static final int VUELTAS = 100;
+	private static final int GIROS = 10;
+
+	// Tipos de peticion
+	private static final int INGRESAR = 0;
+	private static final int TRANSFERIR = 1;
+	private static final int DISPONIBLE = 2;
+	private static final int ALERTAR = 3;
+	// Estados de respuesta
+	private static final int PENDIENTE = 0;
+	private static final int HECHO = 1;
+	private static final int INVALIDA = 2;
+
+	// Anillo de peticiones y mascara para pasar de secuencia a hueco
+	private final hueco[] anillo;
+	private final int mascara;
+	// Siguiente secuencia que reservara un cliente
+	private final AtomicLong reservada = new AtomicLong();
+	// Secuencias ya leidas por el hilo del banco: sus huecos se pueden reutilizar
+	private final AtomicLong leida = new AtomicLong();
+	// Hilo del banco y si esta dormido esperando peticiones
+	private final Thread hilo;
+	private volatile boolean dormido;
+	// Espera de cada hilo cliente
+	private final ThreadLocal<espera> esperas = ThreadLocal.withInitial(espera::new);
+
+	// Estado del banco: solo lo toca el hilo del banco
+	// Registro de cuentas y dinero de cada una
+	private final RegistroCuentas mapacuentas = new RegistroCuentas();
+	// Peticiones de transferencia pendientes de cada cuenta origen, en orden de llegada
+	private final Map<String, cola> peticionestrans = new HashMap<String, cola>();
+	// Peticiones que esperan a que se cree su cuenta de destino, indexadas por dicha cuenta
+	private final Map<String, cola> esperandodestino = new HashMap<String, cola>();
+	// Alertas pendientes de cada cuenta ordenadas por saldo minimo
+	private final Map<String, AlertasPorSaldo<espera>> peticionesalertar = new HashMap<String, AlertasPorSaldo<espera>>();
+	// Colas de cuentas origen cuya primera peticion hay que revisar, enlazadas por siguientependiente
+	private cola pendientes;
+	// Cola donde AlertasPorSaldo deja las alertas liberadas
+	private final FIFO<espera> liberadas = new FIFOList<espera>();
+
+	// constructor con el anillo por defecto
+	public BancoAnillo() {
+		this(TAMANO);
+	}
+
+	/**
+	 * @param tamano numero de huecos del anillo, potencia de 2
+	 */
+	public BancoAnillo(int tamano) {
+		if (tamano <= 0 || Integer.bitCount(tamano) != 1) {
+			throw new IllegalArgumentException("El tamano del anillo debe ser potencia de 2");
+		}
+		this.anillo = new hueco[tamano];
+		for (int i = 0; i < tamano; i++) {
+			// La secuencia publicada de un hueco sin usar es la de la vuelta anterior
+			anillo[i] = new hueco(i - tamano);
+		}
+		this.mascara = tamano - 1;
+		this.hilo = new Thread(this::servir, "BancoAnillo");
+		hilo.setDaemon(true);
+		hilo.start();
+	}
+
+	public void ingresar(String c, int v) {
+		llamar(INGRESAR, c, null, v);
+	}
+
+	public void transferir(String o, String d, int v) {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		llamar(TRANSFERIR, o, d, v);
+	}
+
+	public int disponible(String c) {
+		return llamar(DISPONIBLE, c, null, 0);
+	}
+
+	public void alertar(String c, int m) {
+		llamar(ALERTAR, c, null, m);
+	}
+
+	// Metodo auxiliar del cliente: publica una peticion en el anillo y espera su respuesta
+	private int llamar(int tipo, String a, String b, int v) {
+		espera yo = esperas.get();
+		yo.estado = PENDIENTE;
+		yo.dormido = false;
+		long secuencia = reservada.getAndIncrement();
+		// El hueco queda libre cuando el hilo del banco ha leido la vuelta anterior
+		for (int vueltas = 0; secuencia - anillo.length >= leida.get(); vueltas++) {
+			ceder(vueltas);
+		}
+		hueco h = anillo[(int) secuencia & mascara];
+		h.tipo = tipo;
+		h.a = a;
+		h.b = b;
+		h.v = v;
+		h.espera = yo;
+		// Al publicar, la escritura volatil hace visibles los campos anteriores
+		h.publicada = secuencia;
+		if (dormido) {
+			LockSupport.unpark(hilo);
+		}
+		// Se espera la respuesta
+		for (int vueltas = 0; yo.estado == PENDIENTE && vueltas < VUELTAS; vueltas++) {
+			ceder(vueltas);
+		}
+		if (yo.estado == PENDIENTE) {
+			yo.hilo = Thread.currentThread();
+			yo.dormido = true;
+			while (yo.estado == PENDIENTE) {
+				LockSupport.park(this);
+			}
+		}
+		if (yo.estado == INVALIDA) {
+			throw new IllegalArgumentException();
+		}
+		return yo.valor;
+	}
+
+	// Metodo auxiliar de las esperas activas: las primeras vueltas solo giran y las demas ceden
+	// el procesador, que puede necesitar el otro lado si hay pocos procesadores
+	private static void ceder(int vueltas) {
+		if (vueltas < GIROS) {
+			Thread.onSpinWait();
+		} else {
+			Thread.yield();
+		}
+	}
+
+	// Metodo auxiliar del hilo del banco: atiende los huecos publicados en orden de secuencia
+	private void servir() {
+		long siguiente = 0;
+		while (true) {
+			hueco h = anillo[(int) siguiente & mascara];
+			if (h.publicada != siguiente) {
+				esperarpeticion(h, siguiente);
+			}
+			// Lote: todos los huecos consecutivos ya publicados
+			do {
+				int tipo = h.tipo;
+				String a = h.a;
+				String b = h.b;
+				int v = h.v;
+				espera e = h.espera;
+				// Se sueltan las referencias antes de dejar el hueco libre
+				h.a = null;
+				h.b = null;
+				h.espera = null;
+				siguiente++;
+				atender(tipo, a, b, v, e);
+				h = anillo[(int) siguiente & mascara];
+			} while (h.publicada == siguiente);
+			leida.set(siguiente);
+		}
+	}
+
+	// Metodo auxiliar del hilo del banco que espera a que se publique un hueco
+	private void esperarpeticion(hueco h, long secuencia) {
+		for (int vueltas = 0; vueltas < VUELTAS; vueltas++) {
+			if (h.publicada == secuencia) {
+				return;
+			}
+			ceder(vueltas);
+		}
+		dormido = true;
+		while (h.publicada != secuencia) {
+			LockSupport.park(this);
+		}
+		dormido = false;
+	}
+
+	// Metodo auxiliar que realiza una peticion o la deja pendiente
+	private void atender(int tipo, String a, String b, int v, espera e) {
+		switch (tipo) {
+		case INGRESAR: {
+			int hueco = mapacuentas.hueco(a);
+			if (hueco >= 0) {
+				// Se ingresa el dinero en la cuenta
+				mapacuentas.sumar(hueco, v);
+			} else {
+				// Se crea la cuenta y se revisan las transferencias que esperaban a que existiera
+				mapacuentas.crear(a, v);
+				desbloqueardestino(a);
+			}
+			responder(e, HECHO, 0);
+			// Un ingreso negativo baja el saldo
+			desbloquearalertar(a);
+			revisar(a);
+			desbloquearpendientes();
+			break;
+		}
+		case TRANSFERIR: {
+			int ho = mapacuentas.hueco(a);
+			int hd = mapacuentas.hueco(b);
+			cola lista = peticionestrans.get(a);
+			// Se comprueban las CPREs y que no haya peticiones anteriores con el mismo origen
+			if (ho >= 0 && hd >= 0 && mapacuentas.saldo(ho) >= v && (lista == null || lista.primera == null)) {
+				aplicartransferencia(ho, hd, a, b, v);
+				responder(e, HECHO, 0);
+				desbloquearpendientes();
+			} else {
+				// Queda pendiente hasta que otra operacion cumpla sus CPREs
+				e.origen = a;
+				e.destino = b;
+				e.dinero = v;
+				encolar(e);
+			}
+			break;
+		}
+		case DISPONIBLE: {
+			int hueco = mapacuentas.hueco(a);
+			// Se comprueba PRE (si cuenta no existe)
+			if (hueco < 0) {
+				responder(e, INVALIDA, 0);
+			} else {
+				responder(e, HECHO, mapacuentas.saldo(hueco));
+			}
+			break;
+		}
+		default: {
+			int hueco = mapacuentas.hueco(a);
+			// Se comprueba PRE (si cuenta no existe)
+			if (hueco < 0) {
+				responder(e, INVALIDA, 0);
+			} else if (mapacuentas.saldo(hueco) < v) {
+				// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+				responder(e, HECHO, 0);
+			} else {
+				AlertasPorSaldo<espera> alertas = peticionesalertar.get(a);
+				if (alertas == null) {
+					alertas = new AlertasPorSaldo<espera>();
+					peticionesalertar.put(a, alertas);
+				}
+				alertas.anadir(v, e);
+			}
+		}
+		}
+	}
+
+	// Metodo auxiliar que contesta a un cliente y lo despierta si estaba dormido
+	private static void responder(espera e, int estado, int valor) {
+		e.valor = valor;
+		e.estado = estado;
+		if (e.dormido) {
+			LockSupport.unpark(e.hilo);
+		}
+	}
+
+	// Metodo auxiliar que realiza una transferencia que ya cumple las CPREs
+	private void aplicartransferencia(int ho, int hd, String o, String d, int v) {
+		mapacuentas.sumar(ho, -v);
+		mapacuentas.sumar(hd, v);
+		// Solo pueden desbloquearse las primeras transferencias del origen y del destino
+		revisar(o);
+		revisar(d);
+		// El saldo del origen ha bajado, se comprueban sus alertas
+		desbloquearalertar(o);
+	}
+
+	// Metodo auxiliar que encola una peticion de transferencia en la cola de su cuenta origen
+	// y, si su destino aun no existe, en la espera de dicho destino
+	private void encolar(espera e) {
+		cola lista = peticionestrans.get(e.origen);
+		if (lista == null) {
+			lista = new cola();
+			peticionestrans.put(e.origen, lista);
+		}
+		e.siguiente = null;
+		if (lista.primera == null) {
+			lista.primera = e;
+		} else {
+			lista.ultima.siguiente = e;
+		}
+		lista.ultima = e;
+		if (!mapacuentas.existe(e.destino)) {
+			cola espera = esperandodestino.get(e.destino);
+			if (espera == null) {
+				espera = new cola();
+				esperandodestino.put(e.destino, espera);
+			}
+			e.siguientedestino = espera.primera;
+			espera.primera = e;
+		}
+	}
+
+	// Metodo auxiliar que anade una cuenta a las pendientes solo si tiene transferencias pendientes
+	private void revisar(String cuenta) {
+		cola lista = peticionestrans.get(cuenta);
+		if (lista != null && lista.primera != null && !lista.pendiente) {
+			lista.pendiente = true;
+			lista.siguientependiente = pendientes;
+			pendientes = lista;
+		}
+	}
+
+	// Metodo auxiliar que revisa las cuentas pendientes hasta que no quede ninguna
+	private void desbloquearpendientes() {
+		while (pendientes != null) {
+			cola lista = pendientes;
+			pendientes = lista.siguientependiente;
+			lista.siguientependiente = null;
+			lista.pendiente = false;
+			desbloqueartransferencia(lista);
+		}
+	}
+
+	// Metodo auxiliar que realiza la primera peticion de transferencia de una cuenta origen
+	// si ya cumple las CPREs. Las demas esperan por orden de llegada
+	private void desbloqueartransferencia(cola lista) {
+		espera primerapet = lista.primera;
+		if (primerapet == null) {
+			return;
+		}
+		int ho = mapacuentas.hueco(primerapet.origen);
+		int hd = mapacuentas.hueco(primerapet.destino);
+		if (ho < 0 || hd < 0 || primerapet.dinero > mapacuentas.saldo(ho)) {
+			return;
+		}
+		lista.primera = primerapet.siguiente;
+		primerapet.siguiente = null;
+		if (lista.primera == null) {
+			lista.ultima = null;
+		}
+		String origen = primerapet.origen;
+		String destino = primerapet.destino;
+		int dinero = primerapet.dinero;
+		primerapet.origen = null;
+		primerapet.destino = null;
+		responder(primerapet, HECHO, 0);
+		aplicartransferencia(ho, hd, origen, destino, dinero);
+	}
+
+	// Metodo auxiliar que revisa las peticiones que esperaban a que se creara la cuenta de destino
+	private void desbloqueardestino(String cuenta) {
+		cola espera = esperandodestino.remove(cuenta);
+		if (espera == null) {
+			return;
+		}
+		for (espera e = espera.primera; e != null; ) {
+			espera siguiente = e.siguientedestino;
+			e.siguientedestino = null;
+			revisar(e.origen);
+			e = siguiente;
+		}
+	}
+
+	// Metodo auxiliar que cumple las alertas de una cuenta cuyo saldo ha bajado del minimo
+	private void desbloquearalertar(String cuenta) {
+		AlertasPorSaldo<espera> alertas = peticionesalertar.get(cuenta);
+		if (alertas == null || alertas.isEmpty()) {
+			return;
+		}
+		alertas.liberar(mapacuentas.saldo(mapacuentas.hueco(cuenta)), liberadas);
+		while (!liberadas.isEmpty()) {
+			responder(liberadas.dequeue(), HECHO, 0);
+		}
+	}
+
+	// Hueco del anillo; los campos de la peticion se escriben antes de publicarla
+	private static final class hueco {
+		// Secuencia de la ultima peticion publicada en este hueco
+		private volatile long publicada;
+		private int tipo;
+		private String a;
+		private String b;
+		private int v;
+		private espera espera;
+
+		private hueco(long publicada) {
+			this.publicada = publicada;
+		}
+	}
+
+	// Espera de un hilo cliente: recibe la respuesta y, si la peticion queda pendiente,
+	// la guarda en las colas del banco
+	private static final class espera {
+		private volatile int estado;
+		private int valor;
+		// Hilo cliente y si esta dormido esperando la respuesta
+		private Thread hilo;
+		private volatile boolean dormido;
+		// Peticion de transferencia pendiente (solo hilo del banco)
+		private String origen;
+		private String destino;
+		private int dinero;
+		// Siguiente en la cola de su cuenta origen y en la de su cuenta destino
+		private espera siguiente;
+		private espera siguientedestino;
+	}
+
+	// Cola de peticiones pendientes de una cuenta, enlazadas por las propias esperas
+	private static final class cola {
+		private espera primera;
+		private espera ultima;
+		// Indica si esta en pendientes, y la siguiente de pendientes
+		private boolean pendiente;
+		private cola siguientependiente;
+	}
+}
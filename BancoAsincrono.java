@@ -0,0 +1,79 @@
+package cc.banco;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Banco con operaciones que no bloquean al llamante: cada una devuelve
+ * un CompletableFuture que completa la operacion del banco que la
+ * desbloquea, sin ningun hilo esperando mientras tanto. Las peticiones
+ * pendientes se pueden retirar con cancel() o con orTimeout(); si se
+ * retiran antes de realizarse ya no se realizan. Las operaciones de
+ * Banco son un adaptador que espera al futuro correspondiente.
+ */
+public interface BancoAsincrono extends Banco {
+  /**
+   * Como Banco.ingresar.
+   * @param c número de cuenta
+   * @param v valor a ingresar
+   * @return futuro que se completa cuando el ingreso esta hecho
+   */
+  CompletableFuture<Void> ingresarAsync(String c, int v);
+
+  /**
+   * Como Banco.transferir, pero sin esperar a que se cumplan las CPREs.
+   * @param o número de cuenta origen
+   * @param d número de cuenta destino
+   * @param v valor a transferir
+   * @return futuro que se completa cuando la transferencia esta hecha, o
+   * excepcionalmente con IllegalArgumentException si o y d son la misma
+   * cuenta
+   */
+  CompletableFuture<Void> transferirAsync(String o, String d, int v);
+
+  /**
+   * Como Banco.disponible.
+   * @param c número de la cuenta
+   * @return futuro con el saldo, o completado excepcionalmente con
+   * IllegalArgumentException si la cuenta c no existe
+   */
+  CompletableFuture<Integer> disponibleAsync(String c);
+
+  /**
+   * Como Banco.alertar, pero sin esperar a que baje el saldo.
+   * @param c número de la cuenta
+   * @param m saldo mínimo
+   * @return futuro que se completa cuando el saldo de c baja de m, o
+   * excepcionalmente con IllegalArgumentException si la cuenta c no
+   * existe
+   */
+  CompletableFuture<Void> alertarAsync(String c, int m);
+
+  default void ingresar(String c, int v) {
+    esperar(ingresarAsync(c, v));
+  }
+
+  default void transferir(String o, String d, int v) {
+    esperar(transferirAsync(o, d, v));
+  }
+
+  default int disponible(String c) {
+    return esperar(disponibleAsync(c));
+  }
+
+  default void alertar(String c, int m) {
+    esperar(alertarAsync(c, m));
+  }
+
+  // Espera al futuro y relanza tal cual las excepciones del banco
+  private static <T> T esperar(CompletableFuture<T> futuro) {
+    try {
+      return futuro.join();
+    } catch (CompletionException exc) {
+      if (exc.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) exc.getCause();
+      }
+      throw exc;
+    }
+  }
+}
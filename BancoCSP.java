@@ -1,51 +1,134 @@
 package cc.banco;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
  
 import org.jcsp.lang.Alternative;
 import org.jcsp.lang.AltingChannelInput;
 import org.jcsp.lang.Any2OneChannel;
 import org.jcsp.lang.CSProcess;
 import org.jcsp.lang.Channel;
+import org.jcsp.lang.ChannelOutput;
 import org.jcsp.lang.Guard;
 import org.jcsp.lang.One2OneChannel;
 import org.jcsp.lang.ProcessManager;
+import org.jcsp.util.Buffer;
 
-import es.upm.aedlib.Entry;
 import es.upm.aedlib.fifo.FIFO;
 import es.upm.aedlib.fifo.FIFOList;
-import es.upm.aedlib.priorityqueue.HeapPriorityQueue;
-import es.upm.aedlib.priorityqueue.PriorityQueue;
 
-public class BancoCSP implements Banco, CSProcess {
+public class BancoCSP implements BancoLotes, BancoLiquidacion, CSProcess {
 	//1 canal por cada accion que podemos realizar
     private Any2OneChannel chIngresar;
     private Any2OneChannel chDisponible;
     private Any2OneChannel chTransferir;
     private Any2OneChannel chAlertar;
+    private Any2OneChannel chLote;
+    private Any2OneChannel chLiquidar;
+    // Canal con buffer por el que llegan todas las solicitudes en modo con buffer (null si no)
+    private final Any2OneChannel chPeticiones;
+    // Plazas libres del buffer: el cliente coge una antes de escribir y el servidor la
+    // devuelve al leer, asi el buffer nunca se llena y la espera se decide en el cliente
+    private final Semaphore plazas;
+    // Que hace un cliente cuando no hay plaza en el buffer
+    private final Contrapresion contrapresion;
+    // Maximo que espera un cliente por una plaza con Contrapresion.ESPERAR, en milisegundos
+    private final long esperams;
+    // Indica si cada hilo cliente reutiliza su canal de respuesta y sus solicitudes
+    private final boolean reutilizar;
+    // Canal de respuesta y solicitudes propias de cada hilo cliente
+    private final ThreadLocal<cliente> clientes;
+    // Destino de las medidas internas (null si no se mide); la usan clientes y servidor
+    private volatile Metricas metricas;
 	
     // constructor de BancoCSP
     public BancoCSP() {
+	this(false);
+    }
+
+    // constructor de BancoCSP; si reutilizar es cierto, cada hilo cliente usa siempre
+    // el mismo canal de respuesta y las mismas solicitudes en vez de crearlos en cada llamada
+    public BancoCSP(boolean reutilizar) {
+	this(reutilizar, 0, Contrapresion.BLOQUEAR, 0);
+    }
+
+    /**
+     * Que hace un cliente cuando el buffer de solicitudes esta lleno.
+     */
+    public enum Contrapresion {
+	/** Espera a que el servidor deje sitio. */
+	BLOQUEAR,
+	/** Lanza IllegalStateException sin esperar. */
+	FALLAR,
+	/** Espera como maximo el tiempo indicado y luego lanza IllegalStateException. */
+	ESPERAR
+    }
+
+    /**
+     * Constructor de BancoCSP con buffer. Con capacidad mayor que 0 todas
+     * las solicitudes llegan al servidor por un unico canal con buffer de
+     * esa capacidad, en orden de llegada, e ingresar termina en cuanto su
+     * solicitud entra en el buffer (las operaciones posteriores del mismo
+     * hilo ven el ingreso porque van detras en el mismo canal). Con el
+     * buffer lleno el cliente hace lo que diga contrapresion; si no puede
+     * enviar lanza IllegalStateException y la operacion no se hace.
+     * @param reutilizar si cada hilo cliente reutiliza su canal de respuesta y sus solicitudes
+     * (salvo las de ingresar, que pueden seguir en el buffer)
+     * @param capacidad solicitudes que caben en el buffer; 0 para los canales sin buffer
+     * @param contrapresion que hacer con el buffer lleno
+     * @param esperams espera maxima con Contrapresion.ESPERAR, en milisegundos
+     */
+    public BancoCSP(boolean reutilizar, int capacidad, Contrapresion contrapresion, long esperams) {
+	if (capacidad < 0 || contrapresion == null || esperams < 0) {
+		throw new IllegalArgumentException();
+	}
 	this.chIngresar = Channel.any2one();
 	this.chAlertar = Channel.any2one();
 	this.chDisponible = Channel.any2one();
 	this.chTransferir = Channel.any2one();
+	this.chLote = Channel.any2one();
+	this.chLiquidar = Channel.any2one();
+	this.chPeticiones = capacidad > 0 ? Channel.any2one(new Buffer(capacidad)) : null;
+	this.plazas = capacidad > 0 ? new Semaphore(capacidad) : null;
+	this.contrapresion = contrapresion;
+	this.esperams = esperams;
+	this.reutilizar = reutilizar;
+	this.clientes = new ThreadLocal<cliente>() {
+		protected cliente initialValue() {
+			return new cliente();
+		}
+	};
 	new ProcessManager(this).start();
     }
+    //clase con el canal de respuesta y las solicitudes que reutiliza un hilo cliente.
+    //Un hilo solo tiene una solicitud en curso, asi que nunca se usan dos a la vez
+    private class cliente {
+	One2OneChannel resp = Channel.one2one();
+	IngresarReq ingresar = new IngresarReq(null, 0, null);
+	TransferirReq transferir = new TransferirReq(null, null, 0, resp);
+	AlertarReq alertar = new AlertarReq(null, 0, resp);
+	DisponibleReq disponible = new DisponibleReq(null, resp);
+    }
     //clase para la solicitud al servirdor de transfrerir
     public class TransferirReq {
 	String origen;
 	String destino;
 	int dinero;
 	One2OneChannel resp;
+	// Hora en que el servidor la encolo y motivo, para las metricas
+	long encolada;
+	Metricas.Causa causa;
 	
 	//constructor de las solicitudes de transferir
 	public TransferirReq(String origen, String destino, int dinero, One2OneChannel resp) {
 	    this.origen = origen;
 	    this.destino = destino; 
 	    this.dinero = dinero; 
-	    this.resp = Channel.one2one();
+	    this.resp = resp;
 		}
     }
     //clase para la solicitud al servirdor de alertar
@@ -53,12 +136,14 @@ public class BancoCSP implements Banco, CSProcess {
     String cuenta;
     int saldominimo;
 	One2OneChannel resp;
+	// Hora en que el servidor la encolo, para las metricas
+	long encolada;
 
 	//constructor de las solicitudes de alertar
 	public AlertarReq(String cuenta, int saldominimo, One2OneChannel resp) {
 		this.cuenta=cuenta;
 		this.saldominimo=saldominimo;
-	    this.resp = Channel.one2one();
+	    this.resp = resp;
 		}
     }
     //clase para la solicitud al servirdor de ingresar
@@ -71,61 +156,192 @@ public class BancoCSP implements Banco, CSProcess {
 	public IngresarReq(String cuenta, int dinero, One2OneChannel resp) {
 		this.cuenta=cuenta;
 		this.dinero=dinero;
-	    this.resp = Channel.one2one();
+	    this.resp = resp;
+		}
+    }
+    //clase para la solicitud al servidor de un lote de ingresos (destino null) o de transferencias
+    public class LoteReq {
+	String[] origen;
+	String[] destino;
+	int[] dinero;
+	One2OneChannel resp;
+	// Respuesta del servidor, se rellena antes de devolver la solicitud por resp
+	Resultado[] resultados;
+
+	//constructor de las solicitudes de lote
+	public LoteReq(String[] origen, String[] destino, int[] dinero, One2OneChannel resp) {
+		this.origen = origen;
+		this.destino = destino;
+		this.dinero = dinero;
+		this.resp = resp;
+		this.resultados = new Resultado[origen.length];
+		}
+    }
+    //clase para la solicitud al servidor de una liquidacion. Queda pendiente en la lista de cada
+    //cuenta con cargo; origen es la primera de ellas, la que se apunta para revisar y en las metricas
+    public class LiquidarReq extends TransferirReq {
+	String[] cuentas;
+	int[] movimientos;
+
+	//constructor de las solicitudes de liquidar
+	public LiquidarReq(String[] cuentas, int[] movimientos, One2OneChannel resp) {
+		super(null, null, 0, resp);
+		this.cuentas = cuentas;
+		this.movimientos = movimientos;
+		for (int i = 0; i < movimientos.length && origen == null; i++) {
+			if (movimientos[i] < 0) {
+				origen = cuentas[i];
+			}
+		}
 		}
     }
     //clase para la solicitud al servirdor de disponible
     public class DisponibleReq {
 	String cuenta;
 	One2OneChannel resp;
+	// Respuesta del servidor, se rellena antes de devolver la solicitud por resp
+	boolean existe;
+	int saldo;
 	
 	//constructor de las solicitudes de disponible
 	public DisponibleReq(String cuenta, One2OneChannel resp) {
 		this.cuenta=cuenta;
-	    this.resp = Channel.one2one();
+	    this.resp = resp;
 		}
     }
 
+    /**
+     * Empieza a enviar medidas internas (operaciones, esperas, pendientes y
+     * revisiones) a metricas; null deja de medir.
+     */
+    public void medir(Metricas metricas) {
+	this.metricas = metricas;
+    }
+
     public void ingresar(String c, int v){
-    	
-		// Se crea solicitud con informacion relevante
-		IngresarReq solicitud = new IngresarReq(c, v, Channel.one2one());
+    	long comienzo = comienzo();
+
+		// Se crea (o reutiliza) solicitud con informacion relevante; ingresar no tiene respuesta
+		IngresarReq solicitud;
+		if (reutilizar && chPeticiones == null) {
+			solicitud = clientes.get().ingresar;
+			solicitud.cuenta = c;
+			solicitud.dinero = v;
+		} else {
+			solicitud = new IngresarReq(c, v, null);
+		}
 		// Se escribe en canal correspondiente
-		chIngresar.out().write(solicitud);
+		enviar(chIngresar.out(), solicitud);
+		terminar(Metricas.Operacion.INGRESAR, comienzo);
     }
 
     public void transferir(String o, String d, int v) throws IllegalArgumentException{
     	if(o.equals(d)) {
     		throw new IllegalArgumentException();	
     	}
-    	// Se crea solicitud con informacion relevante
-    	TransferirReq solicitud = new TransferirReq(o, d, v, Channel.one2one());
+    	long comienzo = comienzo();
+    	// Se crea (o reutiliza) solicitud con informacion relevante
+    	TransferirReq solicitud;
+    	if (reutilizar) {
+    		solicitud = clientes.get().transferir;
+    		solicitud.origen = o;
+    		solicitud.destino = d;
+    		solicitud.dinero = v;
+    	} else {
+    		solicitud = new TransferirReq(o, d, v, Channel.one2one());
+    	}
 		// Se escribe en canal correspondiente
-    	chTransferir.out().write(solicitud);
+    	enviar(chTransferir.out(), solicitud);
 		
     	solicitud.resp.in().read();
+    	terminar(Metricas.Operacion.TRANSFERIR, comienzo);
+    }
 
+    public Resultado[] ingresarLote(String[] c, int[] v) {
+    	if (c.length != v.length) {
+    		throw new IllegalArgumentException();
+    	}
+    	// Todo el lote va en un solo mensaje
+    	LoteReq solicitud = new LoteReq(c, null, v, reutilizar ? clientes.get().resp : Channel.one2one());
+    	enviar(chLote.out(), solicitud);
+    	solicitud.resp.in().read();
+    	return solicitud.resultados;
+    }
+
+    public Resultado[] transferirLote(String[] o, String[] d, int[] v) {
+    	if (o.length != d.length || o.length != v.length) {
+    		throw new IllegalArgumentException();
+    	}
+    	// Todo el lote va en un solo mensaje
+    	LoteReq solicitud = new LoteReq(o, d, v, reutilizar ? clientes.get().resp : Channel.one2one());
+    	enviar(chLote.out(), solicitud);
+    	solicitud.resp.in().read();
+    	return solicitud.resultados;
+    }
+
+    public void liquidar(String[] c, int[] v) {
+    	// Se comprueba PRE (cuentas repetidas, sin cargos o movimientos que no suman 0)
+    	if (c.length != v.length) {
+    		throw new IllegalArgumentException();
+    	}
+    	Set<String> distintas = new HashSet<String>();
+    	long suma = 0;
+    	boolean cargo = false;
+    	// Un cargo de Integer.MIN_VALUE no lo cubre ningun saldo: su opuesto no cabe en un int
+    	boolean minimo = false;
+    	for (int i = 0; i < c.length; i++) {
+    		if (!distintas.add(c[i])) {
+    			throw new IllegalArgumentException();
+    		}
+    		suma += v[i];
+    		cargo |= v[i] < 0;
+    		minimo |= v[i] == Integer.MIN_VALUE;
+    	}
+    	if (!cargo || minimo || suma != 0) {
+    		throw new IllegalArgumentException();
+    	}
+    	// Toda la liquidacion va en un solo mensaje
+    	LiquidarReq solicitud = new LiquidarReq(c.clone(), v.clone(), reutilizar ? clientes.get().resp : Channel.one2one());
+    	enviar(chLiquidar.out(), solicitud);
+    	solicitud.resp.in().read();
     }
 
     public int disponible(String c)  throws IllegalArgumentException{
-    	// Se crea solicitud con informacion relevante
-    	DisponibleReq solicitud = new DisponibleReq(c, Channel.one2one());
+    	long comienzo = comienzo();
+    	// Se crea (o reutiliza) solicitud con informacion relevante
+    	DisponibleReq solicitud;
+    	if (reutilizar) {
+    		solicitud = clientes.get().disponible;
+    		solicitud.cuenta = c;
+    	} else {
+    		solicitud = new DisponibleReq(c, Channel.one2one());
+    	}
 		// Se escribe en canal correspondiente
-    	chDisponible.out().write(solicitud);
-    	// Se trata la respuesta del servidor, guardando en res
-    	int res = (int) solicitud.resp.in().read();
-    	if(res==-1) throw new IllegalArgumentException();
-    	return res;
+    	enviar(chDisponible.out(), solicitud);
+    	// El servidor devuelve la propia solicitud con la respuesta rellena (sin pasar el saldo como Object)
+    	solicitud.resp.in().read();
+    	if(!solicitud.existe) throw new IllegalArgumentException();
+    	terminar(Metricas.Operacion.DISPONIBLE, comienzo);
+    	return solicitud.saldo;
     }
 
     public void alertar(String c, int v)  throws IllegalArgumentException{
-    	//Se crea solicitud con informacion relevante
-    	AlertarReq solicitud = new AlertarReq(c, v, Channel.one2one());
+    	long comienzo = comienzo();
+    	//Se crea (o reutiliza) solicitud con informacion relevante
+    	AlertarReq solicitud;
+    	if (reutilizar) {
+    		solicitud = clientes.get().alertar;
+    		solicitud.cuenta = c;
+    		solicitud.saldominimo = v;
+    	} else {
+    		solicitud = new AlertarReq(c, v, Channel.one2one());
+    	}
 		// Se escribe en canal correspondiente
-    	chAlertar.out().write(solicitud);
+    	enviar(chAlertar.out(), solicitud);
     	//Se trata la respuesta del servidor
     	int res = (int) solicitud.resp.in().read();
     	if(res==-1) throw new IllegalArgumentException();
+    	terminar(Metricas.Operacion.ALERTAR, comienzo);
     }
 
     // Codigo del servidor
@@ -135,211 +351,467 @@ public class BancoCSP implements Banco, CSProcess {
 	final int DISPONIBLE = 1;
 	final int TRANSFERIR = 2;
 	final int ALERTAR    = 3;
+	final int LOTE       = 4;
+	final int LIQUIDAR   = 5;
 
 	// construimos la estructura para recepcion alternativa
-	final Guard[] guards = new AltingChannelInput[4];
+	final Guard[] guards = new AltingChannelInput[6];
 	guards[INGRESAR]   = chIngresar.in();
 	guards[DISPONIBLE] = chDisponible.in();
 	guards[TRANSFERIR] = chTransferir.in();
 	guards[ALERTAR]    = chAlertar.in();
+	guards[LOTE]       = chLote.in();
+	guards[LIQUIDAR]   = chLiquidar.in();
 	Alternative servicios = new Alternative(guards);
 	
-	//Mapa que contiene las cuentas y sus valores respectivos
-	Map<String, Integer> mapacuentas = new HashMap<String, Integer>(); ;
+	//Registro que contiene las cuentas y sus valores respectivos (saldos sin objetos Integer)
+	RegistroCuentas mapacuentas = new RegistroCuentas();
 	// Mapa que indica si hay una cuenta bloqueada y peticiones asociadas a dicha cuenta.
 	Map<String, FIFO<TransferirReq>> transferirpet = new HashMap<String, FIFO<TransferirReq>>();
-	// Cola de prioridad para organizar las alertas en orden de llegada.
-	PriorityQueue<Integer, AlertarReq> peticionesalertar=new HeapPriorityQueue<Integer, AlertarReq>();
+	// Alertas pendientes de cada cuenta ordenadas por saldo minimo.
+	Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar = new HashMap<String, AlertasPorSaldo<AlertarReq>>();
+	// Cuentas origen con peticiones que esperan a que se cree cada cuenta destino.
+	Map<String, FIFO<String>> esperandodestino = new HashMap<String, FIFO<String>>();
+	// Cuentas cuya primera peticion de transferencia hay que revisar en este paso: solo
+	// las que han cambiado, asi un paso sin cambios (disponible, alertar) no revisa nada
+	FIFO<String> pendientes = new FIFOList<String>();
 
 	// Bucle principal del servicio
 	while(true) {
-	    int servicio = servicios.fairSelect();
+	    int servicio;
+	    // Solicitud ya leida del canal con buffer (null sin buffer: se lee del canal de su servicio)
+	    Object mensaje = null;
+	    if (chPeticiones != null) {
+	    	mensaje = chPeticiones.in().read();
+	    	plazas.release();
+	    	servicio = mensaje instanceof IngresarReq ? INGRESAR
+	    		: mensaje instanceof DisponibleReq ? DISPONIBLE
+	    		: mensaje instanceof LiquidarReq ? LIQUIDAR
+	    		: mensaje instanceof TransferirReq ? TRANSFERIR
+	    		: mensaje instanceof AlertarReq ? ALERTAR : LOTE;
+	    } else {
+	    	servicio = servicios.fairSelect();
+	    }
 
 	    switch (servicio) {
 	    case INGRESAR: {
-	    	// Se recibe la solicitud
-	    	IngresarReq solicitud = (IngresarReq) chIngresar.in().read();
+	    	String cuenta;
+	    	int dinero;
+	    	if (mensaje != null) {
+	    		IngresarReq solicitud = (IngresarReq) mensaje;
+	    		cuenta = solicitud.cuenta;
+	    		dinero = solicitud.dinero;
+	    	} else {
+	    		// Se recibe la solicitud con lectura extendida: el cliente no sigue hasta endRead(),
+	    		// asi puede reutilizar la solicitud aunque ingresar no tenga respuesta
+	    		IngresarReq solicitud = (IngresarReq) chIngresar.in().startRead();
+	    		cuenta = solicitud.cuenta;
+	    		dinero = solicitud.dinero;
+	    		chIngresar.in().endRead();
+	    	}
 			// Comprueba si la cuenta existe
-			if (mapacuentas.containsKey(solicitud.cuenta)) {
-				int valorcuenta = mapacuentas.get(solicitud.cuenta);
+			int hueco = mapacuentas.hueco(cuenta);
+			if (hueco >= 0) {
 				// Se ingresa el dinero en la cuenta
-				mapacuentas.put(solicitud.cuenta, valorcuenta + solicitud.dinero);
+				mapacuentas.sumar(hueco, dinero);
 			} else {
 				// Se crea la cuenta con el valor correspondiente.
-				mapacuentas.put(solicitud.cuenta, solicitud.dinero);
+				mapacuentas.crear(cuenta, dinero);
+				desbloqueardestino(esperandodestino, cuenta, pendientes);
 			}
+			// El saldo ha subido, puede que la primera peticion de la cuenta ya sea realizable
+			revisar(transferirpet, cuenta, pendientes);
 		break;
 	    }
 	    case DISPONIBLE: {
 	    	// Se recibe la solicitud
-	    	DisponibleReq solicitud = (DisponibleReq) chDisponible.in().read();
-	    	//Comprueba si la cuenta existe
-	    	if(!mapacuentas.containsKey(solicitud.cuenta)){
-	    		//Si no, escribe -1 en el canal correspondiente
-	    		solicitud.resp.out().write(-1);
-	    		break;
-	    	}
-	    	int respuesta = mapacuentas.get(solicitud.cuenta);
-	    	//Se escribe el dinero disponible en el canal correspondiente
-	    	solicitud.resp.out().write(respuesta);
+	    	DisponibleReq solicitud = (DisponibleReq) (mensaje != null ? mensaje : chDisponible.in().read());
+	    	//Comprueba si la cuenta existe y guarda el dinero disponible en la solicitud
+	    	int hueco = mapacuentas.hueco(solicitud.cuenta);
+	    	solicitud.existe = hueco >= 0;
+	    	solicitud.saldo = hueco >= 0 ? mapacuentas.saldo(hueco) : 0;
+	    	//Se devuelve la solicitud por el canal correspondiente
+	    	solicitud.resp.out().write(solicitud);
 		break;
 	    }
 	    case TRANSFERIR: {
 
-	    	TransferirReq solicitudtrans = (TransferirReq) chTransferir.in().read();
+	    	TransferirReq solicitudtrans = (TransferirReq) (mensaje != null ? mensaje : chTransferir.in().read());
 			boolean signal = true;
+			int ho = mapacuentas.hueco(solicitudtrans.origen);
+			int hd = mapacuentas.hueco(solicitudtrans.destino);
 			// Se comprueba si no se cumple la 1 CPRE (origen no existe)
-			if (signal && !mapacuentas.containsKey(solicitudtrans.origen)) {
+			if (signal && ho < 0) {
 				signal = false;
-				// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-				if(transferirpet.get(solicitudtrans.origen)==null) {
-					// Como no existe, se crea una lista de peticiones para dicha cuenta
-					FIFO<TransferirReq> listapet = new FIFOList<TransferirReq>();
-					// Se encola la peticion a la lista
-					listapet.enqueue(solicitudtrans);
-					// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-					transferirpet.put(solicitudtrans.origen, listapet);
-					break;
-				}
-				else {
-				// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-				transferirpet.get(solicitudtrans.origen).enqueue(solicitudtrans);
+				encolar(transferirpet, esperandodestino, mapacuentas, solicitudtrans, Metricas.Causa.ORIGEN_NO_EXISTE);
 				break;
-				}
 			}
 			// Se comprueba si no se cumple la 2 CPRE (destino no existe)
-			if (signal && !mapacuentas.containsKey(solicitudtrans.destino)) {
+			if (signal && hd < 0) {
 				signal = false;
-				// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-				if(transferirpet.get(solicitudtrans.origen)==null) {
-					// Como no existe, se crea una lista de peticiones para dicha cuenta
-					FIFO<TransferirReq> listapet = new FIFOList<TransferirReq>();
-					// Se encola la peticion en la lista
-					listapet.enqueue(solicitudtrans);
-					// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-					transferirpet.put(solicitudtrans.origen, listapet);
-					break;
-				}
-				else {
-				// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-				transferirpet.get(solicitudtrans.origen).enqueue(solicitudtrans);
+				encolar(transferirpet, esperandodestino, mapacuentas, solicitudtrans, Metricas.Causa.DESTINO_NO_EXISTE);
 				break;
-				}
 			}
 			// Se comprueba si no se cumple la 3 CPRE (no hay suficiente dinero en origen)
-			if (signal && mapacuentas.get(solicitudtrans.origen) < solicitudtrans.dinero) {
+			if (signal && mapacuentas.saldo(ho) < solicitudtrans.dinero) {
 				signal = false;
-				// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-				if(transferirpet.get(solicitudtrans.origen)==null) {
-					// Como no existe, se crea una lista de peticiones para dicha cuenta
-					FIFO<TransferirReq> listapet = new FIFOList<TransferirReq>();
-					// Se encola la peticion en la lista
-					listapet.enqueue(solicitudtrans);
-					// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-					transferirpet.put(solicitudtrans.origen, listapet);
-					break;
-				}
-				else {
-				// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-				transferirpet.get(solicitudtrans.origen).enqueue(solicitudtrans);
+				encolar(transferirpet, esperandodestino, mapacuentas, solicitudtrans, Metricas.Causa.SALDO_INSUFICIENTE);
 				break;
-				}
 			}
 			// Se comprueba si ya hay alguna peticion con la cuenta origen (ya que se tienen que tratar las transferencias en orden de llegada)
 			if(signal && transferirpet.get(solicitudtrans.origen)!=null  && transferirpet.get(solicitudtrans.origen).size()>0) {
 				signal = false;
-				// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-				if(transferirpet.get(solicitudtrans.origen)==null) {
-					// Como no existe, se crea una lista de peticiones para dicha cuenta
-					FIFO<TransferirReq> listapet = new FIFOList<TransferirReq>();
-					// Se encola la peticion en la lista
-					listapet.enqueue(solicitudtrans);
-					// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-					transferirpet.put(solicitudtrans.origen, listapet);
-					break;
-				}
-				else {
-				// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-				transferirpet.get(solicitudtrans.origen).enqueue(solicitudtrans);
+				encolar(transferirpet, esperandodestino, mapacuentas, solicitudtrans, Metricas.Causa.COLA_ORIGEN);
 				break;
-				}
 			}
-			int valor_origen = mapacuentas.get(solicitudtrans.origen);
-			int valor_destino = mapacuentas.get(solicitudtrans.destino);
 			 // restamos valor v del dinero de la cuenta de origen
-			mapacuentas.put(solicitudtrans.origen, valor_origen - solicitudtrans.dinero);
+			mapacuentas.sumar(ho, -solicitudtrans.dinero);
 			 // sumamos valor v al dinero de la cuenta de destino
-			mapacuentas.put(solicitudtrans.destino, valor_destino + solicitudtrans.dinero);
-			//Se escribe en el canal correspondiente que se ha terminado con exito
+			mapacuentas.sumar(hd, solicitudtrans.dinero);
+			// El saldo del destino ha subido, puede desbloquear su primera peticion
+			revisar(transferirpet, solicitudtrans.destino, pendientes);
+			// El saldo del origen ha bajado, se liberan sus alertas cumplidas
+			desbloquearalertar(peticionesalertar, solicitudtrans.origen, mapacuentas);
+			//Se escribe en el canal correspondiente que se ha terminado con exito. Se hace lo
+			//ultimo porque a partir de aqui el cliente puede reutilizar la solicitud
 			solicitudtrans.resp.out().write("hecho");
 		break;
 	    }
 	    case ALERTAR: {
 	    	//Se crea la solicitud correspondiente
-	    	AlertarReq solicitudalertar = (AlertarReq) chAlertar.in().read();
+	    	AlertarReq solicitudalertar = (AlertarReq) (mensaje != null ? mensaje : chAlertar.in().read());
 	    	//Comprueba si la cuenta existe 
-	    	if(!mapacuentas.containsKey(solicitudalertar.cuenta)){
+	    	int hueco = mapacuentas.hueco(solicitudalertar.cuenta);
+	    	if(hueco < 0){
 	    		//Si no, escribe -1 en el canal correspondiente
 	    		solicitudalertar.resp.out().write(-1);
 	    		break;
 	    	}
 	    	//Comprueba si el dinero de la cuenta es superior al saldo minimo
-			if (mapacuentas.get(solicitudalertar.cuenta) >= solicitudalertar.saldominimo) {
-				//Si lo es, se encola la peticion al final de la cola
-				peticionesalertar.enqueue(peticionesalertar.size() + 1, solicitudalertar);
+			if (mapacuentas.saldo(hueco) >= solicitudalertar.saldominimo) {
+				//Si lo es, se anade la peticion a las alertas de la cuenta segun su saldo minimo
+				if (peticionesalertar.get(solicitudalertar.cuenta) == null) {
+					peticionesalertar.put(solicitudalertar.cuenta, new AlertasPorSaldo<AlertarReq>());
+				}
+				peticionesalertar.get(solicitudalertar.cuenta).anadir(solicitudalertar.saldominimo, solicitudalertar);
+				// La solicitud puede ser reutilizada: se marca siempre si se conto o no
+				Metricas m = metricas;
+				solicitudalertar.encolada = m != null ? System.nanoTime() : 0;
+				if (m != null) {
+					m.alertas(1);
+				}
 			}
 			//Si no, se escribe 1 en el canal correspondiente
 			else solicitudalertar.resp.out().write(1);
 
 		break;
 	    }
+	    case LOTE: {
+	    	LoteReq lote = (LoteReq) (mensaje != null ? mensaje : chLote.in().read());
+	    	// Cuentas cuyo saldo ha bajado dentro del lote
+	    	Set<String> debitadas = new HashSet<String>();
+	    	for (int i = 0; i < lote.origen.length; i++) {
+	    		String origen = lote.origen[i];
+	    		int dinero = lote.dinero[i];
+	    		if (lote.destino == null) {
+	    			// Lote de ingresos: se ingresa el dinero o se crea la cuenta
+	    			int hueco = mapacuentas.hueco(origen);
+	    			if (hueco >= 0) {
+	    				mapacuentas.sumar(hueco, dinero);
+	    			} else {
+	    				mapacuentas.crear(origen, dinero);
+	    				desbloqueardestino(esperandodestino, origen, pendientes);
+	    			}
+	    			revisar(transferirpet, origen, pendientes);
+	    			lote.resultados[i] = Resultado.APLICADA;
+	    			continue;
+	    		}
+	    		String destino = lote.destino[i];
+	    		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+	    		if (origen.equals(destino)) {
+	    			lote.resultados[i] = Resultado.RECHAZADA;
+	    			continue;
+	    		}
+	    		// Se comprueban las CPREs y que no haya peticiones anteriores con el mismo origen
+	    		int ho = mapacuentas.hueco(origen);
+	    		int hd = mapacuentas.hueco(destino);
+	    		FIFO<TransferirReq> lista = transferirpet.get(origen);
+	    		if (ho >= 0 && hd >= 0 && mapacuentas.saldo(ho) >= dinero && (lista == null || lista.isEmpty())) {
+	    			mapacuentas.sumar(ho, -dinero);
+	    			mapacuentas.sumar(hd, dinero);
+	    			revisar(transferirpet, destino, pendientes);
+	    			debitadas.add(origen);
+	    			lote.resultados[i] = Resultado.APLICADA;
+	    		} else {
+	    			// Se encola sin canal de respuesta: nadie espera por ella
+	    			encolar(transferirpet, esperandodestino, mapacuentas, new TransferirReq(origen, destino, dinero, null),
+	    				ho < 0 ? Metricas.Causa.ORIGEN_NO_EXISTE
+	    				: hd < 0 ? Metricas.Causa.DESTINO_NO_EXISTE
+	    				: mapacuentas.saldo(ho) < dinero ? Metricas.Causa.SALDO_INSUFICIENTE
+	    				: Metricas.Causa.COLA_ORIGEN);
+	    			lote.resultados[i] = Resultado.ENCOLADA;
+	    		}
+	    	}
+	    	for (String cuenta : debitadas) {
+	    		desbloquearalertar(peticionesalertar, cuenta, mapacuentas);
+	    	}
+	    	lote.resp.out().write(lote);
+		break;
+	    }
+	    case LIQUIDAR: {
+	    	LiquidarReq solicitud = (LiquidarReq) (mensaje != null ? mensaje : chLiquidar.in().read());
+	    	// Se comprueban las CPREs de todas las cuentas y que no haya peticiones anteriores con sus cargos
+	    	Metricas.Causa causa = bloqueo(transferirpet, mapacuentas, solicitud);
+	    	if (causa == null) {
+	    		realizarliquidacion(transferirpet, mapacuentas, peticionesalertar, solicitud, pendientes);
+	    	} else {
+	    		encolarliquidacion(transferirpet, esperandodestino, mapacuentas, solicitud, causa);
+	    	}
+		break;
+	    }
 	    }
-	    //Desbloqueamos las solicitudes en el orden correcto
-	    desbloqueartransferencia(transferirpet,mapacuentas);
-	    desbloquearalertar(peticionesalertar,mapacuentas);
+	    //Desbloqueamos las solicitudes de las cuentas que han cambiado en este paso, en el orden
+	    //correcto (las alertas se liberan al bajar cada saldo)
+	    desbloquearpendientes(transferirpet,mapacuentas,peticionesalertar,pendientes);
 	}
     }
-    //metodo auxiliar que nos permite desbloquear las solicitudes de transferencia correspondientes
-	public void desbloqueartransferencia(Map<String, FIFO<TransferirReq>> transferirpet,Map<String, Integer> mapacuentas) {
-		for(int i=0;i<transferirpet.size();i++) {
-		// Se recorre las entradas del mapa de transferencia
-		for (String cuenta : transferirpet.keySet()) {
-			// Comprueba si hay alguna entrada con la cuenta y si tiene alguna peticion asociada
-			if(transferirpet.get(cuenta)!=null && transferirpet.get(cuenta).size()!=0) {
-				// Escoge la primera peticion de la cuenta
-				TransferirReq primerapet = transferirpet.get(cuenta).first();
-				// Comprueba si la cuenta de destino y origen existen, si hay suficiente dinero a transferir
-				if (mapacuentas.get(primerapet.destino) != null && mapacuentas.get(primerapet.origen) != null && primerapet.dinero <= mapacuentas.get(cuenta)) {
-					primerapet.resp.out().write("hecho");
-					
-					int valor_origen = mapacuentas.get(primerapet.origen);
-					int valor_destino = mapacuentas.get(primerapet.destino);
-					// restamos valor v del dinero de la cuenta de origen
-					mapacuentas.put(primerapet.origen, valor_origen - primerapet.dinero); 
-					 // sumamos valor v al dinero de la cuenta de destino
-					mapacuentas.put(primerapet.destino, valor_destino + primerapet.dinero);
-					// Se quita la peticion de la lista
-					transferirpet.get(cuenta).dequeue();
-					i=-1;// se inicia desde cero otra vez el bucle en busca de nuevas transferencias
+    //metodo auxiliar que encola una solicitud de transferencia en la lista de su cuenta origen y,
+    //si su destino aun no existe, apunta el origen para revisarlo cuando se cree el destino
+	private void encolar(Map<String, FIFO<TransferirReq>> transferirpet, Map<String, FIFO<String>> esperandodestino, RegistroCuentas mapacuentas, TransferirReq solicitud, Metricas.Causa causa) {
+		// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
+		if (transferirpet.get(solicitud.origen) == null) {
+			// Como no existe, se crea una lista de peticiones para dicha cuenta
+			transferirpet.put(solicitud.origen, new FIFOList<TransferirReq>());
+		}
+		transferirpet.get(solicitud.origen).enqueue(solicitud);
+		encolada(solicitud, causa);
+		// Si el destino no existe, su creacion es el evento que puede desbloquear la peticion
+		if (mapacuentas.hueco(solicitud.destino) < 0) {
+			if (esperandodestino.get(solicitud.destino) == null) {
+				esperandodestino.put(solicitud.destino, new FIFOList<String>());
+			}
+			esperandodestino.get(solicitud.destino).enqueue(solicitud.origen);
+		}
+	}
+	//metodo auxiliar que devuelve por que no se puede realizar ahora una liquidacion, o null si se puede:
+	//todas sus cuentas existen y en cada cuenta con cargo es la primera peticion (o no hay ninguna,
+	//si aun no esta encolada) y hay saldo suficiente
+	private Metricas.Causa bloqueo(Map<String, FIFO<TransferirReq>> transferirpet, RegistroCuentas mapacuentas, LiquidarReq solicitud) {
+		for (int i = 0; i < solicitud.cuentas.length; i++) {
+			int hueco = mapacuentas.hueco(solicitud.cuentas[i]);
+			int movimiento = solicitud.movimientos[i];
+			if (hueco < 0) {
+				return movimiento < 0 ? Metricas.Causa.ORIGEN_NO_EXISTE : Metricas.Causa.DESTINO_NO_EXISTE;
+			}
+			if (movimiento < 0) {
+				FIFO<TransferirReq> lista = transferirpet.get(solicitud.cuentas[i]);
+				if (lista != null && !lista.isEmpty() && lista.first() != solicitud) {
+					return Metricas.Causa.COLA_ORIGEN;
+				}
+				if (mapacuentas.saldo(hueco) < -movimiento) {
+					return Metricas.Causa.SALDO_INSUFICIENTE;
 				}
 			}
 		}
+		return null;
+	}
+	//metodo auxiliar que realiza todos los movimientos de una liquidacion, la quita de las listas
+	//en las que estaba encolada y contesta al cliente
+	private void realizarliquidacion(Map<String, FIFO<TransferirReq>> transferirpet, RegistroCuentas mapacuentas, Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar, LiquidarReq solicitud, FIFO<String> pendientes) {
+		for (int i = 0; i < solicitud.cuentas.length; i++) {
+			String cuenta = solicitud.cuentas[i];
+			mapacuentas.sumar(mapacuentas.hueco(cuenta), solicitud.movimientos[i]);
+			FIFO<TransferirReq> lista = transferirpet.get(cuenta);
+			if (lista != null && !lista.isEmpty() && lista.first() == solicitud) {
+				lista.dequeue();
+			}
 		}
+		desencolada(solicitud);
+		for (int i = 0; i < solicitud.cuentas.length; i++) {
+			// Ha subido el saldo o ha cambiado la primera peticion, puede desbloquear la nueva primera
+			revisar(transferirpet, solicitud.cuentas[i], pendientes);
+			// El saldo de las cuentas con cargo ha bajado, se liberan sus alertas cumplidas
+			if (solicitud.movimientos[i] < 0) {
+				desbloquearalertar(peticionesalertar, solicitud.cuentas[i], mapacuentas);
+			}
+		}
+		// Se contesta al cliente lo ultimo, despues ya puede reutilizar su canal
+		solicitud.resp.out().write("hecho");
 	}
-	public void desbloquearalertar(PriorityQueue<Integer, AlertarReq> peticionesalertar,Map<String, Integer> mapacuentas) {
-		// Se recorre la cola de prioridad de alertas
-		for (int i = 0; i < peticionesalertar.size(); i++) {
-			// Se guarda el primer objeto desencolado
-			Entry<Integer, AlertarReq> primerapet = peticionesalertar.dequeue();
-			//Comprueba si el dinero de la cuenta es menor que el saldo minimo
-			if (primerapet.getValue().saldominimo > mapacuentas.get(primerapet.getValue().cuenta)) {
-				primerapet.getValue().resp.out().write(1);
-				i=-1; // se inicia desde cero otra vez el bucle en busca de nuevas alertas
-			} else {
-				//Si no es menor, se vuelve a encolar al final de la lista
-				peticionesalertar.enqueue(peticionesalertar.size()+1, primerapet.getValue());
+	//metodo auxiliar que encola una liquidacion en la lista de cada cuenta con cargo y apunta su
+	//origen para revisarlo cuando se cree cada cuenta con abono que aun no existe
+	private void encolarliquidacion(Map<String, FIFO<TransferirReq>> transferirpet, Map<String, FIFO<String>> esperandodestino, RegistroCuentas mapacuentas, LiquidarReq solicitud, Metricas.Causa causa) {
+		for (int i = 0; i < solicitud.cuentas.length; i++) {
+			String cuenta = solicitud.cuentas[i];
+			if (solicitud.movimientos[i] < 0) {
+				if (transferirpet.get(cuenta) == null) {
+					transferirpet.put(cuenta, new FIFOList<TransferirReq>());
+				}
+				transferirpet.get(cuenta).enqueue(solicitud);
+			} else if (mapacuentas.hueco(cuenta) < 0) {
+				if (esperandodestino.get(cuenta) == null) {
+					esperandodestino.put(cuenta, new FIFOList<String>());
+				}
+				esperandodestino.get(cuenta).enqueue(solicitud.origen);
 			}
 		}
+		encolada(solicitud, causa);
+	}
+	//metodo auxiliar que apunta para revisar los origenes que esperaban a que se creara una cuenta
+	private void desbloqueardestino(Map<String, FIFO<String>> esperandodestino, String cuenta, FIFO<String> pendientes) {
+		FIFO<String> origenes = esperandodestino.remove(cuenta);
+		if (origenes == null) {
+			return;
+		}
+		while (!origenes.isEmpty()) {
+			pendientes.enqueue(origenes.dequeue());
+		}
+	}
+	//metodo auxiliar que apunta una cuenta para revisar solo si tiene transferencias bloqueadas,
+	//asi las operaciones sin esperas no apuntan nada
+	private void revisar(Map<String, FIFO<TransferirReq>> transferirpet, String cuenta, FIFO<String> pendientes) {
+		FIFO<TransferirReq> lista = transferirpet.get(cuenta);
+		if (lista != null && !lista.isEmpty()) {
+			pendientes.enqueue(cuenta);
+		}
+	}
+	//metodo auxiliar que revisa las cuentas apuntadas hasta que no quede ninguna
+	private void desbloquearpendientes(Map<String, FIFO<TransferirReq>> transferirpet,RegistroCuentas mapacuentas,Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar, FIFO<String> pendientes) {
+		// Cuentas revisadas, para las metricas
+		int revisadas = 0;
+		while (!pendientes.isEmpty()) {
+			desbloqueartransferencia(transferirpet, mapacuentas, peticionesalertar, pendientes.dequeue(), pendientes);
+			revisadas++;
+		}
+		if (revisadas > 0 && metricas != null) {
+			metricas.revision(Metricas.Revision.TRANSFERENCIAS, revisadas);
+		}
+	}
+    //metodo auxiliar que realiza las primeras peticiones de transferencia de una cuenta origen mientras
+    //cumplan las CPREs. Solo se mira la primera, las demas esperan por orden de llegada
+	public void desbloqueartransferencia(Map<String, FIFO<TransferirReq>> transferirpet,RegistroCuentas mapacuentas,Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar, String cuenta, FIFO<String> pendientes) {
+		FIFO<TransferirReq> lista = transferirpet.get(cuenta);
+		// Comprueba si hay alguna peticion asociada a la cuenta
+		while (lista != null && !lista.isEmpty()) {
+			// Escoge la primera peticion de la cuenta
+			TransferirReq primerapet = lista.first();
+			// Una liquidacion tiene que ser realizable en todas sus cuentas; al realizarla se quita de esta lista
+			if (primerapet instanceof LiquidarReq) {
+				LiquidarReq liquidacion = (LiquidarReq) primerapet;
+				if (bloqueo(transferirpet, mapacuentas, liquidacion) != null) {
+					return;
+				}
+				realizarliquidacion(transferirpet, mapacuentas, peticionesalertar, liquidacion, pendientes);
+				continue;
+			}
+			// Comprueba si la cuenta de destino y origen existen, si hay suficiente dinero a transferir
+			int ho = mapacuentas.hueco(primerapet.origen);
+			int hd = mapacuentas.hueco(primerapet.destino);
+			if (hd < 0 || ho < 0 || primerapet.dinero > mapacuentas.saldo(ho)) {
+				return;
+			}
+			// restamos valor v del dinero de la cuenta de origen
+			mapacuentas.sumar(ho, -primerapet.dinero);
+			 // sumamos valor v al dinero de la cuenta de destino
+			mapacuentas.sumar(hd, primerapet.dinero);
+			// Se quita la peticion de la lista
+			lista.dequeue();
+			desencolada(primerapet);
+			// El saldo del destino ha subido, puede desbloquear su primera peticion
+			revisar(transferirpet, primerapet.destino, pendientes);
+			// El saldo del origen ha bajado, se liberan sus alertas cumplidas
+			desbloquearalertar(peticionesalertar, primerapet.origen, mapacuentas);
+			// Se contesta al cliente lo ultimo, despues ya puede reutilizar la solicitud
+			// (las peticiones de un lote no tienen canal de respuesta)
+			if (primerapet.resp != null) {
+				primerapet.resp.out().write("hecho");
+			}
+		}
+	}
+	//metodo auxiliar que libera las alertas de una cuenta cuyo saldo ha bajado por debajo de su minimo
+	public void desbloquearalertar(Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar, String cuenta, RegistroCuentas mapacuentas) {
+		AlertasPorSaldo<AlertarReq> alertas = peticionesalertar.get(cuenta);
+		// Comprueba si hay alguna alerta pendiente en la cuenta
+		if (alertas == null || alertas.isEmpty()) {
+			return;
+		}
+		// Se sacan solo las alertas cuyo saldo minimo es mayor que el dinero de la cuenta
+		FIFO<AlertarReq> liberadas = new FIFOList<AlertarReq>();
+		int n = alertas.liberar(mapacuentas.saldo(mapacuentas.hueco(cuenta)), liberadas);
+		Metricas m = metricas;
+		// Solo se descuentan las alertas que se contaron al anadirlas
+		int contadas = 0;
+		while (!liberadas.isEmpty()) {
+			AlertarReq liberada = liberadas.dequeue();
+			if (m != null && liberada.encolada != 0) {
+				contadas++;
+				m.bloqueo(Metricas.Causa.ALERTA, System.nanoTime() - liberada.encolada);
+			}
+			liberada.resp.out().write(1);
+		}
+		if (m != null) {
+			m.revision(Metricas.Revision.ALERTAS, n);
+			m.alertas(-contadas);
+		}
+	}
+	//metodo auxiliar que envia una solicitud al servidor por su canal o, en modo con buffer, por el
+	//canal comun despues de conseguir plaza segun la contrapresion
+	private void enviar(ChannelOutput canal, Object solicitud) {
+		if (chPeticiones == null) {
+			canal.write(solicitud);
+			return;
+		}
+		switch (contrapresion) {
+		case BLOQUEAR:
+			plazas.acquireUninterruptibly();
+			break;
+		case FALLAR:
+			if (!plazas.tryAcquire()) {
+				throw new IllegalStateException("Buffer de solicitudes lleno");
+			}
+			break;
+		case ESPERAR:
+			try {
+				if (!plazas.tryAcquire(esperams, TimeUnit.MILLISECONDS)) {
+					throw new IllegalStateException("Buffer de solicitudes lleno");
+				}
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(exc);
+			}
+			break;
+		}
+		chPeticiones.out().write(solicitud);
+	}
+	//metodo auxiliar que anota en las metricas una transferencia que queda pendiente
+	private void encolada(TransferirReq solicitud, Metricas.Causa causa) {
+		Metricas m = metricas;
+		if (m != null) {
+			solicitud.encolada = System.nanoTime();
+			solicitud.causa = causa;
+			m.pendientes(solicitud.origen, 1);
+		} else {
+			solicitud.encolada = 0;
+		}
+	}
+	//metodo auxiliar que anota en las metricas una transferencia pendiente que ya se ha realizado
+	private void desencolada(TransferirReq solicitud) {
+		Metricas m = metricas;
+		if (m != null && solicitud.encolada != 0) {
+			m.bloqueo(solicitud.causa, System.nanoTime() - solicitud.encolada);
+			m.pendientes(solicitud.origen, -1);
+		}
+	}
+	//metodo auxiliar que devuelve la hora de comienzo de una medida (0 si no se mide)
+	private long comienzo() {
+		return metricas != null ? System.nanoTime() : 0;
+	}
+	//metodo auxiliar que anota la duracion de una operacion
+	private void terminar(Metricas.Operacion operacion, long comienzo) {
+		Metricas m = metricas;
+		if (m != null && comienzo != 0) {
+			m.operacion(operacion, System.nanoTime() - comienzo);
+		}
 	}
 	
 }
@@ -0,0 +1,435 @@
+package cc.banco;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jcsp.lang.Alternative;
+import org.jcsp.lang.AltingChannelInput;
+import org.jcsp.lang.Any2OneChannel;
+import org.jcsp.lang.CSProcess;
+import org.jcsp.lang.Channel;
+import org.jcsp.lang.Guard;
+import org.jcsp.lang.One2OneChannel;
+import org.jcsp.lang.ProcessManager;
+import org.jcsp.util.InfiniteBuffer;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Version de BancoCSP con varios servidores. Cada servidor (particion)
+ * es propietario de las cuentas cuyo hash le corresponde y tiene sus propios
+ * canales de peticiones; los clientes escriben en la particion de la
+ * cuenta (la de origen en transferir).
+ *
+ * Una transferencia entre particiones se resuelve con mensajes entre
+ * servidores por un canal interno con buffer (nunca bloquea, asi dos
+ * servidores no pueden interbloquearse escribiendose):
+ * - si el destino es remoto y no se sabe si existe, la particion origen
+ *   envia AVISO a la particion destino, que contesta EXISTE cuando la
+ *   cuenta existe (la existencia no cambia una vez creada la cuenta);
+ * - cuando la primera peticion de la cuenta origen cumple las CPREs, la
+ *   particion origen reserva el dinero (lo resta del origen) y envia
+ *   ABONO a la particion destino, que lo suma, contesta al cliente y
+ *   envia CONFIRMADO a la particion origen.
+ * El abono no puede fallar porque el destino ya existe, por lo que la
+ * transferencia se completa siempre una vez reservada, y el orden de
+ * llegada por cuenta origen se mantiene porque solo la particion origen
+ * decide que peticion se atiende.
+ *
+ * Mientras el dinero esta en camino la cuenta origen queda en transito:
+ * sus lecturas (disponible y las alertas que se cumplirian) se contestan
+ * al llegar CONFIRMADO y sus siguientes transferencias esperan. Asi nadie
+ * ve el cargo sin el abono y la transferencia es atomica para los
+ * lectores (se realiza en el instante del abono), a cambio de que cada
+ * cuenta origen tenga como mucho una transferencia entre particiones en
+ * curso.
+ */
+public class BancoCSPParticionado implements Banco {
+	// Particiones del banco, cada una con su proceso servidor
+	private final particion[] particiones;
+
+	// constructor con una particion por procesador
+	public BancoCSPParticionado() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	// constructor de BancoCSPParticionado
+	public BancoCSPParticionado(int n) {
+		if (n <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.particiones = new particion[n];
+		for (int i = 0; i < n; i++) {
+			this.particiones[i] = new particion();
+		}
+		for (int i = 0; i < n; i++) {
+			new ProcessManager(this.particiones[i]).start();
+		}
+	}
+
+	//clase para la solicitud al servidor de transferir
+	public class TransferirReq {
+		String origen;
+		String destino;
+		int dinero;
+		One2OneChannel resp;
+		// Indica si la peticion ya esta registrada en la espera de su destino
+		boolean registrada;
+
+		//constructor de las solicitudes de transferir
+		public TransferirReq(String origen, String destino, int dinero, One2OneChannel resp) {
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+			this.resp = resp;
+		}
+	}
+	//clase para la solicitud al servidor de alertar
+	public class AlertarReq {
+		String cuenta;
+		int saldominimo;
+		One2OneChannel resp;
+
+		//constructor de las solicitudes de alertar
+		public AlertarReq(String cuenta, int saldominimo, One2OneChannel resp) {
+			this.cuenta = cuenta;
+			this.saldominimo = saldominimo;
+			this.resp = resp;
+		}
+	}
+	//clase para la solicitud al servidor de ingresar
+	public class IngresarReq {
+		String cuenta;
+		int dinero;
+
+		//constructor de las solicitudes de ingresar
+		public IngresarReq(String cuenta, int dinero) {
+			this.cuenta = cuenta;
+			this.dinero = dinero;
+		}
+	}
+	//clase para la solicitud al servidor de disponible
+	public class DisponibleReq {
+		String cuenta;
+		One2OneChannel resp;
+
+		//constructor de las solicitudes de disponible
+		public DisponibleReq(String cuenta, One2OneChannel resp) {
+			this.cuenta = cuenta;
+			this.resp = resp;
+		}
+	}
+	//mensaje interno: abonar en la particion destino una transferencia ya reservada en el origen
+	private class AbonoMsg {
+		TransferirReq peticion;
+
+		public AbonoMsg(TransferirReq peticion) {
+			this.peticion = peticion;
+		}
+	}
+	//mensaje interno: el abono de una transferencia desde esta cuenta origen ya esta hecho
+	private class ConfirmadoMsg {
+		String cuenta;
+
+		public ConfirmadoMsg(String cuenta) {
+			this.cuenta = cuenta;
+		}
+	}
+	//mensaje interno: la cuenta remota ya existe
+	private class ExisteMsg {
+		String cuenta;
+
+		public ExisteMsg(String cuenta) {
+			this.cuenta = cuenta;
+		}
+	}
+	//mensaje interno: pide a la particion de la cuenta que avise cuando exista
+	private class AvisoMsg {
+		String cuenta;
+		particion solicitante;
+
+		public AvisoMsg(String cuenta, particion solicitante) {
+			this.cuenta = cuenta;
+			this.solicitante = solicitante;
+		}
+	}
+
+	public void ingresar(String c, int v) {
+		// Se escribe la solicitud en la particion de la cuenta
+		particion(c).chIngresar.out().write(new IngresarReq(c, v));
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		// Se escribe la solicitud en la particion de la cuenta origen
+		TransferirReq solicitud = new TransferirReq(o, d, v, Channel.one2one());
+		particion(o).chTransferir.out().write(solicitud);
+		// Contesta la particion que realiza el abono
+		solicitud.resp.in().read();
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		DisponibleReq solicitud = new DisponibleReq(c, Channel.one2one());
+		particion(c).chDisponible.out().write(solicitud);
+		int res = (int) solicitud.resp.in().read();
+		if (res == -1) throw new IllegalArgumentException();
+		return res;
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		AlertarReq solicitud = new AlertarReq(c, m, Channel.one2one());
+		particion(c).chAlertar.out().write(solicitud);
+		int res = (int) solicitud.resp.in().read();
+		if (res == -1) throw new IllegalArgumentException();
+	}
+
+	// Metodo auxiliar que devuelve la particion propietaria de una cuenta
+	private particion particion(String c) {
+		return particiones[(c.hashCode() & 0x7fffffff) % particiones.length];
+	}
+
+	// Proceso servidor de una particion
+	private class particion implements CSProcess {
+		// 1 canal por cada accion que pueden pedir los clientes
+		private final Any2OneChannel chIngresar = Channel.any2one();
+		private final Any2OneChannel chDisponible = Channel.any2one();
+		private final Any2OneChannel chTransferir = Channel.any2one();
+		private final Any2OneChannel chAlertar = Channel.any2one();
+		// Canal con buffer para los mensajes de otras particiones
+		private final Any2OneChannel chInterno = Channel.any2one(new InfiniteBuffer());
+
+		// Mapa con las cuentas de esta particion y sus valores respectivos
+		private final Map<String, Integer> mapacuentas = new HashMap<String, Integer>();
+		// Peticiones de transferencia por cuenta origen (de esta particion), en orden de llegada
+		private final Map<String, FIFO<TransferirReq>> transferirpet = new HashMap<String, FIFO<TransferirReq>>();
+		// Alertas pendientes de cada cuenta ordenadas por saldo minimo
+		private final Map<String, AlertasPorSaldo<AlertarReq>> peticionesalertar = new HashMap<String, AlertasPorSaldo<AlertarReq>>();
+		// Cuentas de otras particiones que ya se sabe que existen
+		private final Set<String> destinosconocidos = new HashSet<String>();
+		// Cuentas de otras particiones por las que ya se ha enviado un aviso
+		private final Set<String> avisospedidos = new HashSet<String>();
+		// Cuentas origen cuya primera peticion espera a que exista un destino
+		private final Map<String, FIFO<String>> esperandodestino = new HashMap<String, FIFO<String>>();
+		// Particiones a las que hay que avisar cuando exista una cuenta de esta particion
+		private final Map<String, FIFO<particion>> suscritos = new HashMap<String, FIFO<particion>>();
+		// Cuentas origen con una transferencia cuyo abono aun no ha confirmado la particion destino
+		private final Set<String> entransito = new HashSet<String>();
+		// Lecturas de cuentas en transito que se contestan al llegar la confirmacion
+		private final Map<String, FIFO<DisponibleReq>> lecturasdiferidas = new HashMap<String, FIFO<DisponibleReq>>();
+		// Cuentas origen cuya primera peticion hay que volver a evaluar en este paso
+		private final FIFO<String> pendientes = new FIFOList<String>();
+
+		// Codigo del servidor de la particion
+		public void run() {
+			// nombres simbolicos para las entradas
+			final int INGRESAR   = 0;
+			final int DISPONIBLE = 1;
+			final int TRANSFERIR = 2;
+			final int ALERTAR    = 3;
+			final int INTERNO    = 4;
+
+			// construimos la estructura para recepcion alternativa
+			final Guard[] guards = new AltingChannelInput[5];
+			guards[INGRESAR]   = chIngresar.in();
+			guards[DISPONIBLE] = chDisponible.in();
+			guards[TRANSFERIR] = chTransferir.in();
+			guards[ALERTAR]    = chAlertar.in();
+			guards[INTERNO]    = chInterno.in();
+			Alternative servicios = new Alternative(guards);
+
+			// Bucle principal del servicio
+			while (true) {
+				switch (servicios.fairSelect()) {
+				case INGRESAR: {
+					IngresarReq solicitud = (IngresarReq) chIngresar.in().read();
+					Integer saldo = mapacuentas.get(solicitud.cuenta);
+					if (saldo != null) {
+						// Se ingresa el dinero en la cuenta
+						mapacuentas.put(solicitud.cuenta, saldo + solicitud.dinero);
+					} else {
+						// Se crea la cuenta y se avisa a quien esperaba por ella como destino
+						mapacuentas.put(solicitud.cuenta, solicitud.dinero);
+						creada(solicitud.cuenta);
+					}
+					pendientes.enqueue(solicitud.cuenta);
+					break;
+				}
+				case DISPONIBLE: {
+					DisponibleReq solicitud = (DisponibleReq) chDisponible.in().read();
+					// Con el cargo aun sin abonar se contesta cuando llegue la confirmacion
+					if (entransito.contains(solicitud.cuenta)) {
+						if (lecturasdiferidas.get(solicitud.cuenta) == null) {
+							lecturasdiferidas.put(solicitud.cuenta, new FIFOList<DisponibleReq>());
+						}
+						lecturasdiferidas.get(solicitud.cuenta).enqueue(solicitud);
+						break;
+					}
+					Integer saldo = mapacuentas.get(solicitud.cuenta);
+					// Si la cuenta no existe se contesta -1
+					solicitud.resp.out().write(saldo == null ? -1 : saldo);
+					break;
+				}
+				case TRANSFERIR: {
+					TransferirReq solicitud = (TransferirReq) chTransferir.in().read();
+					// Toda peticion se encola para respetar el orden de llegada por cuenta origen
+					if (transferirpet.get(solicitud.origen) == null) {
+						transferirpet.put(solicitud.origen, new FIFOList<TransferirReq>());
+					}
+					transferirpet.get(solicitud.origen).enqueue(solicitud);
+					pendientes.enqueue(solicitud.origen);
+					break;
+				}
+				case ALERTAR: {
+					AlertarReq solicitud = (AlertarReq) chAlertar.in().read();
+					Integer saldo = mapacuentas.get(solicitud.cuenta);
+					if (saldo == null) {
+						solicitud.resp.out().write(-1);
+					} else if (saldo >= solicitud.saldominimo || entransito.contains(solicitud.cuenta)) {
+						// En transito el saldo aun no es visible: se decide al llegar la confirmacion
+						if (peticionesalertar.get(solicitud.cuenta) == null) {
+							peticionesalertar.put(solicitud.cuenta, new AlertasPorSaldo<AlertarReq>());
+						}
+						peticionesalertar.get(solicitud.cuenta).anadir(solicitud.saldominimo, solicitud);
+					} else {
+						solicitud.resp.out().write(1);
+					}
+					break;
+				}
+				case INTERNO: {
+					Object mensaje = chInterno.in().read();
+					if (mensaje instanceof AbonoMsg) {
+						// El dinero ya se ha reservado en el origen: se abona y se contesta al cliente
+						TransferirReq peticion = ((AbonoMsg) mensaje).peticion;
+						mapacuentas.put(peticion.destino, mapacuentas.get(peticion.destino) + peticion.dinero);
+						peticion.resp.out().write("hecho");
+						pendientes.enqueue(peticion.destino);
+						particion(peticion.origen).chInterno.out().write(new ConfirmadoMsg(peticion.origen));
+					} else if (mensaje instanceof ConfirmadoMsg) {
+						// El abono ya es visible: se contestan las lecturas diferidas y sigue la cola del origen
+						String cuenta = ((ConfirmadoMsg) mensaje).cuenta;
+						entransito.remove(cuenta);
+						FIFO<DisponibleReq> lecturas = lecturasdiferidas.remove(cuenta);
+						while (lecturas != null && !lecturas.isEmpty()) {
+							lecturas.dequeue().resp.out().write(mapacuentas.get(cuenta));
+						}
+						desbloquearalertar(cuenta);
+						pendientes.enqueue(cuenta);
+					} else if (mensaje instanceof ExisteMsg) {
+						// Un destino remoto ya existe, se reevaluan las peticiones que lo esperaban
+						String cuenta = ((ExisteMsg) mensaje).cuenta;
+						destinosconocidos.add(cuenta);
+						reevaluardestino(cuenta);
+					} else {
+						AvisoMsg aviso = (AvisoMsg) mensaje;
+						if (mapacuentas.containsKey(aviso.cuenta)) {
+							aviso.solicitante.chInterno.out().write(new ExisteMsg(aviso.cuenta));
+						} else {
+							if (suscritos.get(aviso.cuenta) == null) {
+								suscritos.put(aviso.cuenta, new FIFOList<particion>());
+							}
+							suscritos.get(aviso.cuenta).enqueue(aviso.solicitante);
+						}
+					}
+					break;
+				}
+				}
+				// Solo se reevaluan las cuentas afectadas por este paso
+				while (!pendientes.isEmpty()) {
+					desbloqueartransferencia(pendientes.dequeue());
+				}
+			}
+		}
+
+		// Metodo auxiliar que atiende, en orden de llegada, las peticiones de una cuenta origen que cumplen las CPREs
+		private void desbloqueartransferencia(String origen) {
+			FIFO<TransferirReq> lista = transferirpet.get(origen);
+			// Con un abono remoto sin confirmar la cola espera a la confirmacion
+			while (lista != null && !lista.isEmpty() && !entransito.contains(origen)) {
+				TransferirReq primerapet = lista.first();
+				// Se comprueba la 2 CPRE (destino no existe); se registra una sola vez para que su creacion nos reevalue
+				if (!existedestino(primerapet.destino)) {
+					if (!primerapet.registrada) {
+						primerapet.registrada = true;
+						if (esperandodestino.get(primerapet.destino) == null) {
+							esperandodestino.put(primerapet.destino, new FIFOList<String>());
+						}
+						esperandodestino.get(primerapet.destino).enqueue(origen);
+					}
+					return;
+				}
+				// Se comprueba la 1 y 3 CPRE (origen no existe o no hay suficiente dinero)
+				Integer saldo = mapacuentas.get(origen);
+				if (saldo == null || saldo < primerapet.dinero) {
+					return;
+				}
+				lista.dequeue();
+				// Se reserva el dinero en el origen
+				mapacuentas.put(origen, saldo - primerapet.dinero);
+				particion destino = particion(primerapet.destino);
+				if (destino == this) {
+					// Destino local: se abona directamente
+					mapacuentas.put(primerapet.destino, mapacuentas.get(primerapet.destino) + primerapet.dinero);
+					primerapet.resp.out().write("hecho");
+					pendientes.enqueue(primerapet.destino);
+					// El saldo del origen ha bajado, se liberan sus alertas cumplidas
+					desbloquearalertar(origen);
+				} else {
+					// Destino remoto: su particion abona y contesta al cliente; hasta que lo confirme el
+					// origen queda en transito y sus alertas se revisan al llegar la confirmacion
+					entransito.add(origen);
+					destino.chInterno.out().write(new AbonoMsg(primerapet));
+				}
+			}
+		}
+
+		// Metodo auxiliar que indica si existe el destino; si es remoto y no se sabe, se pide aviso
+		private boolean existedestino(String destino) {
+			particion propietaria = particion(destino);
+			if (propietaria == this) {
+				return mapacuentas.containsKey(destino);
+			}
+			if (destinosconocidos.contains(destino)) {
+				return true;
+			}
+			if (avisospedidos.add(destino)) {
+				propietaria.chInterno.out().write(new AvisoMsg(destino, this));
+			}
+			return false;
+		}
+
+		// Metodo auxiliar que se llama al crear una cuenta de esta particion
+		private void creada(String cuenta) {
+			FIFO<particion> lista = suscritos.remove(cuenta);
+			while (lista != null && !lista.isEmpty()) {
+				lista.dequeue().chInterno.out().write(new ExisteMsg(cuenta));
+			}
+			reevaluardestino(cuenta);
+		}
+
+		// Metodo auxiliar que marca para reevaluar las cuentas origen que esperaban a un destino
+		private void reevaluardestino(String cuenta) {
+			FIFO<String> origenes = esperandodestino.remove(cuenta);
+			while (origenes != null && !origenes.isEmpty()) {
+				pendientes.enqueue(origenes.dequeue());
+			}
+		}
+
+		// Metodo auxiliar que libera las alertas de una cuenta cuyo saldo ha bajado por debajo de su minimo
+		private void desbloquearalertar(String cuenta) {
+			AlertasPorSaldo<AlertarReq> alertas = peticionesalertar.get(cuenta);
+			if (alertas == null || alertas.isEmpty()) {
+				return;
+			}
+			FIFO<AlertarReq> liberadas = new FIFOList<AlertarReq>();
+			alertas.liberar(mapacuentas.get(cuenta), liberadas);
+			while (!liberadas.isEmpty()) {
+				liberadas.dequeue().resp.out().write(1);
+			}
+		}
+	}
+}
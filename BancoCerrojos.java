@@ -0,0 +1,442 @@
+package cc.banco;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+public class BancoCerrojos implements BancoLiquidacion {
+	// Numero de franjas por defecto
+	private static final int FRANJAS = 64;
+	// Un cerrojo por franja; cada cuenta pertenece a la franja indicada por su hash
+	private final ReentrantLock[] cerrojos;
+	// Mapa de cuentas. Solo la creacion de la entrada es concurrente, el contenido
+	// de cada cuenta se protege con el cerrojo de su franja
+	private final ConcurrentHashMap<String, cuenta> mapacuentas;
+
+	// constructor con el numero de franjas por defecto
+	public BancoCerrojos() {
+		this(FRANJAS);
+	}
+
+	// constructor para la inicializacion de los cerrojos y el mapa de cuentas
+	public BancoCerrojos(int franjas) {
+		if (franjas <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.cerrojos = new ReentrantLock[franjas];
+		for (int i = 0; i < franjas; i++) {
+			this.cerrojos[i] = new ReentrantLock();
+		}
+		this.mapacuentas = new ConcurrentHashMap<String, cuenta>();
+	}
+
+	public void ingresar(String c, int v) {
+		cuenta cuenta = obtener(c);
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		try {
+			if (cuenta.existe) {
+				// Se ingresa el dinero en la cuenta
+				cuenta.saldo += v;
+			} else {
+				// Se crea la cuenta con el valor correspondiente
+				cuenta.saldo = v;
+				cuenta.existe = true;
+				// Se despiertan las transferencias que esperaban a que existiera el destino
+				while (!cuenta.esperandodestino.isEmpty()) {
+					cuenta.esperandodestino.dequeue().despertar();
+				}
+			}
+			// Puede que la primera transferencia con esta cuenta de origen ya sea realizable
+			despertarprimera(cuenta);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		cuenta origen = obtener(o);
+		cuenta destino = obtener(d);
+		peticion peticion = new peticion(origen, destino, v);
+		int fo = franja(o);
+		int fd = franja(d);
+
+		bloquear(fo, fd);
+		try {
+			// Toda peticion se encola para respetar el orden de llegada por cuenta de origen
+			origen.peticionestrans.enqueue(peticion);
+			if (intentar(peticion)) {
+				return;
+			}
+		} finally {
+			desbloquear(fo, fd);
+		}
+		// No se cumple alguna CPRE: se espera sin cerrojos hasta que otra operacion nos despierte
+		while (true) {
+			peticion.esperar();
+			bloquear(fo, fd);
+			try {
+				if (intentar(peticion)) {
+					return;
+				}
+			} finally {
+				desbloquear(fo, fd);
+			}
+		}
+	}
+
+	public void liquidar(String[] c, int[] v) {
+		// Se comprueba PRE (cuentas repetidas, sin cargos o movimientos que no suman 0)
+		if (c.length != v.length) {
+			throw new IllegalArgumentException();
+		}
+		Set<String> distintas = new HashSet<String>();
+		long suma = 0;
+		boolean cargo = false;
+		// Un cargo de Integer.MIN_VALUE no lo cubre ningun saldo: su opuesto no cabe en un int
+		boolean minimo = false;
+		for (int i = 0; i < c.length; i++) {
+			if (!distintas.add(c[i])) {
+				throw new IllegalArgumentException();
+			}
+			suma += v[i];
+			cargo |= v[i] < 0;
+			minimo |= v[i] == Integer.MIN_VALUE;
+		}
+		if (!cargo || minimo || suma != 0) {
+			throw new IllegalArgumentException();
+		}
+		cuenta[] cuentas = new cuenta[c.length];
+		int[] franjas = new int[c.length];
+		for (int i = 0; i < c.length; i++) {
+			cuentas[i] = obtener(c[i]);
+			franjas[i] = franja(c[i]);
+		}
+		// Franjas distintas en orden creciente, el mismo orden en que se bloquean dos franjas
+		Arrays.sort(franjas);
+		int n = 0;
+		for (int i = 0; i < franjas.length; i++) {
+			if (n == 0 || franjas[n - 1] != franjas[i]) {
+				franjas[n++] = franjas[i];
+			}
+		}
+		franjas = Arrays.copyOf(franjas, n);
+		liquidacion liquidacion = new liquidacion(cuentas, v.clone());
+
+		bloquear(franjas);
+		try {
+			// Se encola en todas sus cuentas con cargo a la vez, asi ninguna espera circular es posible
+			for (int i = 0; i < cuentas.length; i++) {
+				if (v[i] < 0) {
+					cuentas[i].peticionestrans.enqueue(liquidacion);
+				}
+			}
+			if (intentar(liquidacion)) {
+				return;
+			}
+		} finally {
+			desbloquear(franjas);
+		}
+		// No se cumple alguna CPRE: se espera sin cerrojos hasta que otra operacion nos despierte
+		while (true) {
+			liquidacion.esperar();
+			bloquear(franjas);
+			try {
+				if (intentar(liquidacion)) {
+					return;
+				}
+			} finally {
+				desbloquear(franjas);
+			}
+		}
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		cuenta cuenta = mapacuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		try {
+			if (!cuenta.existe) {
+				throw new IllegalArgumentException();
+			}
+			return cuenta.saldo;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		cuenta cuenta = mapacuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		alerta alerta;
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		try {
+			if (!cuenta.existe) {
+				throw new IllegalArgumentException();
+			}
+			// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+			if (cuenta.saldo < m) {
+				return;
+			}
+			alerta = new alerta();
+			cuenta.alertas.anadir(m, alerta);
+		} finally {
+			cerrojo.unlock();
+		}
+		alerta.esperar();
+	}
+
+	// clase auxiliar con el estado de una cuenta, protegido por el cerrojo de su franja
+	private class cuenta {
+		// Indica si la cuenta ha sido creada por un ingreso (las peticiones pueden referirse a cuentas aun no creadas)
+		private volatile boolean existe;
+		// Dinero de la cuenta
+		private int saldo;
+		// Peticiones de transferencia con esta cuenta como origen, en orden de llegada
+		private final FIFO<peticion> peticionestrans = new FIFOList<peticion>();
+		// Primeras peticiones de otras cuentas que esperan a que esta cuenta exista como destino (o abono)
+		private final FIFO<peticion> esperandodestino = new FIFOList<peticion>();
+		// Alertas pendientes sobre esta cuenta ordenadas por saldo minimo
+		private final AlertasPorSaldo<alerta> alertas = new AlertasPorSaldo<alerta>();
+	}
+
+	// clase auxiliar que permite bloquear una peticion de transferencia fuera de los cerrojos
+	private class peticion {
+		// Cuenta de origen
+		private final cuenta origen;
+		// Cuenta de destino
+		private final cuenta destino;
+		// Dinero a transferir
+		private final int dinero;
+		// Indica si la peticion ya esta registrada en la espera de su destino
+		private boolean registrada;
+		// Semaforo por el que espera el hilo de la peticion
+		private final Semaphore espera = new Semaphore(0);
+
+		// Constructor del metodo auxiliar
+		public peticion(cuenta origen, cuenta destino, int dinero) {
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+		}
+		// Metodo auxiliar que bloquea al hilo de la peticion
+		public void esperar() {
+			espera.acquireUninterruptibly();
+			// Se descartan los avisos acumulados, la CPRE se vuelve a comprobar con los cerrojos
+			espera.drainPermits();
+		}
+		// Metodo auxiliar que despierta al hilo de la peticion
+		public void despertar() {
+			espera.release();
+		}
+	}
+
+	// clase auxiliar para una liquidacion, que esta en la cola de peticiones de cada cuenta con cargo
+	private class liquidacion extends peticion {
+		// Cuentas de la liquidacion
+		private final cuenta[] cuentas;
+		// Movimiento de cada cuenta (negativo si es un cargo)
+		private final int[] movimientos;
+		// Indica si ya esta registrada en la espera de cada cuenta con abono
+		private final boolean[] registradas;
+
+		// Constructor del metodo auxiliar
+		public liquidacion(cuenta[] cuentas, int[] movimientos) {
+			super(null, null, 0);
+			this.cuentas = cuentas;
+			this.movimientos = movimientos;
+			this.registradas = new boolean[cuentas.length];
+		}
+	}
+
+	// clase auxiliar para las alertas pendientes
+	private class alerta {
+		// Semaforo por el que espera el hilo del avisador
+		private final Semaphore espera = new Semaphore(0);
+
+		// Metodo auxiliar que bloquea al hilo del avisador
+		public void esperar() {
+			espera.acquireUninterruptibly();
+		}
+	}
+
+	// Metodo auxiliar que devuelve la entrada de una cuenta, creandola (sin existir aun) si hace falta
+	private cuenta obtener(String c) {
+		cuenta cuenta = mapacuentas.get(c);
+		if (cuenta == null) {
+			cuenta nueva = new cuenta();
+			cuenta = mapacuentas.putIfAbsent(c, nueva);
+			if (cuenta == null) {
+				cuenta = nueva;
+			}
+		}
+		return cuenta;
+	}
+
+	// Metodo auxiliar que devuelve la franja de una cuenta
+	private int franja(String c) {
+		return (c.hashCode() & 0x7fffffff) % cerrojos.length;
+	}
+
+	// Metodo auxiliar que adquiere los cerrojos de dos franjas siempre en orden creciente para evitar interbloqueos
+	private void bloquear(int f1, int f2) {
+		if (f1 == f2) {
+			cerrojos[f1].lock();
+		} else {
+			cerrojos[Math.min(f1, f2)].lock();
+			cerrojos[Math.max(f1, f2)].lock();
+		}
+	}
+
+	// Metodo auxiliar que libera los cerrojos de dos franjas
+	private void desbloquear(int f1, int f2) {
+		if (f1 == f2) {
+			cerrojos[f1].unlock();
+		} else {
+			cerrojos[Math.max(f1, f2)].unlock();
+			cerrojos[Math.min(f1, f2)].unlock();
+		}
+	}
+
+	// Metodo auxiliar que adquiere los cerrojos de varias franjas, distintas y en orden creciente
+	private void bloquear(int[] franjas) {
+		for (int i = 0; i < franjas.length; i++) {
+			cerrojos[franjas[i]].lock();
+		}
+	}
+
+	// Metodo auxiliar que libera los cerrojos de varias franjas
+	private void desbloquear(int[] franjas) {
+		for (int i = franjas.length - 1; i >= 0; i--) {
+			cerrojos[franjas[i]].unlock();
+		}
+	}
+
+	// Metodo auxiliar que realiza la transferencia si se cumplen las CPREs (con los dos cerrojos adquiridos)
+	private boolean intentar(peticion peticion) {
+		cuenta origen = peticion.origen;
+		cuenta destino = peticion.destino;
+		// Solo se puede atender la primera peticion de la cuenta origen (orden de llegada)
+		if (origen.peticionestrans.first() != peticion) {
+			return false;
+		}
+		// Se comprueba la 2 CPRE (destino no existe); se registra para que su creacion nos despierte
+		if (!destino.existe) {
+			if (!peticion.registrada) {
+				peticion.registrada = true;
+				destino.esperandodestino.enqueue(peticion);
+			}
+			return false;
+		}
+		// Se comprueba la 1 y 3 CPRE (origen no existe o no hay suficiente dinero)
+		if (!origen.existe || origen.saldo < peticion.dinero) {
+			return false;
+		}
+		// Se realiza la transferencia y se quita la peticion de la cola
+		origen.peticionestrans.dequeue();
+		origen.saldo -= peticion.dinero;
+		destino.saldo += peticion.dinero;
+		// Solo pueden haberse vuelto realizables las primeras peticiones de origen y destino
+		despertarprimera(origen);
+		despertarprimera(destino);
+		// El saldo del origen ha bajado, se comprueban sus alertas
+		desbloquearalertar(origen);
+		return true;
+	}
+
+	// Metodo auxiliar que realiza la liquidacion si se cumplen las CPREs (con los cerrojos de todas sus cuentas)
+	private boolean intentar(liquidacion liquidacion) {
+		cuenta[] cuentas = liquidacion.cuentas;
+		int[] movimientos = liquidacion.movimientos;
+		// Tiene que ser la primera peticion de todas sus cuentas con cargo (orden de llegada)
+		for (int i = 0; i < cuentas.length; i++) {
+			if (movimientos[i] < 0 && cuentas[i].peticionestrans.first() != liquidacion) {
+				return false;
+			}
+		}
+		// Todas las cuentas tienen que existir; se registra en las que faltan para que su creacion nos despierte
+		boolean existen = true;
+		for (int i = 0; i < cuentas.length; i++) {
+			if (!cuentas[i].existe) {
+				existen = false;
+				if (movimientos[i] >= 0 && !liquidacion.registradas[i]) {
+					liquidacion.registradas[i] = true;
+					cuentas[i].esperandodestino.enqueue(liquidacion);
+				}
+			}
+		}
+		if (!existen) {
+			return false;
+		}
+		// Cada cuenta con cargo tiene que tener suficiente dinero
+		for (int i = 0; i < cuentas.length; i++) {
+			if (movimientos[i] < 0 && cuentas[i].saldo < -movimientos[i]) {
+				return false;
+			}
+		}
+		// Se realizan todos los movimientos y se quita la liquidacion de las colas
+		for (int i = 0; i < cuentas.length; i++) {
+			if (movimientos[i] < 0) {
+				cuentas[i].peticionestrans.dequeue();
+			}
+			cuentas[i].saldo += movimientos[i];
+		}
+		for (int i = 0; i < cuentas.length; i++) {
+			despertarprimera(cuentas[i]);
+			// El saldo de las cuentas con cargo ha bajado, se comprueban sus alertas
+			if (movimientos[i] < 0) {
+				desbloquearalertar(cuentas[i]);
+			}
+		}
+		return true;
+	}
+
+	// Metodo auxiliar que despierta la primera peticion de una cuenta si puede ser realizable
+	private void despertarprimera(cuenta cuenta) {
+		if (cuenta.peticionestrans.isEmpty()) {
+			return;
+		}
+		peticion primerapet = cuenta.peticionestrans.first();
+		if (primerapet instanceof liquidacion) {
+			// Sus otras cuentas son de otras franjas: se despierta y lo comprueba con todos los cerrojos
+			primerapet.despertar();
+		} else if (!primerapet.destino.existe) {
+			// Si aun no se ha registrado en su destino debe despertar para hacerlo
+			if (!primerapet.registrada) {
+				primerapet.despertar();
+			}
+		} else if (cuenta.existe && primerapet.dinero <= cuenta.saldo) {
+			primerapet.despertar();
+		}
+	}
+
+	// Metodo auxiliar que desbloquea las alertas de una cuenta cuyo saldo este por debajo del minimo
+	private void desbloquearalertar(cuenta cuenta) {
+		if (cuenta.alertas.isEmpty()) {
+			return;
+		}
+		FIFO<alerta> liberadas = new FIFOList<alerta>();
+		cuenta.alertas.liberar(cuenta.saldo, liberadas);
+		while (!liberadas.isEmpty()) {
+			liberadas.dequeue().espera.release();
+		}
+	}
+}
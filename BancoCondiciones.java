@@ -0,0 +1,230 @@
+package cc.banco;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Banco con la misma organizacion que BancoMonitor pero sobre un
+ * ReentrantLock con una Condition por peticion bloqueada en lugar del
+ * Monitor de cclib. Las esperas aparcan el hilo con LockSupport, asi
+ * que un hilo virtual bloqueado en transferir o alertar libera su hilo
+ * portador y se pueden tener cientos de miles de peticiones en espera.
+ */
+public class BancoCondiciones implements Banco {
+	// Cerrojo del banco
+	private final ReentrantLock cerrojo;
+	// Mapa de cuentas y dinero de cada una
+	private final Map<String, Integer> mapacuentas;
+	// Peticiones de transferencia bloqueadas de cada cuenta origen, en orden de llegada
+	private final Map<String, FIFO<peticion>> peticionestrans;
+	// Peticiones que esperan a que se cree su cuenta de destino, indexadas por dicha cuenta
+	private final Map<String, FIFO<peticion>> esperandodestino;
+	// Alertas pendientes de cada cuenta ordenadas por saldo minimo
+	private final Map<String, AlertasPorSaldo<peticion>> peticionesalertar;
+	// Cuentas cuya primera peticion de transferencia hay que revisar antes de soltar el cerrojo
+	private final FIFO<String> pendientes;
+
+	// constructor para la inicializacion del cerrojo, mapas y cola
+	public BancoCondiciones() {
+		this.cerrojo = new ReentrantLock();
+		this.mapacuentas = new HashMap<String, Integer>();
+		this.peticionestrans = new HashMap<String, FIFO<peticion>>();
+		this.esperandodestino = new HashMap<String, FIFO<peticion>>();
+		this.peticionesalertar = new HashMap<String, AlertasPorSaldo<peticion>>();
+		this.pendientes = new FIFOList<String>();
+	}
+
+	public void ingresar(String c, int v) {
+		cerrojo.lock();
+		try {
+			Integer valorcuenta = mapacuentas.get(c);
+			if (valorcuenta != null) {
+				// Se ingresa el dinero en la cuenta
+				mapacuentas.put(c, valorcuenta + v);
+			} else {
+				// Se crea la cuenta y se revisan las transferencias que esperaban a que existiera
+				mapacuentas.put(c, v);
+				desbloqueardestino(c);
+			}
+			pendientes.enqueue(c);
+			desbloquearpendientes();
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		cerrojo.lock();
+		try {
+			Integer saldo = mapacuentas.get(o);
+			FIFO<peticion> lista = peticionestrans.get(o);
+			// Se comprueban las CPREs y que no haya peticiones anteriores con el mismo origen
+			if (saldo == null || !mapacuentas.containsKey(d) || saldo < v || (lista != null && !lista.isEmpty())) {
+				peticion pet = new peticion(o, d, v);
+				encolar(pet);
+				// Se espera hasta que otra operacion la libere (las esperas pueden despertar sin aviso)
+				while (!pet.liberada) {
+					pet.condicion.awaitUninterruptibly();
+				}
+				// Sigue siendo la primera de su cuenta: se quita de la lista
+				peticionestrans.get(o).dequeue();
+			}
+			// Si el codigo ha llegado aqui, se cumplen todas las CPREs
+			mapacuentas.put(o, mapacuentas.get(o) - v);
+			mapacuentas.put(d, mapacuentas.get(d) + v);
+			// Solo pueden desbloquearse las primeras transferencias del origen y del destino
+			pendientes.enqueue(o);
+			pendientes.enqueue(d);
+			desbloquearpendientes();
+			// El saldo del origen ha bajado, se comprueban sus alertas
+			desbloquearalertar(o);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		cerrojo.lock();
+		try {
+			Integer saldo = mapacuentas.get(c);
+			// Se comprueba PRE (si cuenta no existe)
+			if (saldo == null) {
+				throw new IllegalArgumentException();
+			}
+			return saldo;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		cerrojo.lock();
+		try {
+			Integer saldo = mapacuentas.get(c);
+			// Se comprueba PRE (si cuenta no existe)
+			if (saldo == null) {
+				throw new IllegalArgumentException();
+			}
+			// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+			if (saldo < m) {
+				return;
+			}
+			peticion peticionalerta = new peticion(c, c, m);
+			AlertasPorSaldo<peticion> alertas = peticionesalertar.get(c);
+			if (alertas == null) {
+				alertas = new AlertasPorSaldo<peticion>();
+				peticionesalertar.put(c, alertas);
+			}
+			alertas.anadir(m, peticionalerta);
+			while (!peticionalerta.liberada) {
+				peticionalerta.condicion.awaitUninterruptibly();
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// clase auxiliar para las peticiones bloqueadas (transferencias y alertas)
+	private class peticion {
+		// Cuenta de origen
+		private final String origen;
+		// Cuenta de destino
+		private final String destino;
+		// Dinero asociado a la peticion (valor minimo o dinero a transferir)
+		private final int dinero;
+		// Condicion por la que espera el hilo de la peticion
+		private final Condition condicion = cerrojo.newCondition();
+		// Indica si ya se ha avisado a la peticion; la CPRE no puede dejar de
+		// cumplirse hasta que su hilo recupere el cerrojo
+		private boolean liberada;
+
+		// Constructor del metodo auxiliar
+		public peticion(String origen, String destino, int dinero) {
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+		}
+		// Metodo auxiliar que despierta al hilo de la peticion
+		public void despertar() {
+			liberada = true;
+			condicion.signal();
+		}
+	}
+
+	// Metodo auxiliar que encola una peticion de transferencia en la lista de su cuenta origen
+	// y, si su destino aun no existe, en la espera de dicho destino
+	private void encolar(peticion pet) {
+		FIFO<peticion> lista = peticionestrans.get(pet.origen);
+		if (lista == null) {
+			lista = new FIFOList<peticion>();
+			peticionestrans.put(pet.origen, lista);
+		}
+		lista.enqueue(pet);
+		if (!mapacuentas.containsKey(pet.destino)) {
+			FIFO<peticion> espera = esperandodestino.get(pet.destino);
+			if (espera == null) {
+				espera = new FIFOList<peticion>();
+				esperandodestino.put(pet.destino, espera);
+			}
+			espera.enqueue(pet);
+		}
+	}
+
+	// Metodo auxiliar que revisa las cuentas pendientes hasta que no quede ninguna
+	private void desbloquearpendientes() {
+		while (!pendientes.isEmpty()) {
+			desbloqueartransferencia(pendientes.dequeue());
+		}
+	}
+
+	// Metodo auxiliar que despierta la primera peticion de transferencia de una cuenta origen
+	// si ya cumple las CPREs. Las demas esperan por orden de llegada
+	private void desbloqueartransferencia(String cuenta) {
+		FIFO<peticion> lista = peticionestrans.get(cuenta);
+		if (lista == null || lista.isEmpty()) {
+			return;
+		}
+		peticion primerapet = lista.first();
+		// Si ya se ha liberado, su hilo aun no ha realizado la transferencia
+		if (primerapet.liberada) {
+			return;
+		}
+		Integer saldo = mapacuentas.get(cuenta);
+		if (saldo != null && mapacuentas.containsKey(primerapet.destino) && primerapet.dinero <= saldo) {
+			primerapet.despertar();
+		}
+	}
+
+	// Metodo auxiliar que revisa las peticiones que esperaban a que se creara la cuenta de destino
+	private void desbloqueardestino(String cuenta) {
+		FIFO<peticion> lista = esperandodestino.remove(cuenta);
+		if (lista == null) {
+			return;
+		}
+		while (!lista.isEmpty()) {
+			pendientes.enqueue(lista.dequeue().origen);
+		}
+	}
+
+	// Metodo auxiliar que despierta las alertas de una cuenta cuyo saldo ha bajado del minimo
+	private void desbloquearalertar(String cuenta) {
+		AlertasPorSaldo<peticion> alertas = peticionesalertar.get(cuenta);
+		if (alertas == null || alertas.isEmpty()) {
+			return;
+		}
+		FIFO<peticion> liberadas = new FIFOList<peticion>();
+		alertas.liberar(mapacuentas.get(cuenta), liberadas);
+		while (!liberadas.isEmpty()) {
+			liberadas.dequeue().despertar();
+		}
+	}
+}
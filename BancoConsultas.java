@@ -0,0 +1,24 @@
+package cc.banco;
+
+import java.util.Collection;
+import java.util.Map;
+
+public interface BancoConsultas extends Banco {
+  /**
+   * Devuelve los saldos de varias cuentas tal como estaban todos en un
+   * mismo instante, sin detener los ingresos y transferencias que
+   * lleguen mientras se leen.
+   * @param c números de cuenta
+   * @return saldo de cada cuenta de c que existia en ese instante (las
+   * que no existian no aparecen)
+   */
+  Map<String, Integer> saldos(Collection<String> c);
+
+  /**
+   * Devuelve la suma de los saldos de todas las cuentas tal como
+   * estaban en un mismo instante, sin detener los ingresos y
+   * transferencias que lleguen mientras se suman.
+   * @return suma de los saldos
+   */
+  long totalSaldos();
+}
@@ -0,0 +1,163 @@
+package cc.banco;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Banco repartido entre varios procesos NodoBanco que se comunican por
+ * TCP. Cada cuenta pertenece a un nodo (ver nodo) y cada operacion se
+ * envia al nodo de su cuenta, el del origen en transferir; las
+ * transferencias entre nodos las coordina el nodo origen en dos fases
+ * (ver NodoBanco). Mantiene la semantica de Banco: transferir bloquea
+ * hasta que el destino exista y el origen tenga saldo, en orden de
+ * llegada por cuenta origen.
+ *
+ * Con local(n, motor) se lanzan n nodos en esta maquina (interfaz local)
+ * para probar y medir sin mas infraestructura.
+ */
+public class BancoDistribuido implements Banco, AutoCloseable {
+	// Conexion con cada nodo
+	private final Conexion[] conexiones;
+	// Procesos de los nodos lanzados por local (vacio si los nodos ya estaban en marcha)
+	private final List<Process> procesos;
+
+	/**
+	 * Se conecta a nodos ya en marcha.
+	 * @param nodos direcciones de los nodos, en el orden de sus indices
+	 * @throws IllegalStateException si no se puede conectar con alguno
+	 */
+	public BancoDistribuido(InetSocketAddress[] nodos) {
+		this(nodos, new ArrayList<Process>());
+	}
+
+	// constructor que se queda con los procesos lanzados para terminarlos al cerrar
+	private BancoDistribuido(InetSocketAddress[] nodos, List<Process> procesos) {
+		if (nodos.length == 0) {
+			throw new IllegalArgumentException();
+		}
+		this.conexiones = new Conexion[nodos.length];
+		this.procesos = procesos;
+		try {
+			for (int i = 0; i < nodos.length; i++) {
+				conexiones[i] = new Conexion(nodos[i]);
+			}
+		} catch (IOException exc) {
+			close();
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/**
+	 * Lanza n procesos NodoBanco en esta maquina con el mismo classpath
+	 * y se conecta a ellos. close() los termina.
+	 * @param n numero de nodos
+	 * @param motor motor local de cada nodo (ver Motores)
+	 * @return el banco conectado a los nodos
+	 * @throws IllegalStateException si algun nodo no llega a arrancar
+	 */
+	public static BancoDistribuido local(int n, String motor) {
+		if (n <= 0) {
+			throw new IllegalArgumentException();
+		}
+		List<Process> procesos = new ArrayList<Process>();
+		try {
+			InetSocketAddress[] nodos = new InetSocketAddress[n];
+			StringBuilder puertos = new StringBuilder();
+			for (int i = 0; i < n; i++) {
+				// Se pide al sistema un puerto libre; el nodo lo ocupa enseguida
+				try (ServerSocket libre = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+					nodos[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), libre.getLocalPort());
+				}
+				puertos.append(i == 0 ? "" : ",").append(nodos[i].getPort());
+			}
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int i = 0; i < n; i++) {
+				procesos.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+												"cc.banco.NodoBanco", String.valueOf(i), puertos.toString(), motor)
+							 .redirectError(ProcessBuilder.Redirect.INHERIT)
+							 .start());
+			}
+			// Se espera a que todos escuchen antes de conectarse
+			for (Process proceso : procesos) {
+				BufferedReader salida = new BufferedReader(new InputStreamReader(proceso.getInputStream(), StandardCharsets.UTF_8));
+				if (!"LISTO".equals(salida.readLine())) {
+					throw new IOException("Un nodo no ha arrancado");
+				}
+			}
+			return new BancoDistribuido(nodos, procesos);
+		} catch (IOException | RuntimeException exc) {
+			for (Process proceso : procesos) {
+				proceso.destroy();
+			}
+			throw exc instanceof RuntimeException ? (RuntimeException) exc : new IllegalStateException(exc);
+		}
+	}
+
+	/**
+	 * Devuelve el nodo propietario de una cuenta.
+	 * @param c número de cuenta
+	 * @param n numero de nodos
+	 * @return indice del nodo (0..n-1)
+	 */
+	public static int nodo(String c, int n) {
+		return (c.hashCode() & 0x7fffffff) % n;
+	}
+
+	/**
+	 * @return numero de nodos del banco
+	 */
+	public int nodos() {
+		return conexiones.length;
+	}
+
+	public void ingresar(String c, int v) {
+		conexion(c).llamar(Conexion.INGRESAR, c, null, v);
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		conexion(o).llamar(Conexion.TRANSFERIR, o, d, v);
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		return conexion(c).llamar(Conexion.DISPONIBLE, c, null, 0);
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		conexion(c).llamar(Conexion.ALERTAR, c, null, m);
+	}
+
+	/**
+	 * Cierra las conexiones y termina los nodos lanzados por local.
+	 */
+	public void close() {
+		for (Conexion conexion : conexiones) {
+			if (conexion != null) {
+				try {
+					conexion.close();
+				} catch (IOException exc) {
+					// Se cierra igualmente el resto
+				}
+			}
+		}
+		for (Process proceso : procesos) {
+			proceso.destroy();
+		}
+	}
+
+	// Metodo auxiliar que devuelve la conexion con el nodo de una cuenta
+	private Conexion conexion(String c) {
+		return conexiones[nodo(c, conexiones.length)];
+	}
+}
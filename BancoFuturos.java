@@ -0,0 +1,323 @@
+package cc.banco;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Banco asincrono con la organizacion de BancoCondiciones, pero las
+ * peticiones bloqueadas son futuros en lugar de hilos esperando: la
+ * operacion que cumple la CPRE de una transferencia la realiza ella
+ * misma y completa su futuro. Los futuros se completan despues de
+ * soltar el cerrojo, asi las acciones encadenadas a ellos pueden volver
+ * a llamar al banco.
+ */
+public class BancoFuturos implements BancoAsincrono {
+	// Cerrojo del banco; nunca se espera con el adquirido
+	private final ReentrantLock cerrojo;
+	// Registro de cuentas y dinero de cada una
+	private final RegistroCuentas mapacuentas;
+	// Peticiones de transferencia pendientes de cada cuenta origen, en orden de llegada
+	private final Map<String, FIFO<peticion>> peticionestrans;
+	// Peticiones que esperan a que se cree su cuenta de destino, indexadas por dicha cuenta
+	private final Map<String, FIFO<peticion>> esperandodestino;
+	// Alertas pendientes de cada cuenta ordenadas por saldo minimo
+	private final Map<String, AlertasPorSaldo<peticion>> peticionesalertar;
+	// Cuentas cuya primera peticion de transferencia hay que revisar antes de soltar el cerrojo
+	private final FIFO<String> pendientes;
+	// Peticiones cumplidas cuyo futuro se completa al soltar el cerrojo
+	private FIFO<peticion> cumplidas;
+	// Alertas guardadas en peticionesalertar, incluidas las ya retiradas
+	private int alertasguardadas;
+	// Alertas retiradas (canceladas o caducadas) que siguen en peticionesalertar
+	private int alertasretiradas;
+
+	// constructor para la inicializacion del cerrojo, mapas y colas
+	public BancoFuturos() {
+		this.cerrojo = new ReentrantLock();
+		this.mapacuentas = new RegistroCuentas();
+		this.peticionestrans = new HashMap<String, FIFO<peticion>>();
+		this.esperandodestino = new HashMap<String, FIFO<peticion>>();
+		this.peticionesalertar = new HashMap<String, AlertasPorSaldo<peticion>>();
+		this.pendientes = new FIFOList<String>();
+		this.cumplidas = new FIFOList<peticion>();
+	}
+
+	public CompletableFuture<Void> ingresarAsync(String c, int v) {
+		cerrojo.lock();
+		int hueco = mapacuentas.hueco(c);
+		if (hueco >= 0) {
+			// Se ingresa el dinero en la cuenta
+			mapacuentas.sumar(hueco, v);
+		} else {
+			// Se crea la cuenta y se revisan las transferencias que esperaban a que existiera
+			mapacuentas.crear(c, v);
+			desbloqueardestino(c);
+		}
+		revisar(c);
+		desbloquearpendientes();
+		soltar();
+		return CompletableFuture.completedFuture(null);
+	}
+
+	public CompletableFuture<Void> transferirAsync(String o, String d, int v) {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
+		}
+		peticion pet = new peticion(o, d, v, false);
+		cerrojo.lock();
+		int ho = mapacuentas.hueco(o);
+		int hd = mapacuentas.hueco(d);
+		FIFO<peticion> lista = peticionestrans.get(o);
+		// Se comprueban las CPREs y que no haya peticiones anteriores con el mismo origen
+		if (ho >= 0 && hd >= 0 && mapacuentas.saldo(ho) >= v && (lista == null || lista.isEmpty())) {
+			pet.decidida = true;
+			cumplidas.enqueue(pet);
+			aplicartransferencia(ho, hd, pet);
+			desbloquearpendientes();
+		} else {
+			// Queda pendiente hasta que otra operacion cumpla sus CPREs
+			encolar(pet);
+		}
+		soltar();
+		return pet;
+	}
+
+	public CompletableFuture<Integer> disponibleAsync(String c) {
+		cerrojo.lock();
+		int hueco = mapacuentas.hueco(c);
+		int saldo = hueco >= 0 ? mapacuentas.saldo(hueco) : 0;
+		soltar();
+		// Se comprueba PRE (si cuenta no existe)
+		if (hueco < 0) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
+		}
+		return CompletableFuture.completedFuture(saldo);
+	}
+
+	public CompletableFuture<Void> alertarAsync(String c, int m) {
+		cerrojo.lock();
+		int hueco = mapacuentas.hueco(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (hueco < 0) {
+			soltar();
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
+		}
+		// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+		if (mapacuentas.saldo(hueco) < m) {
+			soltar();
+			return CompletableFuture.completedFuture(null);
+		}
+		peticion pet = new peticion(c, c, m, true);
+		AlertasPorSaldo<peticion> alertas = peticionesalertar.get(c);
+		if (alertas == null) {
+			alertas = new AlertasPorSaldo<peticion>();
+			peticionesalertar.put(c, alertas);
+		}
+		alertas.anadir(m, pet);
+		alertasguardadas++;
+		soltar();
+		return pet;
+	}
+
+	// clase auxiliar para las peticiones pendientes: es el propio futuro que recibe el cliente.
+	// Completarlo desde fuera (cancel, orTimeout...) retira la peticion si aun no se ha realizado
+	private class peticion extends CompletableFuture<Void> {
+		// Cuenta de origen
+		private final String origen;
+		// Cuenta de destino
+		private final String destino;
+		// Dinero asociado a la peticion (valor minimo o dinero a transferir)
+		private final int dinero;
+		// Indica si es una alerta
+		private final boolean alerta;
+		// Indica si ya se ha decidido, dentro del cerrojo, si se realiza o se retira
+		private boolean decidida;
+
+		// Constructor del metodo auxiliar
+		private peticion(String origen, String destino, int dinero, boolean alerta) {
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+			this.alerta = alerta;
+		}
+		public boolean complete(Void valor) {
+			return retirar(this) && super.complete(valor);
+		}
+		public boolean completeExceptionally(Throwable exc) {
+			return retirar(this) && super.completeExceptionally(exc);
+		}
+		public boolean cancel(boolean interrumpir) {
+			return retirar(this) && super.cancel(interrumpir);
+		}
+		// Metodo auxiliar que completa el futuro de una peticion ya realizada
+		private void completar() {
+			super.complete(null);
+		}
+	}
+
+	// Metodo auxiliar que suelta el cerrojo y despues completa las peticiones cumplidas
+	private void soltar() {
+		FIFO<peticion> completar = null;
+		if (!cumplidas.isEmpty()) {
+			completar = cumplidas;
+			cumplidas = new FIFOList<peticion>();
+		}
+		cerrojo.unlock();
+		if (completar != null) {
+			while (!completar.isEmpty()) {
+				completar.dequeue().completar();
+			}
+		}
+	}
+
+	// Metodo auxiliar que retira una peticion pendiente; devuelve false si ya estaba decidida
+	private boolean retirar(peticion pet) {
+		cerrojo.lock();
+		boolean retirada = !pet.decidida;
+		if (retirada) {
+			pet.decidida = true;
+			if (pet.alerta) {
+				// Se deja en su cuenta y se descarta al liberarla o al compactar
+				alertasretiradas++;
+				if (2 * alertasretiradas > alertasguardadas) {
+					compactaralertas();
+				}
+			} else {
+				// Se descarta al llegar a la cabeza; si ya lo era, la siguiente puede ser realizable
+				revisar(pet.origen);
+				desbloquearpendientes();
+			}
+		}
+		soltar();
+		return retirada;
+	}
+
+	// Metodo auxiliar que realiza una transferencia que ya cumple las CPREs
+	private void aplicartransferencia(int ho, int hd, peticion pet) {
+		mapacuentas.sumar(ho, -pet.dinero);
+		mapacuentas.sumar(hd, pet.dinero);
+		// Solo pueden desbloquearse las primeras transferencias del origen y del destino
+		revisar(pet.origen);
+		revisar(pet.destino);
+		// El saldo del origen ha bajado, se comprueban sus alertas
+		desbloquearalertar(pet.origen);
+	}
+
+	// Metodo auxiliar que encola una peticion de transferencia en la lista de su cuenta origen
+	// y, si su destino aun no existe, en la espera de dicho destino
+	private void encolar(peticion pet) {
+		FIFO<peticion> lista = peticionestrans.get(pet.origen);
+		if (lista == null) {
+			lista = new FIFOList<peticion>();
+			peticionestrans.put(pet.origen, lista);
+		}
+		lista.enqueue(pet);
+		if (!mapacuentas.existe(pet.destino)) {
+			FIFO<peticion> espera = esperandodestino.get(pet.destino);
+			if (espera == null) {
+				espera = new FIFOList<peticion>();
+				esperandodestino.put(pet.destino, espera);
+			}
+			espera.enqueue(pet);
+		}
+	}
+
+	// Metodo auxiliar que anade una cuenta a las pendientes solo si tiene transferencias pendientes
+	private void revisar(String cuenta) {
+		FIFO<peticion> lista = peticionestrans.get(cuenta);
+		if (lista != null && !lista.isEmpty()) {
+			pendientes.enqueue(cuenta);
+		}
+	}
+
+	// Metodo auxiliar que revisa las cuentas pendientes hasta que no quede ninguna
+	private void desbloquearpendientes() {
+		while (!pendientes.isEmpty()) {
+			desbloqueartransferencia(pendientes.dequeue());
+		}
+	}
+
+	// Metodo auxiliar que realiza la primera peticion de transferencia de una cuenta origen
+	// si ya cumple las CPREs. Las demas esperan por orden de llegada
+	private void desbloqueartransferencia(String cuenta) {
+		FIFO<peticion> lista = peticionestrans.get(cuenta);
+		if (lista == null) {
+			return;
+		}
+		// Se descartan las primeras peticiones si ya se retiraron
+		while (!lista.isEmpty() && lista.first().decidida) {
+			lista.dequeue();
+		}
+		if (lista.isEmpty()) {
+			return;
+		}
+		peticion primerapet = lista.first();
+		int ho = mapacuentas.hueco(cuenta);
+		int hd = mapacuentas.hueco(primerapet.destino);
+		if (ho < 0 || hd < 0 || primerapet.dinero > mapacuentas.saldo(ho)) {
+			return;
+		}
+		lista.dequeue();
+		primerapet.decidida = true;
+		cumplidas.enqueue(primerapet);
+		aplicartransferencia(ho, hd, primerapet);
+	}
+
+	// Metodo auxiliar que revisa las peticiones que esperaban a que se creara la cuenta de destino
+	private void desbloqueardestino(String cuenta) {
+		FIFO<peticion> lista = esperandodestino.remove(cuenta);
+		if (lista == null) {
+			return;
+		}
+		while (!lista.isEmpty()) {
+			peticion pet = lista.dequeue();
+			if (!pet.decidida) {
+				pendientes.enqueue(pet.origen);
+			}
+		}
+	}
+
+	// Metodo auxiliar que cumple las alertas de una cuenta cuyo saldo ha bajado del minimo
+	private void desbloquearalertar(String cuenta) {
+		AlertasPorSaldo<peticion> alertas = peticionesalertar.get(cuenta);
+		if (alertas == null || alertas.isEmpty()) {
+			return;
+		}
+		FIFO<peticion> liberadas = new FIFOList<peticion>();
+		alertasguardadas -= alertas.liberar(mapacuentas.saldo(mapacuentas.hueco(cuenta)), liberadas);
+		while (!liberadas.isEmpty()) {
+			peticion pet = liberadas.dequeue();
+			if (pet.decidida) {
+				alertasretiradas--;
+			} else {
+				pet.decidida = true;
+				cumplidas.enqueue(pet);
+			}
+		}
+	}
+
+	// Metodo auxiliar que quita de todas las cuentas las alertas retiradas. Se llama cuando son
+	// mas de la mitad de las guardadas, asi su coste se reparte entre las retiradas
+	private void compactaralertas() {
+		FIFO<peticion> todas = new FIFOList<peticion>();
+		alertasguardadas = 0;
+		for (AlertasPorSaldo<peticion> alertas : peticionesalertar.values()) {
+			// Se sacan todas (ningun minimo es menor que Integer.MIN_VALUE) y se vuelven a anadir las vivas
+			alertas.liberar(Integer.MIN_VALUE, todas);
+			while (!todas.isEmpty()) {
+				peticion pet = todas.dequeue();
+				if (!pet.decidida) {
+					alertas.anadir(pet.dinero, pet);
+				}
+			}
+			alertasguardadas += alertas.size();
+		}
+		alertasretiradas = 0;
+	}
+}
@@ -0,0 +1,21 @@
+package cc.banco;
+
+public interface BancoLiquidacion extends Banco {
+  /**
+   * Un liquidador realiza de una vez, de forma atomica, los movimientos
+   * v[i] sobre las cuentas c[i]: un valor negativo es un cargo y uno
+   * positivo (o 0) un abono. Ninguna otra operacion ve un estado
+   * intermedio de la liquidacion.
+   *
+   * Bloquea como transferir hasta que todas las cuentas existen y cada
+   * cuenta con cargo tiene saldo suficiente. Con cada cuenta con cargo
+   * la liquidacion se trata como una transferencia mas con esa cuenta
+   * de origen, por orden de llegada.
+   * @param c números de cuenta, sin repetir
+   * @param v movimientos de cada cuenta
+   * @throws IllegalArgumentException si c y v no tienen la misma longitud,
+   * hay cuentas repetidas, no hay ningun cargo, algun cargo es
+   * Integer.MIN_VALUE o los movimientos no suman 0
+   */
+  void liquidar(String[] c, int[] v);
+}
@@ -0,0 +1,42 @@
+package cc.banco;
+
+public interface BancoLotes extends Banco {
+  /**
+   * Resultado de cada operacion de un lote.
+   */
+  enum Resultado {
+    /** La operacion se ha realizado dentro del propio lote. */
+    APLICADA,
+    /** La transferencia no cumplia las CPREs y queda pendiente; la
+     *  realizara el banco cuando se cumplan, sin hilo esperando. */
+    ENCOLADA,
+    /** La operacion no cumple la PRE y no se realiza. */
+    RECHAZADA
+  }
+
+  /**
+   * Un cajero ingresa de una vez un lote de valores v[i] en las
+   * cuentas c[i], con un unico acceso exclusivo al banco. Las cuentas
+   * que no existen se crean.
+   * @param c números de cuenta
+   * @param v valores a ingresar
+   * @return resultado de cada ingreso (siempre APLICADA)
+   * @throws IllegalArgumentException si c y v no tienen la misma longitud
+   */
+  Resultado[] ingresarLote(String[] c, int[] v);
+
+  /**
+   * Un ordenante pide de una vez un lote de transferencias de v[i]
+   * desde o[i] a d[i], con un unico acceso exclusivo al banco. Las
+   * transferencias se tratan en el orden del lote y ninguna bloquea
+   * al llamante: las que no cumplen las CPREs quedan encoladas tras
+   * las anteriores de su cuenta origen.
+   * @param o números de cuenta origen
+   * @param d números de cuenta destino
+   * @param v valores a transferir
+   * @return resultado de cada transferencia (RECHAZADA si o[i] y d[i]
+   * son la misma cuenta)
+   * @throws IllegalArgumentException si o, d y v no tienen la misma longitud
+   */
+  Resultado[] transferirLote(String[] o, String[] d, int[] v);
+}
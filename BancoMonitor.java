@@ -1,51 +1,124 @@
 package cc.banco;
 
 
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
-import es.upm.aedlib.priorityqueue.HeapPriorityQueue;
-import es.upm.aedlib.priorityqueue.PriorityQueue;
 import es.upm.babel.cclib.Monitor;
-import es.upm.aedlib.Entry;
 import es.upm.aedlib.fifo.*;
 
-public class BancoMonitor implements Banco {
+public class BancoMonitor implements BancoLotes, BancoConsultas {
 	// Monitor para la organizacion de procesos del programa
 	private Monitor mutex;
-	// Mapa para organizar cuentas y cantidad de dinero
-	private Map<String, Integer> mapacuentas;
+	// Registro de cuentas y cantidad de dinero (saldos sin objetos Integer). disponible
+	// puede leerlo sin entrar en el monitor validando con la version
+	private RegistroCuentas mapacuentas;
+	// Indica si disponible se atiende sin entrar en el monitor
+	private final boolean lecturasinmonitor;
+	// Version de mapacuentas: impar mientras una transferencia o una creacion de cuenta esta a medias
+	private volatile int version;
+	// Intentos de lectura sin monitor antes de entrar en el
+	private static final int REINTENTOS = 64;
+	// Cuentas que se copian en cada entrada al monitor al guardar una instantanea
+	private static final int TROZO = 1 << 16;
+	// Bits de hueco de cada pagina de saldos anteriores de una consulta
+	private static final int PAGINA = 10;
+	// Consultas de saldos en curso. Antes de cambiar un saldo se guarda en cada una el que
+	// tenia la cuenta al empezar la consulta; se sustituye entero (con el monitor) al cambiar
+	private volatile consulta[] consultas = new consulta[0];
 	// Mapa que indica si hay una cuenta bloqueada y peticiones asociadas a dicha cuenta.
 	private Map<String, FIFO<peticion>> peticionestrans;
-	// Cola de prioridad para organizar las alertas en orden de llegada.
-	private PriorityQueue<Integer, peticion> peticionesalertar;
+	// Mapa con las peticiones que esperan a que se cree su cuenta de destino, indexadas por dicha cuenta.
+	private Map<String, FIFO<peticion>> esperandodestino;
+	// Alertas pendientes de cada cuenta ordenadas por saldo minimo.
+	private Map<String, AlertasPorSaldo<peticion>> peticionesalertar;
+	// Cuentas cuya primera peticion de transferencia hay que revisar antes de salir del monitor
+	private FIFO<String> pendientes;
+	// Peticiones ya liberadas cuyo hilo aun no se ha despertado. cclib no admite varias senales
+	// pendientes, asi que cada salida del monitor despierta solo a la primera y esta, al salir,
+	// despierta a la siguiente
+	private FIFO<peticion> despertar;
+	// Diario donde se anotan las operaciones realizadas (null si el banco no es duradero)
+	private final Diario diario;
+	// Destino de las medidas internas (null si no se mide)
+	private volatile Metricas metricas;
 
-	// constructor para la inicializacion de monitor, mapas y cola.
+	// constructor con las lecturas dentro del monitor
 	public BancoMonitor() {
-		this.mapacuentas = new HashMap<String, Integer>();
+		this(false);
+	}
+
+	// constructor sin diario
+	public BancoMonitor(boolean lecturasinmonitor) {
+		this(lecturasinmonitor, null);
+	}
+
+	// constructor de un banco duradero: los saldos se reconstruyen con el diario
+	public BancoMonitor(Diario diario) {
+		this(false, diario);
+	}
+
+	// constructor para la inicializacion de monitor, mapas y cola.
+	public BancoMonitor(boolean lecturasinmonitor, Diario diario) {
+		this.lecturasinmonitor = lecturasinmonitor;
+		this.diario = diario;
+		this.version = 0;
+		this.mapacuentas = new RegistroCuentas();
 		this.peticionestrans = new HashMap<String, FIFO<peticion>>();
-		this.peticionesalertar = new HeapPriorityQueue<Integer, peticion>();
+		this.esperandodestino = new HashMap<String, FIFO<peticion>>();
+		this.peticionesalertar = new HashMap<String, AlertasPorSaldo<peticion>>();
+		this.pendientes = new FIFOList<String>();
+		this.despertar = new FIFOList<peticion>();
 		this.mutex = new Monitor();
+		if (diario != null) {
+			diario.reproducir(mapacuentas);
+		}
+	}
+
+	/**
+	 * Empieza a enviar medidas internas (operaciones, esperas, pendientes y
+	 * revisiones) a metricas; null deja de medir.
+	 */
+	public void medir(Metricas metricas) {
+		this.metricas = metricas;
 	}
 
 	public void ingresar(String c, int v) {
+		long comienzo = comienzo();
 		mutex.enter();
+		int hueco = mapacuentas.hueco(c);
+		// Indica si el ingreso crea la cuenta
+		boolean nueva = hueco < 0;
 		// Comprueba si la cuenta existe
-		if (mapacuentas.containsKey(c)) {
-			int valorcuenta = mapacuentas.get(c);
+		if (!nueva) {
 			// Se ingresa el dinero en la cuenta
-			mapacuentas.put(c, valorcuenta + v);
+			sumar(hueco, v);
+			if (diario != null) {
+				diario.anotarIngreso(hueco, v);
+			}
 		} else {
 			// Se crea la cuenta con el valor correspondiente.
-			mapacuentas.put(c, v);
+			crearcuenta(c, v);
 		}
 		// Se llama a metodo correspondiente para ver si podemos desbloquear alguna transferencia
-		desbloqueartransferencia();
+		// (solo las que esperaban a que la cuenta existiera y la primera con la cuenta como origen)
+		if (nueva) {
+			desbloqueardestino(c);
+		}
+		revisar(c);
+		desbloquearpendientes();
 
-		mutex.leave();
+		salir();
+		terminar(Metricas.Operacion.INGRESAR, comienzo);
 	}
 
 	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		long comienzo = comienzo();
 		mutex.enter();
 		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
 		if (o.equals(d)) {
@@ -54,140 +127,316 @@ public class BancoMonitor implements Banco {
 		}
 		// Variable para asegurar que solo haya un .await() por cada hilo
 		boolean signal = true;
+		int ho = mapacuentas.hueco(o);
+		int hd = mapacuentas.hueco(d);
 		// Se comprueba si no se cumple la 1 CPRE (origen no existe)
-		if (signal && !mapacuentas.containsKey(o)) {
+		if (signal && ho < 0) {
 			signal = false;
 			// Se genera peticion con origen, destino y valor a transferir
 			peticion noorigen = new peticion(o, d, v);
-			// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-			if(peticionestrans.get(o)==null) {
-				// Como no existe, se crea una lista de peticiones para dicha cuenta
-				FIFO<peticion> listapet = new FIFOList<peticion>();
-				// Se encola la peticion a la lista
-				listapet.enqueue(noorigen);
-				// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-				peticionestrans.put(o, listapet);
-			}
-			else {
-			// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-			peticionestrans.get(o).enqueue(noorigen);
-			}
+			// Se encola la peticion en la lista de la cuenta origen
+			encolar(noorigen);
 			// Se bloquea la condicion de la peticion
+			long espera = comienzo();
 			noorigen.condicion.await();
+			bloqueada(Metricas.Causa.ORIGEN_NO_EXISTE, espera);
 		}
 		// Se comprueba si no se cumple la 2 CPRE (destino no existe)
-		if (signal && !mapacuentas.containsKey(d)) {
+		if (signal && hd < 0) {
 			signal = false;
 			// Se genera peticion con origen, destino y valor a transferir
 			peticion nodestino = new peticion(o, d, v);
-			// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-			if(peticionestrans.get(o)==null) {
-				// Como no existe, se crea una lista de peticiones para dicha cuenta
-				FIFO<peticion> listapet = new FIFOList<peticion>();
-				// Se encola la peticion en la lista
-				listapet.enqueue(nodestino);
-				// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-				peticionestrans.put(o, listapet);
-			}
-			else {
-			// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-			peticionestrans.get(o).enqueue(nodestino);
-			}
+			// Se encola la peticion en la lista de la cuenta origen
+			encolar(nodestino);
 			// Se bloquea la condicion de la peticion
+			long espera = comienzo();
 			nodestino.condicion.await();
+			bloqueada(Metricas.Causa.DESTINO_NO_EXISTE, espera);
 		}
 		// Se comprueba si no se cumple la 3 CPRE (no hay suficiente dinero en origen)
-		if (signal && mapacuentas.get(o) < v) {
+		if (signal && mapacuentas.saldo(ho) < v) {
 			signal = false;
 			// Se genera peticion con origen, destino y valor a transferir
 			peticion valormenor = new peticion(o, d, v);
-			// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-			if(peticionestrans.get(o)==null) {
-				// Como no existe, se crea una lista de peticiones para dicha cuenta
-				FIFO<peticion> listapet = new FIFOList<peticion>();
-				// Se encola la peticion en la lista
-				listapet.enqueue(valormenor);
-				// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-				peticionestrans.put(o, listapet);
-			}
-			else {
-			// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-			peticionestrans.get(o).enqueue(valormenor);
-			}
+			// Se encola la peticion en la lista de la cuenta origen
+			encolar(valormenor);
 			// Se bloquea la condicion de la peticion
+			long espera = comienzo();
 			valormenor.condicion.await();
+			bloqueada(Metricas.Causa.SALDO_INSUFICIENTE, espera);
 		}
 		// Se comprueba si ya hay alguna peticion con la cuenta origen (ya que se tienen que tratar las transferencias en orden de llegada)
 		if(signal && peticionestrans.get(o)!=null  && peticionestrans.get(o).size()>0) {
 			signal = false;
 			// Se genera peticion con origen, destino y valor a transferir
 			peticion prioridadmenor = new peticion(o,d,v);
-			// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
-			if(peticionestrans.get(o)==null) {
-				// Como no existe, se crea una lista de peticiones para dicha cuenta
-				FIFO<peticion> listapet = new FIFOList<peticion>();
-				// Se encola la peticion en la lista
-				listapet.enqueue(prioridadmenor);
-				// Se crea una nueva entrada en el mapa con cuenta origen y su lista de peticiones
-				peticionestrans.put(o, listapet);
-			}
-			else {
-			// Como ya existe, se introduce la peticion en la lista de la cuenta correspondiente
-			peticionestrans.get(o).enqueue(prioridadmenor);
-			}
+			// Se encola la peticion en la lista de la cuenta origen
+			encolar(prioridadmenor);
 			// Se bloquea la condicion de la peticion
+			long espera = comienzo();
 			prioridadmenor.condicion.await();
+			bloqueada(Metricas.Causa.COLA_ORIGEN, espera);
+		}
+		// Si la peticion estuvo bloqueada, sigue la primera de su cuenta hasta ahora: se quita de la lista
+		// (las cuentas pueden haberse creado mientras esperaba)
+		if (!signal) {
+			descontarpendiente(peticionestrans.get(o).dequeue());
+			ho = mapacuentas.hueco(o);
+			hd = mapacuentas.hueco(d);
 		}
 		//Si el codigo ha llegado aqui, no se ha violado ninguna de las CPREs
-		int valor_origen = mapacuentas.get(o);
-		int valor_destino = mapacuentas.get(d);
-		//Se saca el dinero a transferir de la cuenta de origen
-		mapacuentas.put(o, valor_origen - v);
-		//Se introduce el dinero a transferir en la cuenta de destino
-		mapacuentas.put(d, valor_destino + v);
+		aplicartransferencia(ho, hd, v);
 		
-		// Se llama al metodo correspondiente para ver si se pueden desbloquear alguna transferencia
-		if (!desbloqueartransferencia()) {
-			// Si no se ha desbloqueado ninguna transferencia, se puede comprobar si se puede desbloquear alguna alerta
-			desbloquearalertar(o);
+		// Solo pueden desbloquearse las primeras transferencias del origen (siguiente en la lista)
+		// y del destino (ha recibido dinero)
+		revisar(o);
+		revisar(d);
+		desbloquearpendientes();
+		// El saldo del origen ha bajado, se comprueba si se puede desbloquear alguna alerta
+		desbloquearalertar(o);
+		salir();
+		terminar(Metricas.Operacion.TRANSFERIR, comienzo);
+	}
+
+	public Resultado[] ingresarLote(String[] c, int[] v) {
+		// Se comprueba PRE (mismo numero de cuentas y valores)
+		if (c.length != v.length) {
+			throw new IllegalArgumentException();
 		}
-		mutex.leave();
+		Resultado[] resultados = new Resultado[c.length];
+		mutex.enter();
+		for (int i = 0; i < c.length; i++) {
+			int hueco = mapacuentas.hueco(c[i]);
+			// Se ingresa el dinero o se crea la cuenta
+			if (hueco >= 0) {
+				sumar(hueco, v[i]);
+				if (diario != null) {
+					diario.anotarIngreso(hueco, v[i]);
+				}
+			} else {
+				crearcuenta(c[i], v[i]);
+				desbloqueardestino(c[i]);
+			}
+			revisar(c[i]);
+			resultados[i] = Resultado.APLICADA;
+		}
+		// Una sola revision de transferencias bloqueadas para todo el lote
+		desbloquearpendientes();
+		salir();
+		return resultados;
+	}
+
+	public Resultado[] transferirLote(String[] o, String[] d, int[] v) {
+		// Se comprueba PRE (mismo numero de origenes, destinos y valores)
+		if (o.length != d.length || o.length != v.length) {
+			throw new IllegalArgumentException();
+		}
+		Resultado[] resultados = new Resultado[o.length];
+		// Cuentas cuyo saldo ha bajado dentro del lote
+		Set<String> debitadas = new HashSet<String>();
+		mutex.enter();
+		for (int i = 0; i < o.length; i++) {
+			// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+			if (o[i].equals(d[i])) {
+				resultados[i] = Resultado.RECHAZADA;
+				continue;
+			}
+			// Se comprueban las CPREs y que no haya peticiones anteriores con el mismo origen
+			int ho = mapacuentas.hueco(o[i]);
+			int hd = mapacuentas.hueco(d[i]);
+			FIFO<peticion> lista = peticionestrans.get(o[i]);
+			if (ho >= 0 && hd >= 0 && mapacuentas.saldo(ho) >= v[i] && (lista == null || lista.isEmpty())) {
+				aplicartransferencia(ho, hd, v[i]);
+				revisar(d[i]);
+				debitadas.add(o[i]);
+				resultados[i] = Resultado.APLICADA;
+			} else {
+				// Se encola sin hilo que espere; la realizara la operacion que la desbloquee
+				encolar(new peticion(o[i], d[i], v[i], false));
+				pendientes.enqueue(o[i]);
+				resultados[i] = Resultado.ENCOLADA;
+			}
+		}
+		// Una sola revision de transferencias bloqueadas y alertas para todo el lote
+		desbloquearpendientes();
+		for (String cuenta : debitadas) {
+			desbloquearalertar(cuenta);
+		}
+		salir();
+		return resultados;
 	}
 
 	public int disponible(String c) throws IllegalArgumentException {
+		long comienzo = comienzo();
+		if (lecturasinmonitor) {
+			// Se lee sin monitor mientras no haya una transferencia a medias (version par y sin cambios)
+			for (int i = 0; i < REINTENTOS; i++) {
+				int antes = version;
+				if ((antes & 1) == 0) {
+					long saldo = mapacuentas.leer(c);
+					// Las lecturas del registro no pueden adelantarse a la comprobacion de la version
+					VarHandle.acquireFence();
+					if (version == antes) {
+						// Se comprueba PRE (si cuenta no existe)
+						if (saldo == RegistroCuentas.SIN_CUENTA) {
+							throw new IllegalArgumentException();
+						}
+						terminar(Metricas.Operacion.DISPONIBLE, comienzo);
+						return (int) saldo;
+					}
+				}
+				Thread.onSpinWait();
+			}
+			// Demasiadas escrituras concurrentes, se lee dentro del monitor
+		}
 		mutex.enter();
+		int hueco = mapacuentas.hueco(c);
 		// Se comprueba PRE (si cuenta no existe)
-		if (!mapacuentas.containsKey(c)) {
+		if (hueco < 0) {
 			mutex.leave();
 			throw new IllegalArgumentException();
 		}
 		// Se salvaguarda el valor pedido
-		int respuesta = mapacuentas.get(c);
+		int respuesta = mapacuentas.saldo(hueco);
 
 		mutex.leave();
+		terminar(Metricas.Operacion.DISPONIBLE, comienzo);
 
 		// Devolvemos el dinero disponible de la cuenta c.
 		return respuesta;
 	}
 
 	public void alertar(String c, int m) throws IllegalArgumentException {
+		long comienzo = comienzo();
 		mutex.enter();
+		int hueco = mapacuentas.hueco(c);
 		// Se comprueba PRE (si cuenta no existe)
-		if (!mapacuentas.containsKey(c)) {
+		if (hueco < 0) {
 			mutex.leave();
 			throw new IllegalArgumentException();
 		}
 		// Condicion para poder generar la alerta (dinero de cuenta es mayor que el saldo minimo)
-		if (mapacuentas.get(c) >= m) {
+		if (mapacuentas.saldo(hueco) >= m) {
 			// Se genera peticion con origen, destino y valor a transferir
 			peticion peticionalerta = new peticion(c, c, m);
-			// Se encola la peticion al final de la cola
-			peticionesalertar.enqueue(peticionesalertar.size() + 1, peticionalerta);
+			// Se anade la peticion a las alertas de la cuenta segun su saldo minimo
+			if (peticionesalertar.get(c) == null) {
+				peticionesalertar.put(c, new AlertasPorSaldo<peticion>());
+			}
+			peticionesalertar.get(c).anadir(m, peticionalerta);
+			Metricas me = metricas;
+			peticionalerta.contada = me != null;
+			if (me != null) {
+				me.alertas(1);
+			}
 			// Se bloquea la condicion de la alerta.
+			long espera = comienzo();
 			peticionalerta.condicion.await();
+			bloqueada(Metricas.Causa.ALERTA, espera);
+		}
+		dejar();
+		terminar(Metricas.Operacion.ALERTAR, comienzo);
+	}
+
+	/**
+	 * Guarda una instantanea de los saldos junto al diario para que al
+	 * arrancar solo se reproduzca lo anotado despues. Se copia por trozos
+	 * de cuentas, cada uno en una entrada corta al monitor, asi el banco
+	 * sigue atendiendo operaciones mientras tanto. Las peticiones
+	 * bloqueadas no se guardan: sus hilos no sobreviven a un reinicio.
+	 * @throws IllegalStateException si el banco no tiene diario
+	 */
+	public void instantanea() {
+		if (diario == null) {
+			throw new IllegalStateException();
+		}
+		int n = 0;
+		int[] saldos = null;
+		long[] cortes = null;
+		int k = 0;
+		do {
+			mutex.enter();
+			// Las cuentas creadas despues del primer corte se reproducen enteras desde el diario
+			if (k == 0) {
+				n = mapacuentas.size();
+				saldos = new int[n];
+				cortes = new long[Math.max(1, (n + TROZO - 1) / TROZO)];
+			}
+			cortes[k] = diario.posicion();
+			mapacuentas.copiar(k * TROZO, saldos, Math.min(TROZO, n - k * TROZO));
+			mutex.leave();
+			k++;
+		} while (k < cortes.length);
+		// Los números de cuenta de los huecos copiados ya no cambian, se leen sin monitor
+		String[] numeros = new String[n];
+		for (int h = 0; h < n; h++) {
+			numeros[h] = mapacuentas.numero(h);
+		}
+		diario.guardarInstantanea(numeros, saldos, TROZO, cortes);
+	}
+
+	public Map<String, Integer> saldos(Collection<String> c) {
+		consulta consulta = empezarconsulta();
+		try {
+			Map<String, Integer> saldos = new HashMap<String, Integer>();
+			for (String cuenta : c) {
+				int h = mapacuentas.buscar(cuenta, consulta.n);
+				if (h >= 0) {
+					saldos.put(cuenta, consulta.saldo(mapacuentas, h));
+				}
+			}
+			return saldos;
+		} finally {
+			terminarconsulta(consulta);
+		}
+	}
+
+	public long totalSaldos() {
+		consulta consulta = empezarconsulta();
+		try {
+			long total = 0;
+			for (int h = 0; h < consulta.n; h++) {
+				total += consulta.saldo(mapacuentas, h);
+			}
+			return total;
+		} finally {
+			terminarconsulta(consulta);
+		}
+	}
+
+	// clase auxiliar con los saldos anteriores de una consulta en curso. Solo la modifican las
+	// escrituras (con el monitor); la consulta la lee sin el
+	private static final class consulta {
+		// Cuentas que existian al empezar la consulta (huecos 0..n-1)
+		private final int n;
+		// Saldo anterior de cada hueco ya cambiado, con el bit 32 a 1; 0 si no ha cambiado
+		private final long[][] paginas;
+
+		private consulta(int n) {
+			this.n = n;
+			this.paginas = new long[(n >>> PAGINA) + 1][];
+		}
+		// Metodo auxiliar que guarda el saldo de un hueco antes de cambiarlo, solo la primera vez
+		private void guardar(int h, int saldo) {
+			long[] pagina = paginas[h >>> PAGINA];
+			if (pagina == null) {
+				pagina = new long[1 << PAGINA];
+				paginas[h >>> PAGINA] = pagina;
+			}
+			int i = h & ((1 << PAGINA) - 1);
+			if (pagina[i] == 0) {
+				pagina[i] = (1L << 32) | (saldo & 0xffffffffL);
+			}
+		}
+		// Metodo auxiliar que devuelve el saldo de un hueco al empezar la consulta
+		private int saldo(RegistroCuentas mapacuentas, int h) {
+			int actual = mapacuentas.saldo(h);
+			// Si se ha visto un saldo cambiado, tambien se ve el anterior guardado antes
+			VarHandle.acquireFence();
+			long[] pagina = paginas[h >>> PAGINA];
+			long guardado = pagina == null ? 0 : pagina[h & ((1 << PAGINA) - 1)];
+			return guardado != 0 ? (int) guardado : actual;
 		}
-		desbloquearalertar(c);
-		mutex.leave();
 	}
 
 	// clase auxiliar que permite generar las peticiones de bloqueo
@@ -200,10 +449,18 @@ public class BancoMonitor implements Banco {
 		private Monitor.Cond condicion;
 		//Dinero asociada a la peticion (valor minimo o dinero a transferir)
 		private int dinero;
+		// Indica si ya se ha hecho el .signal() de la peticion y falta que su hilo la realice
+		private boolean liberada;
+		// Indica si se conto como pendiente en las metricas; solo esas se descuentan al sacarla
+		private boolean contada;
 
 		// Constructor del metodo auxiliar
 		public peticion(String origen, String destino, int valor) {
-			this.condicion = mutex.newCond();
+			this(origen, destino, valor, true);
+		}
+		// Constructor del metodo auxiliar; las peticiones sin hilo (de un lote) no tienen condicion
+		public peticion(String origen, String destino, int valor, boolean conhilo) {
+			this.condicion = conhilo ? mutex.newCond() : null;
 			this.origen = origen;
 			this.destino = destino;
 			this.dinero = valor;
@@ -225,48 +482,233 @@ public class BancoMonitor implements Banco {
 			return condicion;
 		}
 	}
-	// Metodo auxiliar que permite desbloquear las peticiones de transferencia
-	public boolean desbloqueartransferencia() {
-		// Variable que indica si se ha realizado el .signal() de la peticion
-		boolean desbloqueado = false;
-		// Se recorre las entradas del mapa de transferencia
-		for (String cuenta : peticionestrans.keySet()) {
-			// Comprueba si hay alguna entrada con la cuenta y si tiene alguna peticion asociada
-			if(peticionestrans.get(cuenta)!=null && peticionestrans.get(cuenta).size()!=0) {
-				// Escoge la primera peticion de la cuenta
-				peticion primerapet = peticionestrans.get(cuenta).first();
-				// Comprueba si la cuenta de destino y origen existen, si hay suficiente dinero a transferir y si no se ha desbloqueado algo previamente
-				if (mapacuentas.get(primerapet.getcuentadestino()) != null && mapacuentas.get(primerapet.getcuentaorigen()) != null && primerapet.getdinero() <= mapacuentas.get(cuenta) && !desbloqueado) {
-					// Se han complido los parametros, por lo tanto se desbloquea la condicion
-					primerapet.getcondicion().signal();
-					// Se quita la peticion de la lista
-					peticionestrans.get(cuenta).dequeue();
-					// Se indica que ya se ha realizado el desbloqueo
-					desbloqueado = true;
+	// Metodo auxiliar que encola una peticion de transferencia en la lista de su cuenta origen
+	// y, si su destino aun no existe, en la espera de dicho destino
+	private void encolar(peticion pet) {
+		// Comprueba si existe una entrada de la cuenta en el mapa de peticiones de transferencia
+		if (peticionestrans.get(pet.getcuentaorigen()) == null) {
+			// Como no existe, se crea una lista de peticiones para dicha cuenta
+			peticionestrans.put(pet.getcuentaorigen(), new FIFOList<peticion>());
+		}
+		peticionestrans.get(pet.getcuentaorigen()).enqueue(pet);
+		contarpendiente(pet);
+		// Si el destino no existe, su creacion es el evento que puede desbloquear la peticion
+		if (!mapacuentas.existe(pet.getcuentadestino())) {
+			if (esperandodestino.get(pet.getcuentadestino()) == null) {
+				esperandodestino.put(pet.getcuentadestino(), new FIFOList<peticion>());
+			}
+			esperandodestino.get(pet.getcuentadestino()).enqueue(pet);
+		}
+	}
+	// Metodo auxiliar que desbloquea la primera peticion de transferencia de una cuenta origen si
+	// ya cumple las CPREs. Solo se mira la primera, las demas esperan por orden de llegada
+	public boolean desbloqueartransferencia(String cuenta) {
+		FIFO<peticion> lista = peticionestrans.get(cuenta);
+		// Comprueba si hay alguna peticion asociada a la cuenta
+		if (lista == null || lista.isEmpty()) {
+			return false;
+		}
+		// Escoge la primera peticion de la cuenta
+		peticion primerapet = lista.first();
+		// Si ya se ha liberado, su hilo aun no ha realizado la transferencia y el saldo no esta actualizado
+		if (primerapet.liberada) {
+			return false;
+		}
+		// Comprueba si la cuenta de destino y origen existen y si hay suficiente dinero a transferir
+		int ho = mapacuentas.hueco(cuenta);
+		int hd = mapacuentas.hueco(primerapet.getcuentadestino());
+		if (ho < 0 || hd < 0 || primerapet.getdinero() > mapacuentas.saldo(ho)) {
+			return false;
+		}
+		// Si es una peticion de un lote no hay hilo esperando: se realiza aqui mismo
+		if (primerapet.getcondicion() == null) {
+			lista.dequeue();
+			descontarpendiente(primerapet);
+			aplicartransferencia(ho, hd, primerapet.getdinero());
+			// Se revisan la siguiente peticion del origen y la primera del destino
+			revisar(cuenta);
+			revisar(primerapet.getcuentadestino());
+			desbloquearalertar(cuenta);
+			return true;
+		}
+		// Se han cumplido los parametros, por lo tanto se desbloquea la condicion al salir. La peticion
+		// se queda en la lista hasta que su hilo la realice para mantener el orden de llegada
+		primerapet.liberada = true;
+		despertar.enqueue(primerapet);
+		return true;
+	}
+	// Metodo auxiliar que anade una cuenta a las pendientes solo si tiene transferencias bloqueadas,
+	// asi las operaciones sin esperas no encolan nada
+	private void revisar(String cuenta) {
+		FIFO<peticion> lista = peticionestrans.get(cuenta);
+		if (lista != null && !lista.isEmpty()) {
+			pendientes.enqueue(cuenta);
+		}
+	}
+	// Metodo auxiliar que revisa las cuentas pendientes hasta que no quede ninguna
+	private void desbloquearpendientes() {
+		int revisadas = 0;
+		while (!pendientes.isEmpty()) {
+			desbloqueartransferencia(pendientes.dequeue());
+			revisadas++;
+		}
+		if (revisadas > 0 && metricas != null) {
+			metricas.revision(Metricas.Revision.TRANSFERENCIAS, revisadas);
+		}
+	}
+	// Metodo auxiliar que realiza una transferencia que ya cumple las CPREs
+	private void aplicartransferencia(int ho, int hd, int v) {
+		// Se marca la version como impar para que ningun lector vea la transferencia a medias; la
+		// barrera impide que los saldos nuevos se vean antes que la version impar
+		version++;
+		VarHandle.storeStoreFence();
+		//Se saca el dinero a transferir de la cuenta de origen
+		sumar(ho, -v);
+		//Se introduce el dinero a transferir en la cuenta de destino
+		sumar(hd, v);
+		version++;
+		if (diario != null) {
+			diario.anotarTransferencia(ho, hd, v);
+		}
+	}
+	// Metodo auxiliar que suma v al saldo de un hueco guardando antes el saldo anterior en las consultas en curso
+	private void sumar(int h, int v) {
+		consulta[] cs = consultas;
+		if (cs.length > 0) {
+			for (consulta c : cs) {
+				if (h < c.n) {
+					c.guardar(h, mapacuentas.saldo(h));
 				}
 			}
+			// Lo guardado tiene que verse antes que el saldo nuevo
+			VarHandle.releaseFence();
 		}
-		// Se devuelve si se ha podido desbloquear la transferencia
-		return desbloqueado;
+		mapacuentas.sumar(h, v);
 	}
-	// Metodo auxiliar que permite desbloquear las peticiones de alertar
+	// Metodo auxiliar que registra una consulta de saldos: fija el instante que vera
+	private consulta empezarconsulta() {
+		mutex.enter();
+		consulta consulta = new consulta(mapacuentas.size());
+		consulta[] cs = Arrays.copyOf(consultas, consultas.length + 1);
+		cs[cs.length - 1] = consulta;
+		consultas = cs;
+		mutex.leave();
+		return consulta;
+	}
+	// Metodo auxiliar que quita una consulta terminada para que las escrituras dejen de guardar en ella
+	private void terminarconsulta(consulta consulta) {
+		mutex.enter();
+		consulta[] cs = new consulta[consultas.length - 1];
+		int j = 0;
+		for (consulta c : consultas) {
+			if (c != consulta) {
+				cs[j++] = c;
+			}
+		}
+		consultas = cs;
+		mutex.leave();
+	}
+	// Metodo auxiliar que crea una cuenta; el registro puede crecer, asi que se marca la version
+	private void crearcuenta(String c, int v) {
+		version++;
+		VarHandle.storeStoreFence();
+		mapacuentas.crear(c, v);
+		version++;
+		if (diario != null) {
+			diario.anotarCreacion(c, v);
+		}
+	}
+	// Metodo auxiliar que devuelve la hora de comienzo de una medida (0 si no se mide)
+	private long comienzo() {
+		return metricas != null ? System.nanoTime() : 0;
+	}
+	// Metodo auxiliar que anota la duracion de una operacion
+	private void terminar(Metricas.Operacion operacion, long comienzo) {
+		Metricas m = metricas;
+		if (m != null && comienzo != 0) {
+			m.operacion(operacion, System.nanoTime() - comienzo);
+		}
+	}
+	// Metodo auxiliar que anota el tiempo que ha estado bloqueada una peticion
+	private void bloqueada(Metricas.Causa causa, long comienzo) {
+		Metricas m = metricas;
+		if (m != null && comienzo != 0) {
+			m.bloqueo(causa, System.nanoTime() - comienzo);
+		}
+	}
+	// Metodo auxiliar que anota una transferencia pendiente de su cuenta origen. Solo se descuentan
+	// las que se contaron, asi los contadores no bajan de 0 si se empieza a medir con peticiones encoladas
+	private void contarpendiente(peticion pet) {
+		Metricas m = metricas;
+		pet.contada = m != null;
+		if (m != null) {
+			m.pendientes(pet.getcuentaorigen(), 1);
+		}
+	}
+	// Metodo auxiliar que anota que una transferencia pendiente ya se ha realizado
+	private void descontarpendiente(peticion pet) {
+		Metricas m = metricas;
+		if (m != null && pet.contada) {
+			m.pendientes(pet.getcuentaorigen(), -1);
+		}
+	}
+	// Metodo auxiliar que sale del monitor y, si hay diario, espera fuera de el a que lo anotado
+	// hasta ahora sea duradero (asi las esperas de varios hilos se agrupan en una escritura)
+	private void salir() {
+		if (diario == null) {
+			dejar();
+			return;
+		}
+		long anotados = diario.anotados();
+		dejar();
+		diario.esperar(anotados);
+	}
+	// Metodo auxiliar que sale del monitor despertando a la primera peticion liberada, si la hay.
+	// Un solo .signal() por salida; el hilo despertado hace lo mismo al salir
+	private void dejar() {
+		if (!despertar.isEmpty()) {
+			despertar.dequeue().getcondicion().signal();
+		}
+		mutex.leave();
+	}
+	// Metodo auxiliar que desbloquea las peticiones que esperaban a que se creara la cuenta de destino
+	private void desbloqueardestino(String cuenta) {
+		FIFO<peticion> lista = esperandodestino.remove(cuenta);
+		if (lista == null) {
+			return;
+		}
+		while (!lista.isEmpty()) {
+			peticion pet = lista.dequeue();
+			// Solo puede desbloquearse si es la primera de su cuenta origen
+			FIFO<peticion> listaorigen = peticionestrans.get(pet.getcuentaorigen());
+			if (listaorigen != null && !listaorigen.isEmpty() && listaorigen.first() == pet) {
+				pendientes.enqueue(pet.getcuentaorigen());
+			}
+		}
+	}
+	// Metodo auxiliar que permite desbloquear las peticiones de alertar de una cuenta cuyo saldo ha bajado
 	public void desbloquearalertar(String cuenta) {
-		// Variable que indica si se ha realizado el .signal() de la peticion
-		boolean desbloqueado = false;
-		// Se recorre la cola de prioridad de alertas
-		for (int i = 0; i < peticionesalertar.size() && !desbloqueado; i++) {
-			// Se guarda el primer objeto desencolado
-			Entry<Integer, peticion> pet = peticionesalertar.dequeue();
-			//Comprueba si el dinero de la cuenta es menor que el saldo minimo
-			if (pet.getValue().getdinero() > mapacuentas.get(pet.getValue().getcuentaorigen())) {
-				//Si lo es, se desbloquea
-				pet.getValue().getcondicion().signal();
-				//Se indica que ya se ha realizado el desbloqueo
-				desbloqueado = true;
-			} else {
-				//Si no es menor, se vuelve a encolar al final de la lista
-				peticionesalertar.enqueue(peticionesalertar.size()+1, pet.getValue());
+		AlertasPorSaldo<peticion> alertas = peticionesalertar.get(cuenta);
+		// Comprueba si hay alguna alerta pendiente en la cuenta
+		if (alertas == null || alertas.isEmpty()) {
+			return;
+		}
+		// Se sacan solo las alertas cuyo saldo minimo es mayor que el dinero de la cuenta
+		FIFO<peticion> liberadas = new FIFOList<peticion>();
+		int n = alertas.liberar(mapacuentas.saldo(mapacuentas.hueco(cuenta)), liberadas);
+		// Se despiertan todas al salir, descontando solo las que se contaron al anadirlas
+		int contadas = 0;
+		while (!liberadas.isEmpty()) {
+			peticion liberada = liberadas.dequeue();
+			if (liberada.contada) {
+				contadas++;
 			}
+			despertar.enqueue(liberada);
+		}
+		Metricas m = metricas;
+		if (m != null) {
+			m.revision(Metricas.Revision.ALERTAS, n);
+			m.alertas(-contadas);
 		}
 	}
 }
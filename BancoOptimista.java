@@ -0,0 +1,449 @@
+package cc.banco;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import es.upm.aedlib.fifo.FIFO;
+import es.upm.aedlib.fifo.FIFOList;
+
+/**
+ * Banco con camino rapido optimista: una transferencia entre cuentas
+ * que existen, con saldo suficiente y sin transferencias anteriores
+ * esperando en su origen se hace con CAS sobre el estado de las cuentas,
+ * sin cerrojos ni avisos. Si falla alguna CPRE pasa al camino lento, que
+ * es el de BancoCerrojos: cola por cuenta origen y cerrojos por franjas.
+ *
+ * El estado de cada cuenta es un long con el saldo en los 32 bits bajos y
+ * el número de transferencias encoladas con ella como origen en los 32
+ * altos. Asi el CAS que retira el dinero comprueba a la vez que hay saldo
+ * y que no hay nadie antes en la cola, y ni el saldo puede quedar negativo
+ * ni una transferencia rapida adelanta a una encolada.
+ *
+ * Entre la retirada del origen y el ingreso en el destino el dinero no
+ * esta en ninguna cuenta. Para que disponible siga siendo linealizable,
+ * la transferencia se anuncia en el destino antes de tocar el origen y
+ * disponible no devuelve un saldo leido mientras haya alguna anunciada
+ * (espera activa: solo dura los pocos CAS de la transferencia). Si una
+ * cuenta recibe tantas que el lector no encuentra hueco, este marca la
+ * cuenta y las transferencias nuevas hacia ella van por el camino lento
+ * hasta que termina de leer.
+ */
+public class BancoOptimista implements Banco {
+	// Numero de franjas por defecto
+	private static final int FRANJAS = 64;
+	// Unidad del contador de encoladas dentro del estado
+	private static final long ENCOLADA = 1L << 32;
+	// Unidad del contador de transferencias terminadas dentro de entradas
+	private static final long TERMINADA = 1L << 32;
+	// Vueltas que espera disponible antes de cortar el paso a las transferencias rapidas
+	private static final int VUELTAS = 100;
+	// Un cerrojo por franja para el camino lento; el camino rapido no los usa
+	private final ReentrantLock[] cerrojos;
+	// Mapa de cuentas; las entradas se crean antes de que exista la cuenta
+	private final ConcurrentHashMap<String, cuenta> mapacuentas;
+
+	// constructor con el numero de franjas por defecto
+	public BancoOptimista() {
+		this(FRANJAS);
+	}
+
+	// constructor para la inicializacion de los cerrojos y el mapa de cuentas
+	public BancoOptimista(int franjas) {
+		if (franjas <= 0) {
+			throw new IllegalArgumentException();
+		}
+		this.cerrojos = new ReentrantLock[franjas];
+		for (int i = 0; i < franjas; i++) {
+			this.cerrojos[i] = new ReentrantLock();
+		}
+		this.mapacuentas = new ConcurrentHashMap<String, cuenta>();
+	}
+
+	public void ingresar(String c, int v) {
+		cuenta cuenta = mapacuentas.get(c);
+		if (cuenta != null && cuenta.existe) {
+			// Camino rapido: la cuenta ya existe, basta con sumar
+			long estado = cuenta.sumar(v);
+			// Puede que la primera transferencia de esta cuenta ya sea realizable
+			if (encoladas(estado) > 0) {
+				despertarprimera(cuenta, franja(c));
+			}
+			return;
+		}
+		cuenta = obtener(c);
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		try {
+			cuenta.sumar(v);
+			if (!cuenta.existe) {
+				// Se crea la cuenta despues de darle saldo, los lectores solo miran cuentas creadas
+				cuenta.existe = true;
+				// Se despiertan las transferencias que esperaban a que existiera el destino
+				while (!cuenta.esperandodestino.isEmpty()) {
+					cuenta.esperandodestino.dequeue().despertar();
+				}
+			}
+			despertarprimera(cuenta);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		cuenta origen = mapacuentas.get(o);
+		cuenta destino = mapacuentas.get(d);
+		if (origen != null && destino != null && origen.existe && destino.existe
+			&& transferirrapido(origen, destino, v, franja(o), franja(d))) {
+			return;
+		}
+		transferirlento(o, d, v);
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		cuenta cuenta = mapacuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null || !cuenta.existe) {
+			throw new IllegalArgumentException();
+		}
+		// Solo vale un saldo leido sin transferencias hacia la cuenta a medias
+		for (int i = 0; i < VUELTAS; i++) {
+			long antes = cuenta.entradas.get();
+			if ((int) antes == 0) {
+				long estado = cuenta.estado.get();
+				if (cuenta.entradas.get() == antes) {
+					return saldo(estado);
+				}
+			}
+			Thread.onSpinWait();
+		}
+		// No hay hueco: con el cerrojo no entran transferencias lentas y con la marca no entran rapidas
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		cuenta.lectores.incrementAndGet();
+		try {
+			// Las rapidas que ya estaban dentro terminan sin esperar a nadie
+			while ((int) cuenta.entradas.get() != 0) {
+				Thread.onSpinWait();
+			}
+			return saldo(cuenta.estado.get());
+		} finally {
+			cuenta.lectores.decrementAndGet();
+			cerrojo.unlock();
+		}
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		cuenta cuenta = mapacuentas.get(c);
+		// Se comprueba PRE (si cuenta no existe)
+		if (cuenta == null) {
+			throw new IllegalArgumentException();
+		}
+		alerta alerta;
+		ReentrantLock cerrojo = cerrojos[franja(c)];
+		cerrojo.lock();
+		try {
+			if (!cuenta.existe) {
+				throw new IllegalArgumentException();
+			}
+			// Si el saldo ya esta por debajo de m la alerta termina inmediatamente
+			if (saldo(cuenta.estado.get()) < m) {
+				return;
+			}
+			// Se anota la alerta antes de volver a leer el saldo: una retirada rapida
+			// posterior vera vigiladas > 0, y si fue anterior la vemos aqui
+			alerta = new alerta();
+			cuenta.alertas.anadir(m, alerta);
+			cuenta.vigiladas++;
+			desbloquearalertar(cuenta);
+		} finally {
+			cerrojo.unlock();
+		}
+		alerta.esperar();
+	}
+
+	// clase auxiliar con el estado de una cuenta
+	private class cuenta {
+		// Indica si la cuenta ha sido creada por un ingreso (las peticiones pueden referirse a cuentas aun no creadas)
+		private volatile boolean existe;
+		// Saldo (32 bits bajos) y transferencias encoladas con esta cuenta como origen (32 altos)
+		private final AtomicLong estado = new AtomicLong();
+		// Transferencias hacia esta cuenta a medias (32 bits bajos) y terminadas (32 altos)
+		private final AtomicLong entradas = new AtomicLong();
+		// Lectores que han cortado el paso a las transferencias rapidas hacia esta cuenta
+		private final AtomicInteger lectores = new AtomicInteger();
+		// Alertas pendientes; se modifica con el cerrojo de la franja pero se lee sin el
+		private volatile int vigiladas;
+		// Peticiones de transferencia con esta cuenta como origen, en orden de llegada (cerrojo de la franja)
+		private final FIFO<peticion> peticionestrans = new FIFOList<peticion>();
+		// Primeras peticiones de otras cuentas que esperan a que esta cuenta exista como destino
+		private final FIFO<peticion> esperandodestino = new FIFOList<peticion>();
+		// Alertas pendientes sobre esta cuenta ordenadas por saldo minimo
+		private final AlertasPorSaldo<alerta> alertas = new AlertasPorSaldo<alerta>();
+
+		// Metodo auxiliar que suma v al saldo sin tocar las encoladas y devuelve el estado nuevo
+		private long sumar(int v) {
+			while (true) {
+				long viejo = estado.get();
+				long nuevo = BancoOptimista.estado(saldo(viejo) + v, encoladas(viejo));
+				if (estado.compareAndSet(viejo, nuevo)) {
+					return nuevo;
+				}
+			}
+		}
+	}
+
+	// clase auxiliar que permite bloquear una peticion de transferencia fuera de los cerrojos
+	private class peticion {
+		// Cuenta de origen
+		private final cuenta origen;
+		// Cuenta de destino
+		private final cuenta destino;
+		// Dinero a transferir
+		private final int dinero;
+		// Indica si la peticion ya esta registrada en la espera de su destino
+		private boolean registrada;
+		// Semaforo por el que espera el hilo de la peticion
+		private final Semaphore espera = new Semaphore(0);
+
+		// Constructor del metodo auxiliar
+		public peticion(cuenta origen, cuenta destino, int dinero) {
+			this.origen = origen;
+			this.destino = destino;
+			this.dinero = dinero;
+		}
+		// Metodo auxiliar que bloquea al hilo de la peticion
+		public void esperar() {
+			espera.acquireUninterruptibly();
+			// Se descartan los avisos acumulados, la CPRE se vuelve a comprobar con los cerrojos
+			espera.drainPermits();
+		}
+		// Metodo auxiliar que despierta al hilo de la peticion
+		public void despertar() {
+			espera.release();
+		}
+	}
+
+	// clase auxiliar para las alertas pendientes
+	private class alerta {
+		// Semaforo por el que espera el hilo del avisador
+		private final Semaphore espera = new Semaphore(0);
+
+		// Metodo auxiliar que bloquea al hilo del avisador
+		public void esperar() {
+			espera.acquireUninterruptibly();
+		}
+	}
+
+	// Metodo auxiliar que intenta la transferencia sin cerrojos; false si hay que encolarla
+	private boolean transferirrapido(cuenta origen, cuenta destino, int v, int fo, int fd) {
+		// Se anuncia en el destino antes de que el dinero salga del origen
+		// y despues se mira si algun lector ha cortado el paso
+		destino.entradas.incrementAndGet();
+		long estado;
+		while (true) {
+			estado = origen.estado.get();
+			// Se comprueban la 3 y 4 CPRE (saldo suficiente y nadie antes en la cola)
+			if (encoladas(estado) > 0 || saldo(estado) < v || destino.lectores.get() > 0) {
+				destino.entradas.addAndGet(TERMINADA - 1);
+				return false;
+			}
+			if (origen.estado.compareAndSet(estado, estado(saldo(estado) - v, 0))) {
+				break;
+			}
+		}
+		long recibido = destino.sumar(v);
+		destino.entradas.addAndGet(TERMINADA - 1);
+		// El saldo del origen ha bajado, se comprueban sus alertas
+		if (origen.vigiladas > 0) {
+			ReentrantLock cerrojo = cerrojos[fo];
+			cerrojo.lock();
+			try {
+				desbloquearalertar(origen);
+			} finally {
+				cerrojo.unlock();
+			}
+		}
+		// Puede que la primera transferencia del destino ya sea realizable
+		if (encoladas(recibido) > 0) {
+			despertarprimera(destino, fd);
+		}
+		return true;
+	}
+
+	// Metodo auxiliar con el camino lento de transferir, igual que en BancoCerrojos
+	private void transferirlento(String o, String d, int v) {
+		cuenta origen = obtener(o);
+		cuenta destino = obtener(d);
+		peticion peticion = new peticion(origen, destino, v);
+		int fo = franja(o);
+		int fd = franja(d);
+
+		bloquear(fo, fd);
+		try {
+			// Toda peticion se encola para respetar el orden de llegada por cuenta de origen;
+			// desde aqui ninguna transferencia rapida con este origen puede adelantarla
+			origen.peticionestrans.enqueue(peticion);
+			origen.estado.addAndGet(ENCOLADA);
+			if (intentar(peticion)) {
+				return;
+			}
+		} finally {
+			desbloquear(fo, fd);
+		}
+		// No se cumple alguna CPRE: se espera sin cerrojos hasta que otra operacion nos despierte
+		while (true) {
+			peticion.esperar();
+			bloquear(fo, fd);
+			try {
+				if (intentar(peticion)) {
+					return;
+				}
+			} finally {
+				desbloquear(fo, fd);
+			}
+		}
+	}
+
+	// Metodo auxiliar que devuelve la entrada de una cuenta, creandola (sin existir aun) si hace falta
+	private cuenta obtener(String c) {
+		cuenta cuenta = mapacuentas.get(c);
+		if (cuenta == null) {
+			cuenta nueva = new cuenta();
+			cuenta = mapacuentas.putIfAbsent(c, nueva);
+			if (cuenta == null) {
+				cuenta = nueva;
+			}
+		}
+		return cuenta;
+	}
+
+	// Metodo auxiliar que devuelve la franja de una cuenta
+	private int franja(String c) {
+		return (c.hashCode() & 0x7fffffff) % cerrojos.length;
+	}
+
+	// Metodo auxiliar que adquiere los cerrojos de dos franjas siempre en orden creciente para evitar interbloqueos
+	private void bloquear(int f1, int f2) {
+		if (f1 == f2) {
+			cerrojos[f1].lock();
+		} else {
+			cerrojos[Math.min(f1, f2)].lock();
+			cerrojos[Math.max(f1, f2)].lock();
+		}
+	}
+
+	// Metodo auxiliar que libera los cerrojos de dos franjas
+	private void desbloquear(int f1, int f2) {
+		if (f1 == f2) {
+			cerrojos[f1].unlock();
+		} else {
+			cerrojos[Math.max(f1, f2)].unlock();
+			cerrojos[Math.min(f1, f2)].unlock();
+		}
+	}
+
+	// Metodo auxiliar que realiza la transferencia si se cumplen las CPREs (con los dos cerrojos adquiridos)
+	private boolean intentar(peticion peticion) {
+		cuenta origen = peticion.origen;
+		cuenta destino = peticion.destino;
+		// Solo se puede atender la primera peticion de la cuenta origen (orden de llegada)
+		if (origen.peticionestrans.first() != peticion) {
+			return false;
+		}
+		// Se comprueba la 2 CPRE (destino no existe); se registra para que su creacion nos despierte
+		if (!destino.existe) {
+			if (!peticion.registrada) {
+				peticion.registrada = true;
+				destino.esperandodestino.enqueue(peticion);
+			}
+			return false;
+		}
+		// Se comprueba la 1 CPRE (origen no existe)
+		if (!origen.existe) {
+			return false;
+		}
+		// Se comprueba la 3 CPRE y se retira el dinero quitando a la vez la peticion de las encoladas;
+		// las transferencias rapidas pueden seguir sumando al origen, por eso hace falta CAS
+		destino.entradas.incrementAndGet();
+		while (true) {
+			long estado = origen.estado.get();
+			if (saldo(estado) < peticion.dinero) {
+				destino.entradas.addAndGet(TERMINADA - 1);
+				return false;
+			}
+			if (origen.estado.compareAndSet(estado, estado(saldo(estado) - peticion.dinero, encoladas(estado) - 1))) {
+				break;
+			}
+		}
+		destino.sumar(peticion.dinero);
+		destino.entradas.addAndGet(TERMINADA - 1);
+		origen.peticionestrans.dequeue();
+		// Solo pueden haberse vuelto realizables las primeras peticiones de origen y destino
+		despertarprimera(origen);
+		despertarprimera(destino);
+		// El saldo del origen ha bajado, se comprueban sus alertas
+		desbloquearalertar(origen);
+		return true;
+	}
+
+	// Metodo auxiliar que despierta la primera peticion de una cuenta adquiriendo el cerrojo de su franja
+	private void despertarprimera(cuenta cuenta, int franja) {
+		ReentrantLock cerrojo = cerrojos[franja];
+		cerrojo.lock();
+		try {
+			despertarprimera(cuenta);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	// Metodo auxiliar que despierta la primera peticion de una cuenta si puede ser realizable
+	private void despertarprimera(cuenta cuenta) {
+		if (cuenta.peticionestrans.isEmpty()) {
+			return;
+		}
+		peticion primerapet = cuenta.peticionestrans.first();
+		if (!primerapet.destino.existe) {
+			// Si aun no se ha registrado en su destino debe despertar para hacerlo
+			if (!primerapet.registrada) {
+				primerapet.despertar();
+			}
+		} else if (cuenta.existe && primerapet.dinero <= saldo(cuenta.estado.get())) {
+			primerapet.despertar();
+		}
+	}
+
+	// Metodo auxiliar que desbloquea las alertas de una cuenta cuyo saldo este por debajo del minimo
+	private void desbloquearalertar(cuenta cuenta) {
+		if (cuenta.alertas.isEmpty()) {
+			return;
+		}
+		FIFO<alerta> liberadas = new FIFOList<alerta>();
+		cuenta.vigiladas -= cuenta.alertas.liberar(saldo(cuenta.estado.get()), liberadas);
+		while (!liberadas.isEmpty()) {
+			liberadas.dequeue().espera.release();
+		}
+	}
+
+	// Metodo auxiliar que devuelve el saldo guardado en un estado
+	private static int saldo(long estado) {
+		return (int) estado;
+	}
+
+	// Metodo auxiliar que devuelve las transferencias encoladas guardadas en un estado
+	private static int encoladas(long estado) {
+		return (int) (estado >>> 32);
+	}
+
+	// Metodo auxiliar que compone un estado
+	private static long estado(int saldo, int encoladas) {
+		return ((long) encoladas << 32) | (saldo & 0xffffffffL);
+	}
+}
@@ -0,0 +1,268 @@
+package cc.banco;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Modo de carga del simulador: varios hilos lanzan operaciones contra un
+ * banco sin pausas ni mensajes por operacion durante un tiempo fijo, y al
+ * final se imprimen las operaciones por segundo y los percentiles de
+ * latencia de cada tipo de operacion.
+ *
+ * Uso: java cc.banco.Simulador carga [opcion=valor ...]
+ * <pre>
+ *   motor=BancoMonitor   motor a probar (ver Motores)
+ *   hilos=4              hilos generadores de carga
+ *   cuentas=1000         número de cuentas
+ *   mezcla=disponible:60,transferir:30,ingresar:10
+ *                        peso de cada operacion
+ *   tasa=0               operaciones/s entre todos los hilos; 0 = lazo
+ *                        cerrado, cada hilo lanza la siguiente al acabar
+ *   duracion=10          segundos medidos
+ *   calentamiento=2      segundos previos que no se miden
+ *   jmx=false            publica las metricas internas del motor
+ *                        (BancoMonitor y BancoCSP) como MBean
+ *   traza=               fichero donde grabar todas las operaciones,
+ *                        incluida la creacion de las cuentas, para
+ *                        reproducirlas despues (ver Reproductor)
+ * </pre>
+ * Con tasa fija cada operacion tiene una hora prevista de comienzo y su
+ * latencia se mide desde esa hora y no desde que el hilo consigue
+ * lanzarla. Asi, si el banco se atasca, el retraso acumulado de las
+ * operaciones que no se pudieron lanzar a tiempo aparece en los
+ * percentiles (correccion de la omision coordinada).
+ */
+class Carga {
+  static final int INGRESAR = 0;
+  static final int TRANSFERIR = 1;
+  static final int DISPONIBLE = 2;
+  static final String[] NOMBRES = { "ingresar", "transferir", "disponible" };
+
+  // Saldo inicial: suficientemente alto para que ninguna transferencia bloquee
+  static final int SALDO_INICIAL = 1_000_000_000;
+
+  String motor = "BancoMonitor";
+  int hilos = 4;
+  int cuentas = 1000;
+  int[] pesos = { 10, 30, 60 };
+  double tasa = 0;
+  int duracion = 10;
+  int calentamiento = 2;
+  boolean jmx = false;
+  Path traza = null;
+
+  public static void main(String[] args) throws InterruptedException {
+    Carga carga = new Carga();
+    for (String arg : args)
+      carga.opcion(arg);
+    carga.ejecutar();
+    // Los motores CSP dejan procesos servidores vivos
+    System.exit(0);
+  }
+
+  // Lee una opcion de la forma nombre=valor
+  void opcion(String arg) {
+    int igual = arg.indexOf('=');
+    if (igual < 0)
+      throw new IllegalArgumentException("Opcion sin valor: " + arg);
+    String nombre = arg.substring(0, igual);
+    String valor = arg.substring(igual + 1);
+    switch (nombre) {
+    case "motor": motor = valor; break;
+    case "hilos": hilos = Integer.parseInt(valor); break;
+    case "cuentas": cuentas = Integer.parseInt(valor); break;
+    case "tasa": tasa = Double.parseDouble(valor); break;
+    case "duracion": duracion = Integer.parseInt(valor); break;
+    case "calentamiento": calentamiento = Integer.parseInt(valor); break;
+    case "jmx": jmx = Boolean.parseBoolean(valor); break;
+    case "traza": traza = Paths.get(valor); break;
+    case "mezcla":
+      pesos = new int[NOMBRES.length];
+      for (String parte : valor.split(",")) {
+        String[] np = parte.split(":");
+        pesos[operacion(np[0])] = Integer.parseInt(np[1]);
+      }
+      break;
+    default:
+      throw new IllegalArgumentException("Opcion desconocida: " + nombre);
+    }
+  }
+
+  static int operacion(String nombre) {
+    for (int i = 0; i < NOMBRES.length; i++)
+      if (NOMBRES[i].equals(nombre))
+        return i;
+    throw new IllegalArgumentException("Operacion desconocida: " + nombre);
+  }
+
+  void ejecutar() throws InterruptedException {
+    Banco banco = Motores.crear(motor);
+    if (jmx)
+      medir(banco);
+    GrabadorTraza grabador = null;
+    if (traza != null)
+      banco = grabador = new GrabadorTraza(banco, traza);
+    String[] cs = Simulador.cuentas(cuentas);
+    for (String c : cs)
+      banco.ingresar(c, SALDO_INICIAL);
+
+    long inicio = System.nanoTime() + 100_000_000L;
+    long inicioMedida = inicio + calentamiento * 1_000_000_000L;
+    long fin = inicioMedida + duracion * 1_000_000_000L;
+    Cargador[] cargadores = new Cargador[hilos];
+    for (int i = 0; i < hilos; i++) {
+      cargadores[i] = new Cargador(this, banco, cs, i, inicio, inicioMedida, fin);
+      cargadores[i].start();
+    }
+
+    Histograma[] latencias = new Histograma[NOMBRES.length];
+    for (int op = 0; op < NOMBRES.length; op++)
+      latencias[op] = new Histograma();
+    for (Cargador cargador : cargadores) {
+      cargador.join();
+      for (int op = 0; op < NOMBRES.length; op++)
+        latencias[op].sumar(cargador.latencias[op]);
+    }
+    if (grabador != null) {
+      try {
+        grabador.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    informe(latencias);
+  }
+
+  // Registra unas MetricasJMX con el nombre del motor y se las pasa al banco
+  void medir(Banco banco) {
+    MetricasJMX metricas = new MetricasJMX();
+    if (banco instanceof BancoMonitor)
+      ((BancoMonitor) banco).medir(metricas);
+    else if (banco instanceof BancoCSP)
+      ((BancoCSP) banco).medir(metricas);
+    else
+      throw new IllegalArgumentException("El motor " + motor + " no tiene metricas");
+    metricas.registrar(motor);
+  }
+
+  void informe(Histograma[] latencias) {
+    System.out.printf("motor=%s hilos=%d cuentas=%d tasa=%s duracion=%ds%n",
+                      motor, hilos, cuentas, tasa > 0 ? String.valueOf(tasa) : "lazo cerrado",
+                      duracion);
+    System.out.printf("%-12s %12s %10s %10s %10s %10s%n",
+                      "operacion", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+    Histograma total = new Histograma();
+    for (int op = 0; op < NOMBRES.length; op++) {
+      if (latencias[op].total() > 0)
+        linea(NOMBRES[op], latencias[op]);
+      total.sumar(latencias[op]);
+    }
+    linea("total", total);
+  }
+
+  void linea(String nombre, Histograma h) {
+    System.out.printf("%-12s %12.0f %10.1f %10.1f %10.1f %10.1f%n",
+                      nombre, h.total() / (double) duracion,
+                      h.percentil(0.50) / 1e3, h.percentil(0.99) / 1e3,
+                      h.percentil(0.999) / 1e3, h.maximo() / 1e3);
+  }
+}
+
+
+/**
+ * Hilo generador de carga: lanza operaciones al azar segun la mezcla y
+ * registra su latencia en histogramas propios.
+ */
+class Cargador extends Thread {
+  private final Carga carga;
+  private final Banco b;
+  private final String[] cuentas;
+  private final long inicio;
+  private final long inicioMedida;
+  private final long fin;
+  private final SplittableRandom r;
+  private final int pesoTotal;
+  final Histograma[] latencias = new Histograma[Carga.NOMBRES.length];
+
+  Cargador(Carga carga, Banco b, String[] cuentas, int id,
+           long inicio, long inicioMedida, long fin) {
+    this.carga = carga;
+    this.b = b;
+    this.cuentas = cuentas;
+    this.inicioMedida = inicioMedida;
+    this.fin = fin;
+    this.r = new SplittableRandom(id);
+    int suma = 0;
+    for (int p : carga.pesos)
+      suma += p;
+    this.pesoTotal = suma;
+    for (int op = 0; op < latencias.length; op++)
+      latencias[op] = new Histograma();
+    // Con tasa fija los hilos arrancan desfasados para repartir las llegadas
+    long intervalo = intervalo();
+    this.inicio = inicio + (intervalo > 0 ? intervalo * id / carga.hilos : 0);
+  }
+
+  // Tiempo entre operaciones de este hilo (0 en lazo cerrado)
+  private long intervalo() {
+    return carga.tasa > 0 ? (long) (1e9 * carga.hilos / carga.tasa) : 0;
+  }
+
+  public void run() {
+    long intervalo = intervalo();
+    long prevista = inicio;
+    while (true) {
+      long ahora = System.nanoTime();
+      long comienzo;
+      if (intervalo > 0) {
+        // Se espera a la hora prevista; si ya ha pasado se lanza sin esperar
+        while (ahora < prevista) {
+          LockSupport.parkNanos(prevista - ahora);
+          ahora = System.nanoTime();
+        }
+        comienzo = prevista;
+        prevista += intervalo;
+      } else {
+        comienzo = ahora;
+      }
+      if (comienzo >= fin)
+        break;
+      int op = elegir();
+      ejecutar(op);
+      long t = System.nanoTime();
+      if (comienzo >= inicioMedida)
+        latencias[op].registrar(t - comienzo);
+    }
+  }
+
+  private int elegir() {
+    int x = r.nextInt(pesoTotal);
+    for (int op = 0; op < carga.pesos.length; op++) {
+      x -= carga.pesos[op];
+      if (x < 0)
+        return op;
+    }
+    return Carga.DISPONIBLE;
+  }
+
+  private void ejecutar(int op) {
+    int o = r.nextInt(cuentas.length);
+    switch (op) {
+    case Carga.INGRESAR:
+      b.ingresar(cuentas[o], 1);
+      break;
+    case Carga.TRANSFERIR:
+      if (cuentas.length > 1) {
+        int d = (o + 1 + r.nextInt(cuentas.length - 1)) % cuentas.length;
+        b.transferir(cuentas[o], cuentas[d], 1);
+      }
+      break;
+    default:
+      b.disponible(cuentas[o]);
+    }
+  }
+}
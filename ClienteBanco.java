@@ -0,0 +1,107 @@
+package cc.banco;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Banco remoto: cada operacion se envia a un ServidorBanco (o a un
+ * NodoBanco) por una unica conexion TCP. Las operaciones de Banco
+ * esperan la respuesta, pero se pueden llamar desde muchos hilos a la vez
+ * y comparten la conexion sin esperarse entre ellas. Las versiones
+ * ...Async no esperan: un solo hilo puede tener muchas peticiones en
+ * curso y cada futuro se completa cuando llega su respuesta, en el orden
+ * en que el servidor las vaya desbloqueando.
+ *
+ * No implementa BancoAsincrono porque una peticion ya enviada no se
+ * puede retirar: cancelar el futuro no impide que el servidor la realice.
+ */
+public class ClienteBanco implements Banco, AutoCloseable {
+	private final Conexion conexion;
+
+	/**
+	 * Se conecta a un servidor.
+	 * @param direccion direccion del ServidorBanco
+	 * @throws IllegalStateException si no se puede conectar
+	 */
+	public ClienteBanco(InetSocketAddress direccion) {
+		try {
+			this.conexion = new Conexion(direccion);
+		} catch (IOException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	public void ingresar(String c, int v) {
+		conexion.llamar(Conexion.INGRESAR, c, null, v);
+	}
+
+	public void transferir(String o, String d, int v) throws IllegalArgumentException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		conexion.llamar(Conexion.TRANSFERIR, o, d, v);
+	}
+
+	public int disponible(String c) throws IllegalArgumentException {
+		return conexion.llamar(Conexion.DISPONIBLE, c, null, 0);
+	}
+
+	public void alertar(String c, int m) throws IllegalArgumentException {
+		conexion.llamar(Conexion.ALERTAR, c, null, m);
+	}
+
+	/**
+	 * Como ingresar, sin esperar la respuesta.
+	 * @return futuro que se completa cuando el ingreso esta hecho
+	 */
+	public CompletableFuture<Void> ingresarAsync(String c, int v) {
+		return conexion.enviar(Conexion.INGRESAR, c, null, v).thenApply(r -> null);
+	}
+
+	/**
+	 * Como transferir, sin esperar la respuesta.
+	 * @return futuro que se completa cuando la transferencia esta hecha, o
+	 * excepcionalmente con IllegalArgumentException si o y d son la misma
+	 * cuenta
+	 */
+	public CompletableFuture<Void> transferirAsync(String o, String d, int v) {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException());
+		}
+		return conexion.enviar(Conexion.TRANSFERIR, o, d, v).thenApply(r -> null);
+	}
+
+	/**
+	 * Como disponible, sin esperar la respuesta.
+	 * @return futuro con el saldo, o completado excepcionalmente con
+	 * IllegalArgumentException si la cuenta c no existe
+	 */
+	public CompletableFuture<Integer> disponibleAsync(String c) {
+		return conexion.enviar(Conexion.DISPONIBLE, c, null, 0);
+	}
+
+	/**
+	 * Como alertar, sin esperar la respuesta.
+	 * @return futuro que se completa cuando el saldo de c baja de m, o
+	 * excepcionalmente con IllegalArgumentException si la cuenta c no
+	 * existe
+	 */
+	public CompletableFuture<Void> alertarAsync(String c, int m) {
+		return conexion.enviar(Conexion.ALERTAR, c, null, m).thenApply(r -> null);
+	}
+
+	/**
+	 * Cierra la conexion; las peticiones en curso fallan con
+	 * IllegalStateException.
+	 */
+	public void close() {
+		try {
+			conexion.close();
+		} catch (IOException exc) {
+			// Ya estaba cerrada
+		}
+	}
+}
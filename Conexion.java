@@ -0,0 +1,196 @@
+package cc.banco;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Conexion TCP de un cliente (BancoDistribuido, ClienteBanco u otro
+ * nodo) con un NodoBanco o un ServidorBanco. Se pueden tener muchas
+ * peticiones en curso a la vez por la misma conexion, de uno o de
+ * varios hilos: cada peticion lleva un identificador y un hilo lector
+ * entrega cada respuesta a su futuro, aunque lleguen en otro orden (una
+ * transferencia bloqueada no retrasa al resto).
+ *
+ * Peticion: longitud del resto (int), id (long), operacion (byte),
+ * a (UTF), b (UTF), v (int).
+ * Respuesta: id (long), estado (byte), valor (int).
+ */
+class Conexion implements Closeable {
+	// Operaciones de los clientes
+	static final byte INGRESAR = 0;
+	static final byte DISPONIBLE = 1;
+	static final byte TRANSFERIR = 2;
+	static final byte ALERTAR = 3;
+	// Operaciones entre nodos para las transferencias entre nodos: PREPARAR contesta cuando
+	// la cuenta a existe en el nodo y ABONAR ingresa v en una cuenta que ya existe, una sola
+	// vez por identificador de abono b (ver NodoBanco)
+	static final byte PREPARAR = 4;
+	static final byte ABONAR = 5;
+	// Estados de respuesta
+	static final byte HECHO = 0;
+	static final byte NO_EXISTE = 1;
+	static final byte INVALIDA = 2;
+	static final byte FALLO = 3;
+
+	// Socket con el nodo
+	private final Socket socket;
+	// Salida de peticiones; se escribe una peticion entera con el cerrojo de la salida
+	private final DataOutputStream salida;
+	// Siguiente identificador de peticion
+	private final AtomicLong ids = new AtomicLong();
+	// Hilos escribiendo o esperando para escribir; el ultimo vacia el buffer de salida
+	private final AtomicInteger escritores = new AtomicInteger();
+	// Peticiones en curso por identificador; el futuro recibe estado y valor (ver respuesta)
+	private final ConcurrentHashMap<Long, CompletableFuture<Long>> encurso = new ConcurrentHashMap<Long, CompletableFuture<Long>>();
+	// Indica si el hilo lector ha terminado: ya no llegara ninguna respuesta
+	private volatile boolean cerrada;
+
+	/**
+	 * Abre la conexion y arranca su hilo lector.
+	 * @param direccion direccion del nodo
+	 * @throws IOException si no se puede conectar
+	 */
+	Conexion(InetSocketAddress direccion) throws IOException {
+		this.socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(direccion);
+		this.salida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		DataInputStream entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		Thread lector = new Thread(() -> leer(entrada), "Conexion " + direccion);
+		lector.setDaemon(true);
+		lector.start();
+	}
+
+	/**
+	 * Envia una peticion y espera su respuesta.
+	 * @return valor de la respuesta
+	 * @throws IllegalArgumentException si el nodo contesta NO_EXISTE o INVALIDA
+	 * @throws IllegalStateException si se pierde la conexion o el nodo contesta FALLO
+	 */
+	int llamar(byte operacion, String a, String b, int v) {
+		try {
+			return enviar(operacion, a, b, v).join();
+		} catch (CompletionException exc) {
+			throw (RuntimeException) exc.getCause();
+		}
+	}
+
+	/**
+	 * Envia una peticion sin esperar la respuesta.
+	 * @return futuro con el valor de la respuesta, o completado
+	 * excepcionalmente con IllegalArgumentException si el nodo contesta
+	 * NO_EXISTE o INVALIDA y con IllegalStateException si se pierde la
+	 * conexion o el nodo contesta FALLO
+	 */
+	CompletableFuture<Integer> enviar(byte operacion, String a, String b, int v) {
+		if (cerrada) {
+			return CompletableFuture.failedFuture(perdida());
+		}
+		// La peticion se compone fuera del cerrojo de la salida
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream peticion = new DataOutputStream(bytes);
+		long id = ids.incrementAndGet();
+		CompletableFuture<Long> respuesta = new CompletableFuture<Long>();
+		encurso.put(id, respuesta);
+		// Si el lector ha terminado antes de ver esta peticion, nadie la completaria
+		if (cerrada) {
+			encurso.remove(id);
+			return CompletableFuture.failedFuture(perdida());
+		}
+		try {
+			peticion.writeLong(id);
+			peticion.writeByte(operacion);
+			peticion.writeUTF(a);
+			peticion.writeUTF(b == null ? "" : b);
+			peticion.writeInt(v);
+			escritores.incrementAndGet();
+			synchronized (salida) {
+				try {
+					salida.writeInt(bytes.size());
+					bytes.writeTo(salida);
+				} finally {
+					// Si hay otro hilo esperando para escribir, sera el quien vacie el buffer
+					if (escritores.decrementAndGet() == 0) {
+						salida.flush();
+					}
+				}
+			}
+		} catch (IOException exc) {
+			encurso.remove(id);
+			return CompletableFuture.failedFuture(new IllegalStateException(exc));
+		}
+		return respuesta.handle((r, exc) -> {
+			if (exc != null) {
+				throw new IllegalStateException(exc);
+			}
+			switch ((int) (r >>> 32)) {
+			case HECHO:
+				return (int) (long) r;
+			case NO_EXISTE:
+			case INVALIDA:
+				throw new IllegalArgumentException();
+			default:
+				throw new IllegalStateException("Fallo en " + socket.getRemoteSocketAddress());
+			}
+		});
+	}
+
+	public void close() throws IOException {
+		cerrada = true;
+		socket.close();
+	}
+
+	// Metodo auxiliar que devuelve el error de una peticion por una conexion perdida; lleva
+	// causa para distinguirlo de un FALLO contestado por el nodo
+	private IllegalStateException perdida() {
+		return new IllegalStateException(new IOException("Conexion cerrada con " + socket.getRemoteSocketAddress()));
+	}
+
+	/**
+	 * Escribe una respuesta (la usa NodoBanco en su lado de la conexion).
+	 */
+	static void responder(DataOutputStream salida, long id, byte estado, int valor) throws IOException {
+		synchronized (salida) {
+			salida.writeLong(id);
+			salida.writeByte(estado);
+			salida.writeInt(valor);
+			salida.flush();
+		}
+	}
+
+	// Metodo auxiliar del hilo lector: entrega las respuestas; al cerrarse la conexion falla todas las pendientes
+	private void leer(DataInputStream entrada) {
+		try {
+			while (true) {
+				long id = entrada.readLong();
+				byte estado = entrada.readByte();
+				int valor = entrada.readInt();
+				CompletableFuture<Long> respuesta = encurso.remove(id);
+				if (respuesta != null) {
+					respuesta.complete(((long) estado << 32) | (valor & 0xffffffffL));
+				}
+			}
+		} catch (IOException exc) {
+			// Primero se marca cerrada: las peticiones que se anadan despues fallan en enviar
+			cerrada = true;
+			for (Long id : encurso.keySet()) {
+				CompletableFuture<Long> respuesta = encurso.remove(id);
+				if (respuesta != null) {
+					respuesta.completeExceptionally(exc);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,587 @@
+package cc.banco;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Diario binario de las operaciones realizadas por un banco, para
+ * reconstruir los saldos al arrancar. El banco anota cada operacion
+ * dentro de su exclusion mutua (solo se copia a memoria, salvo con
+ * POR_OPERACION; asi el orden del diario es el orden en que se
+ * realizaron) y, ya fuera, espera a que sea duradera. Anotar nunca
+ * lanza un error de escritura: se recibe al esperar. Con sincronizacion por lote los hilos que esperan a
+ * la vez se agrupan: uno escribe y sincroniza con el disco todo lo
+ * anotado hasta ese momento y los demas solo esperan.
+ *
+ * Las cuentas se anotan por su hueco en RegistroCuentas: la creacion
+ * lleva el número de cuenta y las demas operaciones solo los huecos,
+ * que al reproducir el diario en orden vuelven a ser los mismos.
+ *
+ * Para no reproducir toda la historia al arrancar, el banco puede
+ * guardar instantaneas de los saldos junto al diario (fichero con
+ * sufijo ".instantanea"). La instantanea se copia por trozos de cuentas
+ * y cada trozo recuerda la posicion del diario en que se copio; al
+ * arrancar se carga la instantanea y solo se reproduce el final del
+ * diario, aplicando a cada cuenta los registros posteriores a su trozo.
+ *
+ * Una vez guardada la instantanea, la parte del diario anterior al
+ * primer corte ya no hace falta y se descarta: el final del diario se
+ * copia a un fichero nuevo que sustituye al anterior. Las posiciones del
+ * diario (las de los cortes y posicion()) no cambian por ello: el
+ * fichero compactado empieza con una cabecera con la posicion de su
+ * primer registro.
+ *
+ * Si falla una escritura el fichero se deja como estaba antes de ella
+ * (sin un registro a medias) y el diario queda fallido: lo no escrito se
+ * conserva en memoria, pero todas las esperas, las que estaban en curso
+ * y las siguientes, terminan con el error.
+ */
+public class Diario implements Closeable {
+	/**
+	 * Cuando se sincroniza el diario con el disco.
+	 */
+	public enum Sincronizacion {
+		/** Nunca: se escribe por lotes y el sistema decide cuando llega al disco. */
+		NINGUNA,
+		/** Una vez por cada grupo de operaciones que esperan a la vez. */
+		POR_LOTE,
+		/**
+		 * Una vez por operacion, dentro de la exclusion mutua del banco. Un
+		 * fallo no se lanza al anotar sino en esperar, fuera de ella.
+		 */
+		POR_OPERACION
+	}
+
+	// Tipos de registro
+	private static final byte CREAR = 1;
+	private static final byte INGRESAR = 2;
+	private static final byte TRANSFERIR = 3;
+	// Comienzo de un fichero de instantanea
+	private static final int MAGIA = 0x42414e43;
+	// Comienzo de un diario compactado, seguido de la posicion de su primer registro (long); un
+	// diario sin cabecera empieza en la posicion 0
+	private static final int MAGIA_DIARIO = 0x44494152;
+	private static final int CABECERA = 4 + 8;
+
+	// Ruta del diario
+	private final Path fichero;
+	// Fichero del diario; cambia al compactar, siempre con escribiendo a cierto
+	private FileChannel canal;
+	// Posicion del primer registro del fichero
+	private long base;
+	// Bytes de cabecera del fichero (0 o CABECERA)
+	private int cabecera;
+	// Fichero de la ultima instantanea
+	private final Path instantanea;
+	// Politica de sincronizacion
+	private final Sincronizacion sincronizacion;
+	// Cerrojo de los buffers y contadores; solo se escribe en el fichero con el adquirido al anotar
+	// con POR_OPERACION
+	private final ReentrantLock cerrojo;
+	// Condicion por la que esperan los hilos mientras otro escribe su grupo
+	private final Condition escrito;
+	// Registros anotados que aun no se han escrito
+	private ByteBuffer anotando;
+	// Buffer libre para el siguiente grupo
+	private ByteBuffer libre;
+	// Numero de registros anotados
+	private long anotados;
+	// Numero de registros ya escritos (y sincronizados, segun la politica)
+	private long duraderos;
+	// Posicion en el fichero donde acaba el ultimo registro anotado
+	private long fin;
+	// Indica si algun hilo esta escribiendo un grupo
+	private boolean escribiendo;
+	// Error de la escritura que fallo, o null; desde entonces ningun registro es duradero
+	private IOException fallo;
+
+	/**
+	 * Abre (o crea) el diario de un fichero.
+	 * @param fichero fichero del diario
+	 * @param sincronizacion politica de sincronizacion con el disco
+	 * @throws UncheckedIOException si no se puede abrir
+	 */
+	public Diario(Path fichero, Sincronizacion sincronizacion) {
+		try {
+			this.canal = FileChannel.open(fichero, StandardOpenOption.CREATE,
+			                              StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+		this.fichero = fichero;
+		this.instantanea = fichero.resolveSibling(fichero.getFileName() + ".instantanea");
+		this.sincronizacion = sincronizacion;
+		this.cerrojo = new ReentrantLock();
+		this.escrito = cerrojo.newCondition();
+		this.anotando = ByteBuffer.allocate(1 << 16);
+		this.libre = ByteBuffer.allocate(1 << 16);
+	}
+
+	/**
+	 * Carga la ultima instantanea, si la hay, en un registro vacio,
+	 * reproduce el diario desde ella y deja el fichero listo para seguir
+	 * anotando. Un ultimo registro incompleto (el proceso acabo a medias
+	 * de escribirlo) se descarta.
+	 * @param cuentas registro donde se recrean las cuentas
+	 * @return numero de registros reproducidos
+	 * @throws UncheckedIOException si no se puede leer algun fichero
+	 */
+	public long reproducir(RegistroCuentas cuentas) {
+		try {
+			// Sin instantanea todas las cuentas se reproducen desde el principio
+			long[] cortes = { 0 };
+			int trozo = 1;
+			int n = 0;
+			if (Files.exists(instantanea)) {
+				try (FileChannel fi = FileChannel.open(instantanea, StandardOpenOption.READ)) {
+					MappedByteBuffer datos = fi.map(FileChannel.MapMode.READ_ONLY, 0, fi.size());
+					if (datos.getInt() != MAGIA) {
+						throw new IllegalStateException("No es una instantanea: " + instantanea);
+					}
+					trozo = datos.getInt();
+					n = datos.getInt();
+					cortes = new long[datos.getInt()];
+					for (int k = 0; k < cortes.length; k++) {
+						cortes[k] = datos.getLong();
+					}
+					int[] saldos = new int[n];
+					datos.asIntBuffer().get(saldos);
+					datos.position(datos.position() + 4 * n);
+					for (int h = 0; h < n; h++) {
+						cuentas.crear(numero(datos), saldos[h]);
+					}
+				}
+			}
+			// Las posiciones son del diario completo: el fichero puede empezar despues de la 0
+			base = 0;
+			cabecera = 0;
+			if (canal.size() >= CABECERA) {
+				ByteBuffer inicial = ByteBuffer.allocate(CABECERA);
+				while (inicial.hasRemaining() && canal.read(inicial, inicial.position()) >= 0) {
+				}
+				inicial.flip();
+				if (inicial.getInt() == MAGIA_DIARIO) {
+					base = inicial.getLong();
+					cabecera = CABECERA;
+				}
+			}
+			if (minimo(cortes) < base) {
+				throw new IllegalStateException("El diario empieza despues de la instantanea: " + instantanea);
+			}
+			long tamano = base + canal.size() - cabecera;
+			long valido = Math.min(minimo(cortes), tamano);
+			long registros = 0;
+			if (tamano > valido) {
+				// Solo se lee el final del diario, desde el primer corte de la instantanea
+				long inicio = valido;
+				MappedByteBuffer datos = canal.map(FileChannel.MapMode.READ_ONLY, inicio - base + cabecera, tamano - inicio);
+				try {
+					while (datos.hasRemaining()) {
+						reproducir(datos, inicio, cuentas, cortes, trozo, n);
+						valido = inicio + datos.position();
+						registros++;
+					}
+				} catch (BufferUnderflowException | IllegalStateException exc) {
+					// Registro incompleto o inconsistente: el diario valido acaba en el anterior
+				}
+			}
+			canal.truncate(valido - base + cabecera);
+			canal.position(valido - base + cabecera);
+			fin = valido;
+			return registros;
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+	}
+
+	// Metodo auxiliar que reproduce un registro. Cada cuenta de la instantanea solo recibe los
+	// registros desde el corte de su trozo; las posteriores a la instantanea, todos
+	private static void reproducir(ByteBuffer datos, long base, RegistroCuentas cuentas,
+	                               long[] cortes, int trozo, int n) {
+		long posicion = base + datos.position();
+		byte tipo = datos.get();
+		switch (tipo) {
+		case CREAR: {
+			String c = numero(datos);
+			int v = datos.getInt();
+			cuentas.crear(c, v);
+			break;
+		}
+		case INGRESAR: {
+			int h = hueco(datos, cuentas);
+			int v = datos.getInt();
+			if (posicion >= corte(h, cortes, trozo, n)) {
+				cuentas.sumar(h, v);
+			}
+			break;
+		}
+		case TRANSFERIR: {
+			int ho = hueco(datos, cuentas);
+			int hd = hueco(datos, cuentas);
+			int v = datos.getInt();
+			if (posicion >= corte(ho, cortes, trozo, n)) {
+				cuentas.sumar(ho, -v);
+			}
+			if (posicion >= corte(hd, cortes, trozo, n)) {
+				cuentas.sumar(hd, v);
+			}
+			break;
+		}
+		default:
+			throw new IllegalStateException("Tipo de registro desconocido: " + tipo);
+		}
+	}
+
+	// Metodo auxiliar que devuelve el primer corte de una instantanea
+	private static long minimo(long[] cortes) {
+		long minimo = cortes[0];
+		for (long corte : cortes) {
+			minimo = Math.min(minimo, corte);
+		}
+		return minimo;
+	}
+
+	// Metodo auxiliar que devuelve la posicion del diario en que se copio la cuenta h
+	private static long corte(int h, long[] cortes, int trozo, int n) {
+		return h < n ? cortes[h / trozo] : cortes[0];
+	}
+
+	// Metodo auxiliar que lee un número de cuenta
+	private static String numero(ByteBuffer datos) {
+		byte[] numero = new byte[datos.getShort() & 0xffff];
+		datos.get(numero);
+		return new String(numero, StandardCharsets.UTF_8);
+	}
+
+	// Metodo auxiliar que lee un hueco y comprueba que la cuenta ya se ha creado
+	private static int hueco(ByteBuffer datos, RegistroCuentas cuentas) {
+		int h = datos.getInt();
+		if (h < 0 || h >= cuentas.size()) {
+			throw new IllegalStateException("Hueco sin cuenta: " + h);
+		}
+		return h;
+	}
+
+	/**
+	 * Anota la creacion de una cuenta con un ingreso inicial.
+	 * @return numero del registro, para esperar a que sea duradero
+	 */
+	public long anotarCreacion(String c, int v) {
+		byte[] numero = c.getBytes(StandardCharsets.UTF_8);
+		cerrojo.lock();
+		try {
+			int tamano = 1 + 2 + numero.length + 4;
+			espacio(tamano).put(CREAR).putShort((short) numero.length).put(numero).putInt(v);
+			return anotado(tamano);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Anota un ingreso en una cuenta ya creada.
+	 * @return numero del registro, para esperar a que sea duradero
+	 */
+	public long anotarIngreso(int h, int v) {
+		cerrojo.lock();
+		try {
+			espacio(1 + 4 + 4).put(INGRESAR).putInt(h).putInt(v);
+			return anotado(1 + 4 + 4);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Anota una transferencia entre dos cuentas ya creadas.
+	 * @return numero del registro, para esperar a que sea duradero
+	 */
+	public long anotarTransferencia(int ho, int hd, int v) {
+		cerrojo.lock();
+		try {
+			espacio(1 + 4 + 4 + 4).put(TRANSFERIR).putInt(ho).putInt(hd).putInt(v);
+			return anotado(1 + 4 + 4 + 4);
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * @return numero de registros anotados hasta ahora
+	 */
+	public long anotados() {
+		cerrojo.lock();
+		try {
+			return anotados;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Devuelve la posicion del diario tras el ultimo registro anotado. El
+	 * banco la toma dentro de su exclusion mutua al copiar un trozo de
+	 * instantanea: los registros desde esa posicion no estan en la copia.
+	 * @return posicion en bytes desde el principio del fichero
+	 */
+	public long posicion() {
+		cerrojo.lock();
+		try {
+			return fin;
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Guarda una instantanea en lugar de la anterior. Se escribe en un
+	 * fichero temporal que despues sustituye al anterior, asi un fallo a
+	 * medias deja la instantanea anterior intacta. Despues se descarta el
+	 * diario anterior al primer corte.
+	 * @param numeros número de cuenta de cada hueco (al menos saldos.length)
+	 * @param saldos saldo de cada hueco
+	 * @param trozo numero de cuentas de cada trozo
+	 * @param cortes posicion del diario en que se copio cada trozo
+	 * @throws UncheckedIOException si falla la escritura
+	 */
+	public void guardarInstantanea(String[] numeros, int[] saldos, int trozo, long[] cortes) {
+		// Se deja escrito el diario hasta el ultimo corte, la instantanea no puede adelantarse a el
+		esperar(anotados());
+		Path temporal = instantanea.resolveSibling(instantanea.getFileName() + ".tmp");
+		int n = saldos.length;
+		byte[][] bytes = new byte[n][];
+		long tamano = 4 * 4 + 8L * cortes.length + 4L * n;
+		for (int h = 0; h < n; h++) {
+			bytes[h] = numeros[h].getBytes(StandardCharsets.UTF_8);
+			tamano += 2 + bytes[h].length;
+		}
+		try (FileChannel fi = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		                                       StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			MappedByteBuffer datos = fi.map(FileChannel.MapMode.READ_WRITE, 0, tamano);
+			datos.putInt(MAGIA).putInt(trozo).putInt(n).putInt(cortes.length);
+			for (long corte : cortes) {
+				datos.putLong(corte);
+			}
+			datos.asIntBuffer().put(saldos);
+			datos.position(datos.position() + 4 * n);
+			for (byte[] numero : bytes) {
+				datos.putShort((short) numero.length).put(numero);
+			}
+			datos.force();
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+		try {
+			Files.move(temporal, instantanea, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		}
+		// La instantanea ya es duradera: lo anterior a su primer corte no se vuelve a leer
+		compactar(minimo(cortes));
+	}
+
+	// Metodo auxiliar que sustituye el diario por su final desde la posicion corte. Mientras tanto
+	// nadie escribe en el fichero (se toma el turno de escritura); las anotaciones siguen en memoria
+	private void compactar(long corte) {
+		cerrojo.lock();
+		try {
+			while (escribiendo) {
+				escrito.awaitUninterruptibly();
+			}
+			if (corte <= base) {
+				return;
+			}
+			escribiendo = true;
+		} finally {
+			cerrojo.unlock();
+		}
+		try {
+			Path temporal = fichero.resolveSibling(fichero.getFileName() + ".tmp");
+			FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			                                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				ByteBuffer inicial = ByteBuffer.allocate(CABECERA).putInt(MAGIA_DIARIO).putLong(corte);
+				inicial.flip();
+				while (inicial.hasRemaining()) {
+					nuevo.write(inicial);
+				}
+				long desde = corte - base + cabecera;
+				long tamano = canal.size();
+				while (desde < tamano) {
+					desde += canal.transferTo(desde, tamano - desde, nuevo);
+				}
+				nuevo.force(true);
+				Files.move(temporal, fichero, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException | RuntimeException exc) {
+				nuevo.close();
+				throw exc;
+			}
+			canal.close();
+			canal = nuevo;
+			canal.position(canal.size());
+			base = corte;
+			cabecera = CABECERA;
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		} finally {
+			cerrojo.lock();
+			escribiendo = false;
+			escrito.signalAll();
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Espera a que los registros anotados hasta el indicado sean
+	 * duraderos. No debe llamarse dentro de la exclusion mutua del banco.
+	 * @param registro numero de registro devuelto al anotar
+	 * @throws UncheckedIOException si falla la escritura, esta o una anterior
+	 */
+	public void esperar(long registro) {
+		cerrojo.lock();
+		try {
+			while (duraderos < registro) {
+				if (fallo != null) {
+					throw new UncheckedIOException(fallo);
+				}
+				if (escribiendo) {
+					escrito.awaitUninterruptibly();
+					continue;
+				}
+				// Nadie escribe: este hilo escribe todo lo anotado hasta ahora
+				escribiendo = true;
+				ByteBuffer grupo = anotando;
+				anotando = libre;
+				long hasta = anotados;
+				cerrojo.unlock();
+				IOException error = null;
+				boolean hecho = false;
+				try {
+					escribir(grupo, sincronizacion != Sincronizacion.NINGUNA);
+					hecho = true;
+				} catch (IOException exc) {
+					error = exc;
+				} finally {
+					cerrojo.lock();
+					if (hecho) {
+						libre = grupo;
+						duraderos = hasta;
+					} else {
+						// El diario queda fallido antes de despertar a nadie: ningun otro hilo escribe
+						// detras del grupo perdido ni da por duraderos sus registros
+						fallo = error != null ? error : new IOException("Escritura interrumpida");
+						anotando = juntar(grupo, anotando);
+					}
+					escribiendo = false;
+					escrito.signalAll();
+				}
+			}
+		} finally {
+			cerrojo.unlock();
+		}
+	}
+
+	/**
+	 * Escribe y sincroniza lo anotado y cierra el fichero.
+	 */
+	public void close() {
+		try {
+			esperar(anotados());
+			canal.force(true);
+		} catch (IOException exc) {
+			throw new UncheckedIOException(exc);
+		} finally {
+			// Aunque el diario haya fallado, el fichero se cierra
+			try {
+				canal.close();
+			} catch (IOException exc) {
+				// Ya estaba cerrado
+			}
+		}
+	}
+
+	// Metodo auxiliar que cuenta un registro anotado de n bytes y, si se sincroniza por operacion,
+	// lo escribe ya
+	private long anotado(int n) {
+		anotados++;
+		fin += n;
+		if (sincronizacion == Sincronizacion.POR_OPERACION && !escribiendo && fallo == null) {
+			// Se anota dentro de la exclusion mutua del banco: un error aqui no se lanza (el banco se
+			// quedaria con ella), queda en fallo y lo recibe esperar, que se llama ya fuera
+			try {
+				escribir(anotando, true);
+				duraderos = anotados;
+			} catch (IOException exc) {
+				fallo = exc;
+			} catch (RuntimeException exc) {
+				fallo = new IOException(exc);
+			}
+		}
+		return anotados;
+	}
+
+	// Metodo auxiliar que devuelve el buffer de anotacion con sitio para n bytes mas
+	private ByteBuffer espacio(int n) {
+		if (anotando.remaining() < n) {
+			ByteBuffer mayor = ByteBuffer.allocate(Math.max(2 * anotando.capacity(), anotando.position() + n));
+			anotando.flip();
+			mayor.put(anotando);
+			anotando = mayor;
+		}
+		return anotando;
+	}
+
+	// Metodo auxiliar que escribe un buffer entero en el fichero, lo sincroniza si se pide y lo vacia.
+	// Si falla, quita del fichero lo escrito a medias y deja el buffer como estaba
+	private void escribir(ByteBuffer buf, boolean sincronizar) throws IOException {
+		long inicio = canal.position();
+		buf.flip();
+		try {
+			while (buf.hasRemaining()) {
+				canal.write(buf);
+			}
+			if (sincronizar) {
+				canal.force(false);
+			}
+		} catch (IOException | RuntimeException exc) {
+			buf.position(buf.limit());
+			buf.limit(buf.capacity());
+			try {
+				canal.truncate(inicio);
+				canal.position(inicio);
+			} catch (IOException otro) {
+				exc.addSuppressed(otro);
+			}
+			throw exc;
+		}
+		buf.clear();
+	}
+
+	// Metodo auxiliar que pone los registros de siguiente detras de los de grupo, que no se pudo
+	// escribir, y devuelve el buffer con todos; siguiente queda libre
+	private ByteBuffer juntar(ByteBuffer grupo, ByteBuffer siguiente) {
+		siguiente.flip();
+		if (grupo.remaining() < siguiente.remaining()) {
+			ByteBuffer mayor = ByteBuffer.allocate(grupo.position() + siguiente.remaining());
+			grupo.flip();
+			mayor.put(grupo);
+			grupo = mayor;
+		}
+		grupo.put(siguiente);
+		siguiente.clear();
+		libre = siguiente;
+		return grupo;
+	}
+}
@@ -0,0 +1,182 @@
+package cc.banco;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Banco que anota en una traza binaria cada operacion que se le pide
+ * antes de pasarsela a otro banco, para reproducir despues exactamente
+ * la misma carga contra cualquier motor (ver Reproductor).
+ *
+ * Cada hilo que llama al banco es un actor, numerado por orden de
+ * aparicion. Cada operacion se anota al pedirla con su actor, su tipo,
+ * sus cuentas, su valor y el tiempo en nanosegundos desde que se creo el
+ * grabador; las operaciones aparecen en la traza en orden de tiempo. Las
+ * cuentas se anotan por un numero que se asigna la primera vez que
+ * aparecen, con un registro que lleva el número de cuenta.
+ *
+ * Formato: MAGIA (int) y despues registros:
+ * <pre>
+ *   CUENTA      tipo (byte), numero (int), número de cuenta (UTF)
+ *   INGRESAR    tipo, actor (int), tiempo (long), cuenta (int), valor (int)
+ *   TRANSFERIR  tipo, actor, tiempo, origen (int), destino (int), valor (int)
+ *   DISPONIBLE  tipo, actor, tiempo, cuenta
+ *   ALERTAR     tipo, actor, tiempo, cuenta, minimo (int)
+ *   PENDIENTE   tipo, actor: la ultima operacion del actor no habia
+ *               terminado al cerrar el grabador
+ * </pre>
+ */
+public class GrabadorTraza implements Banco, Closeable {
+  // Tipos de registro; las operaciones usan los mismos numeros que Carga
+  static final byte INGRESAR = 0;
+  static final byte TRANSFERIR = 1;
+  static final byte DISPONIBLE = 2;
+  static final byte ALERTAR = 3;
+  static final byte CUENTA = 4;
+  static final byte PENDIENTE = 5;
+  // Comienzo de un fichero de traza
+  static final int MAGIA = 0x5452415a;
+
+  private final Banco banco;
+  private final DataOutputStream salida;
+  private final long inicio = System.nanoTime();
+  // Numero de cada cuenta anotada
+  private final HashMap<String, Integer> numeros = new HashMap<String, Integer>();
+  // Actores por orden de aparicion
+  private final List<actor> actores = new ArrayList<actor>();
+  private final ThreadLocal<actor> actual = ThreadLocal.withInitial(this::nuevoactor);
+  private boolean cerrado = false;
+
+  /**
+   * Crea el fichero de traza (o lo vacia si ya existia).
+   * @param banco banco que realiza las operaciones
+   * @param traza fichero de traza
+   * @throws UncheckedIOException si no se puede crear
+   */
+  public GrabadorTraza(Banco banco, Path traza) {
+    this.banco = banco;
+    try {
+      this.salida = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(traza), 1 << 16));
+      salida.writeInt(MAGIA);
+    } catch (IOException exc) {
+      throw new UncheckedIOException(exc);
+    }
+  }
+
+  public void ingresar(String c, int v) {
+    actor a = anotar(INGRESAR, c, null, v);
+    try {
+      banco.ingresar(c, v);
+    } finally {
+      a.encurso = false;
+    }
+  }
+
+  public void transferir(String o, String d, int v) {
+    actor a = anotar(TRANSFERIR, o, d, v);
+    try {
+      banco.transferir(o, d, v);
+    } finally {
+      a.encurso = false;
+    }
+  }
+
+  public int disponible(String c) {
+    actor a = anotar(DISPONIBLE, c, null, 0);
+    try {
+      return banco.disponible(c);
+    } finally {
+      a.encurso = false;
+    }
+  }
+
+  public void alertar(String c, int m) {
+    actor a = anotar(ALERTAR, c, null, m);
+    try {
+      banco.alertar(c, m);
+    } finally {
+      a.encurso = false;
+    }
+  }
+
+  /**
+   * Anota que operaciones siguen en curso y cierra el fichero. Las
+   * operaciones posteriores se siguen pasando al banco pero ya no se
+   * anotan.
+   * @throws IOException si falla la escritura
+   */
+  public synchronized void close() throws IOException {
+    if (cerrado)
+      return;
+    cerrado = true;
+    for (actor a : actores) {
+      if (a.encurso) {
+        salida.writeByte(PENDIENTE);
+        salida.writeInt(a.numero);
+      }
+    }
+    salida.close();
+  }
+
+  // Metodo auxiliar que anota una operacion del actor que llama y lo marca en curso
+  private synchronized actor anotar(byte tipo, String a, String b, int v) {
+    actor yo = actual.get();
+    if (cerrado)
+      return yo;
+    try {
+      int na = numero(a);
+      int nb = b == null ? 0 : numero(b);
+      salida.writeByte(tipo);
+      salida.writeInt(yo.numero);
+      salida.writeLong(System.nanoTime() - inicio);
+      salida.writeInt(na);
+      if (tipo == TRANSFERIR)
+        salida.writeInt(nb);
+      if (tipo != DISPONIBLE)
+        salida.writeInt(v);
+    } catch (IOException exc) {
+      throw new UncheckedIOException(exc);
+    }
+    yo.encurso = true;
+    return yo;
+  }
+
+  // Metodo auxiliar que devuelve el numero de una cuenta, anotandola si es nueva
+  private int numero(String c) throws IOException {
+    Integer n = numeros.get(c);
+    if (n == null) {
+      n = numeros.size();
+      numeros.put(c, n);
+      salida.writeByte(CUENTA);
+      salida.writeInt(n);
+      salida.writeUTF(c);
+    }
+    return n;
+  }
+
+  // Metodo auxiliar que da numero a un actor nuevo; se llama con el cerrojo del grabador
+  private actor nuevoactor() {
+    actor a = new actor(actores.size());
+    actores.add(a);
+    return a;
+  }
+
+  // Hilo que llama al banco
+  private static final class actor {
+    private final int numero;
+    // Si tiene una operacion anotada que aun no ha terminado
+    private volatile boolean encurso;
+
+    private actor(int numero) {
+      this.numero = numero;
+    }
+  }
+}
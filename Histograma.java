@@ -0,0 +1,92 @@
+package cc.banco;
+
+/**
+ * Histograma de latencias en nanosegundos con cubetas logaritmicas: cada
+ * potencia de 2 se divide en SUBCUBETAS/2 partes iguales, asi el error
+ * relativo de un percentil es menor que 2/SUBCUBETAS (un 3%) y
+ * registrar un valor no reserva memoria. No es seguro para hilos: cada
+ * hilo usa el suyo y al final se suman.
+ */
+public class Histograma {
+  private static final int BITS_SUB = 6;
+  private static final int SUBCUBETAS = 1 << BITS_SUB;
+  private final long[] cubetas = new long[(64 - BITS_SUB + 1) * SUBCUBETAS];
+  private long total;
+  private long maximo;
+
+  /**
+   * Registra un valor.
+   * @param ns latencia en nanosegundos (los negativos cuentan como 0)
+   */
+  public void registrar(long ns) {
+    if (ns < 0)
+      ns = 0;
+    cubetas[indice(ns)]++;
+    total++;
+    if (ns > maximo)
+      maximo = ns;
+  }
+
+  /**
+   * Suma en este histograma los valores de otro.
+   */
+  public void sumar(Histograma otro) {
+    for (int i = 0; i < cubetas.length; i++)
+      cubetas[i] += otro.cubetas[i];
+    total += otro.total;
+    maximo = Math.max(maximo, otro.maximo);
+  }
+
+  /**
+   * Devuelve el número de valores registrados.
+   */
+  public long total() {
+    return total;
+  }
+
+  /**
+   * Devuelve el mayor valor registrado.
+   */
+  public long maximo() {
+    return maximo;
+  }
+
+  /**
+   * Devuelve el valor por debajo del cual queda la fraccion p de los
+   * valores registrados (limite superior de su cubeta).
+   * @param p fraccion entre 0 y 1, p.ej. 0.99
+   */
+  public long percentil(double p) {
+    if (total == 0)
+      return 0;
+    long objetivo = (long) Math.ceil(p * total);
+    if (objetivo < 1)
+      objetivo = 1;
+    long acumulado = 0;
+    for (int i = 0; i < cubetas.length; i++) {
+      acumulado += cubetas[i];
+      if (acumulado >= objetivo)
+        return Math.min(limite(i), maximo);
+    }
+    return maximo;
+  }
+
+  // Indice de la cubeta de un valor: los valores pequeños van uno por
+  // cubeta, los demas por exponente y los BITS_SUB bits siguientes
+  private static int indice(long v) {
+    if (v < SUBCUBETAS)
+      return (int) v;
+    int exp = 63 - Long.numberOfLeadingZeros(v) - BITS_SUB + 1;
+    int sub = (int) (v >>> exp) - SUBCUBETAS / 2;
+    return SUBCUBETAS + (exp - 1) * (SUBCUBETAS / 2) + sub;
+  }
+
+  // Mayor valor que cae en la cubeta i
+  private static long limite(int i) {
+    if (i < SUBCUBETAS)
+      return i;
+    int exp = (i - SUBCUBETAS) / (SUBCUBETAS / 2) + 1;
+    long sub = (i - SUBCUBETAS) % (SUBCUBETAS / 2) + SUBCUBETAS / 2;
+    return ((sub + 1) << exp) - 1;
+  }
+}
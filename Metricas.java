@@ -0,0 +1,70 @@
+package cc.banco;
+
+/**
+ * Destino de las medidas internas de un motor de Banco. El motor llama a
+ * estos metodos desde sus operaciones (algunos dentro de su exclusion
+ * mutua), asi que las implementaciones deben ser seguras para hilos,
+ * baratas y no bloquear. MetricasJMX las publica como MBean.
+ */
+public interface Metricas {
+  /**
+   * Operaciones medidas.
+   */
+  enum Operacion { INGRESAR, TRANSFERIR, DISPONIBLE, ALERTAR }
+
+  /**
+   * Motivo por el que una peticion queda bloqueada.
+   */
+  enum Causa {
+    /** La cuenta origen de la transferencia no existe. */
+    ORIGEN_NO_EXISTE,
+    /** La cuenta destino de la transferencia no existe. */
+    DESTINO_NO_EXISTE,
+    /** La cuenta origen no tiene saldo suficiente. */
+    SALDO_INSUFICIENTE,
+    /** Hay transferencias anteriores con el mismo origen. */
+    COLA_ORIGEN,
+    /** Una alerta espera a que el saldo baje del minimo. */
+    ALERTA
+  }
+
+  /**
+   * Revisiones de peticiones bloqueadas que hace el motor tras cambiar
+   * algun saldo.
+   */
+  enum Revision { TRANSFERENCIAS, ALERTAS }
+
+  /**
+   * Una operacion ha terminado.
+   * @param operacion operacion realizada
+   * @param ns tiempo total en nanosegundos, esperas incluidas
+   */
+  void operacion(Operacion operacion, long ns);
+
+  /**
+   * Una peticion ha dejado de estar bloqueada.
+   * @param causa motivo por el que se bloqueo
+   * @param ns tiempo bloqueada en nanosegundos
+   */
+  void bloqueo(Causa causa, long ns);
+
+  /**
+   * Cambia el número de transferencias pendientes con origen en una cuenta.
+   * @param cuenta cuenta origen
+   * @param cambio +1 al encolar una, -1 al sacarla
+   */
+  void pendientes(String cuenta, int cambio);
+
+  /**
+   * Cambia el número de alertas pendientes.
+   * @param cambio alertas anadidas (positivo) o liberadas (negativo)
+   */
+  void alertas(int cambio);
+
+  /**
+   * El motor ha hecho una revision de peticiones bloqueadas.
+   * @param revision tipo de revision
+   * @param entradas peticiones o cuentas examinadas en ella
+   */
+  void revision(Revision revision, int entradas);
+}
@@ -0,0 +1,228 @@
+package cc.banco;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Metricas en contadores repartidos (LongAdder), que varios hilos pueden
+ * incrementar a la vez sin pelearse por la misma linea de cache, y
+ * publicadas como MXBean con registrar(). Las latencias se guardan en
+ * histogramas de potencias de 2, suficientes para ver el orden de
+ * magnitud de los percentiles.
+ */
+public class MetricasJMX implements Metricas, MetricasMXBean {
+  private final histograma[] latencias = new histograma[Operacion.values().length];
+  private final LongAdder[] bloqueos = new LongAdder[Causa.values().length];
+  private final LongAdder[] tiempobloqueado = new LongAdder[Causa.values().length];
+  private final LongAdder[] revisiones = new LongAdder[Revision.values().length];
+  private final LongAdder[] entradas = new LongAdder[Revision.values().length];
+  private final LongAccumulator[] maximoentradas = new LongAccumulator[Revision.values().length];
+  private final LongAdder transferenciaspendientes = new LongAdder();
+  private final LongAdder alertaspendientes = new LongAdder();
+  // Transferencias pendientes por cuenta origen; las cuentas sin ninguna no estan
+  private final ConcurrentHashMap<String, Integer> pendientesporcuenta = new ConcurrentHashMap<String, Integer>();
+
+  public MetricasJMX() {
+    for (int i = 0; i < latencias.length; i++)
+      latencias[i] = new histograma();
+    for (int i = 0; i < bloqueos.length; i++) {
+      bloqueos[i] = new LongAdder();
+      tiempobloqueado[i] = new LongAdder();
+    }
+    for (int i = 0; i < revisiones.length; i++) {
+      revisiones[i] = new LongAdder();
+      entradas[i] = new LongAdder();
+      maximoentradas[i] = new LongAccumulator(Math::max, 0);
+    }
+  }
+
+  /**
+   * Registra estas metricas en el servidor de MBeans de la plataforma
+   * como cc.banco:type=Metricas,name=nombre.
+   * @param nombre nombre del banco medido
+   * @throws IllegalStateException si no se puede registrar
+   */
+  public void registrar(String nombre) {
+    try {
+      ManagementFactory.getPlatformMBeanServer()
+        .registerMBean(this, new ObjectName("cc.banco:type=Metricas,name=" + ObjectName.quote(nombre)));
+    } catch (JMException exc) {
+      throw new IllegalStateException(exc);
+    }
+  }
+
+  public void operacion(Operacion operacion, long ns) {
+    latencias[operacion.ordinal()].registrar(ns);
+  }
+
+  public void bloqueo(Causa causa, long ns) {
+    bloqueos[causa.ordinal()].increment();
+    tiempobloqueado[causa.ordinal()].add(ns);
+  }
+
+  public void pendientes(String cuenta, int cambio) {
+    transferenciaspendientes.add(cambio);
+    // Se quita la entrada al llegar a cero
+    pendientesporcuenta.merge(cuenta, cambio, (a, b) -> a + b == 0 ? null : a + b);
+  }
+
+  public void alertas(int cambio) {
+    alertaspendientes.add(cambio);
+  }
+
+  public void revision(Revision revision, int n) {
+    revisiones[revision.ordinal()].increment();
+    entradas[revision.ordinal()].add(n);
+    maximoentradas[revision.ordinal()].accumulate(n);
+  }
+
+  public Map<String, Long> getOperaciones() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Operacion op : Operacion.values())
+      m.put(op.name(), latencias[op.ordinal()].total.sum());
+    return m;
+  }
+
+  public Map<String, Long> getLatenciaP50() {
+    return percentiles(0.50);
+  }
+
+  public Map<String, Long> getLatenciaP99() {
+    return percentiles(0.99);
+  }
+
+  public Map<String, Long> getLatenciaMaxima() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Operacion op : Operacion.values())
+      m.put(op.name(), latencias[op.ordinal()].maximo.get() / 1000);
+    return m;
+  }
+
+  public Map<String, Long> getBloqueos() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Causa causa : Causa.values())
+      m.put(causa.name(), bloqueos[causa.ordinal()].sum());
+    return m;
+  }
+
+  public Map<String, Long> getTiempoBloqueado() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Causa causa : Causa.values())
+      m.put(causa.name(), tiempobloqueado[causa.ordinal()].sum() / 1000);
+    return m;
+  }
+
+  public Map<String, Long> getRevisiones() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Revision revision : Revision.values())
+      m.put(revision.name(), revisiones[revision.ordinal()].sum());
+    return m;
+  }
+
+  public Map<String, Double> getEntradasPorRevision() {
+    Map<String, Double> m = new LinkedHashMap<String, Double>();
+    for (Revision revision : Revision.values()) {
+      long n = revisiones[revision.ordinal()].sum();
+      m.put(revision.name(), n == 0 ? 0.0 : entradas[revision.ordinal()].sum() / (double) n);
+    }
+    return m;
+  }
+
+  public Map<String, Long> getMaximoEntradasPorRevision() {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Revision revision : Revision.values())
+      m.put(revision.name(), maximoentradas[revision.ordinal()].get());
+    return m;
+  }
+
+  public long getTransferenciasPendientes() {
+    return transferenciaspendientes.sum();
+  }
+
+  public long getAlertasPendientes() {
+    return alertaspendientes.sum();
+  }
+
+  public int transferenciasPendientes(String cuenta) {
+    return pendientesporcuenta.getOrDefault(cuenta, 0);
+  }
+
+  public Map<String, Integer> cuentasConMasPendientes(int n) {
+    List<Map.Entry<String, Integer>> todas = new ArrayList<Map.Entry<String, Integer>>(pendientesporcuenta.entrySet());
+    todas.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+    Map<String, Integer> m = new LinkedHashMap<String, Integer>();
+    for (int i = 0; i < n && i < todas.size(); i++)
+      m.put(todas.get(i).getKey(), todas.get(i).getValue());
+    return m;
+  }
+
+  public void reiniciar() {
+    for (histograma h : latencias)
+      h.reiniciar();
+    for (int i = 0; i < bloqueos.length; i++) {
+      bloqueos[i].reset();
+      tiempobloqueado[i].reset();
+    }
+    for (int i = 0; i < revisiones.length; i++) {
+      revisiones[i].reset();
+      entradas[i].reset();
+      maximoentradas[i].reset();
+    }
+  }
+
+  private Map<String, Long> percentiles(double p) {
+    Map<String, Long> m = new LinkedHashMap<String, Long>();
+    for (Operacion op : Operacion.values())
+      m.put(op.name(), latencias[op.ordinal()].percentil(p) / 1000);
+    return m;
+  }
+
+  // Histograma concurrente: la cubeta i cuenta los valores con i bits significativos
+  private static final class histograma {
+    private final LongAdder[] cubetas = new LongAdder[65];
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator maximo = new LongAccumulator(Math::max, 0);
+
+    private histograma() {
+      for (int i = 0; i < cubetas.length; i++)
+        cubetas[i] = new LongAdder();
+    }
+
+    private void registrar(long ns) {
+      cubetas[64 - Long.numberOfLeadingZeros(Math.max(ns, 0))].increment();
+      total.increment();
+      maximo.accumulate(ns);
+    }
+
+    // Limite superior de la cubeta donde cae la fraccion p de los valores
+    private long percentil(double p) {
+      long n = total.sum();
+      if (n == 0)
+        return 0;
+      long objetivo = Math.max(1, (long) Math.ceil(p * n));
+      long acumulado = 0;
+      for (int i = 0; i < cubetas.length; i++) {
+        acumulado += cubetas[i].sum();
+        if (acumulado >= objetivo)
+          return Math.min(i == 64 ? Long.MAX_VALUE : (1L << i) - 1, maximo.get());
+      }
+      return maximo.get();
+    }
+
+    private void reiniciar() {
+      for (LongAdder cubeta : cubetas)
+        cubeta.reset();
+      total.reset();
+      maximo.reset();
+    }
+  }
+}
@@ -0,0 +1,57 @@
+package cc.banco;
+
+import java.util.Map;
+
+/**
+ * Vista JMX de MetricasJMX. Los mapas van indexados por el nombre de la
+ * operacion, causa o revision; los tiempos, en microsegundos.
+ */
+public interface MetricasMXBean {
+  /** @return operaciones terminadas de cada tipo */
+  Map<String, Long> getOperaciones();
+
+  /** @return latencia mediana de cada operacion */
+  Map<String, Long> getLatenciaP50();
+
+  /** @return percentil 99 de la latencia de cada operacion */
+  Map<String, Long> getLatenciaP99();
+
+  /** @return latencia maxima de cada operacion */
+  Map<String, Long> getLatenciaMaxima();
+
+  /** @return peticiones desbloqueadas por cada causa */
+  Map<String, Long> getBloqueos();
+
+  /** @return tiempo total bloqueado por cada causa */
+  Map<String, Long> getTiempoBloqueado();
+
+  /** @return revisiones hechas de cada tipo */
+  Map<String, Long> getRevisiones();
+
+  /** @return media de entradas examinadas por revision de cada tipo */
+  Map<String, Double> getEntradasPorRevision();
+
+  /** @return maximo de entradas examinadas en una revision de cada tipo */
+  Map<String, Long> getMaximoEntradasPorRevision();
+
+  /** @return transferencias pendientes en total */
+  long getTransferenciasPendientes();
+
+  /** @return alertas pendientes en total */
+  long getAlertasPendientes();
+
+  /**
+   * @param cuenta número de cuenta
+   * @return transferencias pendientes con origen en la cuenta
+   */
+  int transferenciasPendientes(String cuenta);
+
+  /**
+   * @param n número de cuentas a devolver
+   * @return las n cuentas con mas transferencias pendientes y cuantas tiene cada una
+   */
+  Map<String, Integer> cuentasConMasPendientes(int n);
+
+  /** Pone a cero contadores e histogramas (no los pendientes). */
+  void reiniciar();
+}
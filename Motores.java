@@ -0,0 +1,48 @@
+package cc.banco;
+
+/**
+ * Crea los motores de Banco por nombre para que el simulador y las
+ * pruebas de rendimiento los comparen en las mismas condiciones.
+ * Ademas de los nombres con variante de abajo, vale el nombre de
+ * cualquier clase de cc.banco que implemente Banco con constructor sin
+ * argumentos, asi un motor nuevo se puede medir sin tocar este fichero.
+ */
+public final class Motores {
+
+  private Motores() {
+  }
+
+  /**
+   * Devuelve un banco nuevo del motor indicado.
+   * @param nombre nombre del motor: BancoMonitor, BancoMonitorLectura,
+   * BancoCSP, BancoCSPReutilizar, BancoCSPBuffer, BancoCSPParticionado,
+   * BancoCerrojos...
+   * @return el banco creado
+   * @throws IllegalArgumentException si no hay ningun motor con ese nombre
+   */
+  public static Banco crear(String nombre) {
+    switch (nombre) {
+    case "BancoMonitorLectura":
+      return new BancoMonitor(true);
+    case "BancoCSPReutilizar":
+      return new BancoCSP(true);
+    case "BancoCSPBuffer":
+      return new BancoCSP(true, 1024, BancoCSP.Contrapresion.BLOQUEAR, 0);
+    default:
+      try {
+        return (Banco) Class.forName("cc.banco." + nombre).getDeclaredConstructor().newInstance();
+      } catch (ReflectiveOperationException | ClassCastException exc) {
+        throw new IllegalArgumentException("Motor desconocido: " + nombre, exc);
+      }
+    }
+  }
+
+  /**
+   * Devuelve los números de cuenta 000, 001... (ver Simulador.cuentas).
+   * @param n número de cuentas
+   * @return array con los números de cuenta
+   */
+  public static String[] cuentas(int n) {
+    return Simulador.cuentas(n);
+  }
+}
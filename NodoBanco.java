@@ -0,0 +1,361 @@
+package cc.banco;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Proceso de un banco repartido en varios nodos (ver BancoDistribuido).
+ * Cada nodo es propietario de las cuentas que le asigna
+ * BancoDistribuido.nodo y las guarda en un motor local cualquiera (ver
+ * Motores). Atiende por TCP a los clientes y a los otros nodos.
+ *
+ * Una transferencia la atiende el nodo del origen. Si el destino es de
+ * otro nodo se hace en dos fases:
+ * - preparar: se pide al nodo destino que conteste cuando el destino
+ *   exista (la existencia no cambia una vez creada la cuenta) y despues
+ *   se reserva el dinero con una transferencia local del origen a una
+ *   cuenta de transito, que bloquea hasta que el origen exista y tenga
+ *   saldo;
+ * - confirmar: se pide al nodo destino que abone el dinero, que no puede
+ *   fallar porque el destino ya existe, y se saca de la cuenta de
+ *   transito.
+ * Todas las transferencias de un origen, locales o no, pasan por un
+ * cerrojo equitativo de ese origen durante la preparacion, asi se
+ * atienden en orden de llegada.
+ *
+ * Una vez reservado el dinero la transferencia ya no se deshace. Cada
+ * abono lleva un identificador (la clave de esta ejecucion del nodo y
+ * una secuencia) y el nodo destino aplica cada identificador una sola
+ * vez, asi que si se pierde la conexion o la respuesta el abono se
+ * reintenta, por una conexion nueva, hasta que el destino conteste; el
+ * dinero sigue en la cuenta de transito hasta entonces. Si el destino
+ * tarda demasiado el cliente recibe un fallo y otro hilo sigue
+ * reintentando: la transferencia se completara al volver el destino.
+ * Con cada abono va tambien la menor secuencia sin confirmar, y el
+ * destino olvida (y trata como ya aplicados) los anteriores.
+ *
+ * Uso: java cc.banco.NodoBanco indice puerto0,puerto1,... [motor]
+ * El nodo escucha en el puerto de su indice (en la interfaz local) y
+ * escribe LISTO por la salida estandar cuando acepta conexiones.
+ */
+public class NodoBanco {
+	// Cuenta local donde esta el dinero reservado de las transferencias a otros nodos
+	static final String TRANSITO = "\u0000transito";
+	// Intentos de un abono en el hilo de la transferencia antes de dejarlo a otro hilo
+	private static final int INTENTOS = 5;
+	// Pausa maxima entre intentos de un abono, en milisegundos
+	private static final long PAUSA = 1000;
+
+	// Indice de este nodo
+	private final int indice;
+	// Direcciones de todos los nodos
+	private final InetSocketAddress[] nodos;
+	// Motor local con las cuentas de este nodo
+	private final Banco banco;
+	// Cuentas de este nodo que ya existen o que alguien espera: el cerrojo se abre al crearlas
+	private final ConcurrentHashMap<String, CountDownLatch> creadas = new ConcurrentHashMap<String, CountDownLatch>();
+	// Cerrojo equitativo de cada cuenta origen, para el orden de llegada de sus transferencias
+	private final ConcurrentHashMap<String, ReentrantLock> origenes = new ConcurrentHashMap<String, ReentrantLock>();
+	// Conexiones con los otros nodos, se abren al necesitarlas
+	private final Conexion[] conexiones;
+	// Clave de esta ejecucion del nodo en los identificadores de sus abonos
+	private final String clave;
+	// Ultima secuencia de abono usada, protegida por sinconfirmar
+	private long abonos;
+	// Secuencias de los abonos enviados que aun no ha confirmado su nodo destino
+	private final ConcurrentSkipListSet<Long> sinconfirmar = new ConcurrentSkipListSet<Long>();
+	// Abonos recibidos de cada ejecucion de otro nodo, por su clave
+	private final ConcurrentHashMap<String, recibidos> recibidos = new ConcurrentHashMap<String, recibidos>();
+	// Hilos para las operaciones que pueden bloquear
+	private final ExecutorService hilos = Executors.newCachedThreadPool(r -> {
+		Thread hilo = new Thread(r);
+		hilo.setDaemon(true);
+		return hilo;
+	});
+
+	/**
+	 * @param indice indice de este nodo en nodos
+	 * @param nodos direcciones de todos los nodos
+	 * @param motor nombre del motor local (ver Motores)
+	 */
+	public NodoBanco(int indice, InetSocketAddress[] nodos, String motor) {
+		if (indice < 0 || indice >= nodos.length) {
+			throw new IllegalArgumentException();
+		}
+		this.indice = indice;
+		this.nodos = nodos;
+		this.banco = Motores.crear(motor);
+		this.conexiones = new Conexion[nodos.length];
+		this.clave = indice + "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+		banco.ingresar(TRANSITO, 0);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Uso: java cc.banco.NodoBanco indice puerto0,puerto1,... [motor]");
+			System.exit(2);
+		}
+		String[] puertos = args[1].split(",");
+		InetSocketAddress[] nodos = new InetSocketAddress[puertos.length];
+		for (int i = 0; i < puertos.length; i++) {
+			nodos[i] = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(puertos[i]));
+		}
+		new NodoBanco(Integer.parseInt(args[0]), nodos, args.length > 2 ? args[2] : "BancoMonitor").servir();
+	}
+
+	/**
+	 * Acepta conexiones hasta que termine el proceso; cada una tiene su
+	 * hilo lector.
+	 * @throws IOException si no se puede escuchar en el puerto del nodo
+	 */
+	public void servir() throws IOException {
+		try (ServerSocket servidor = new ServerSocket()) {
+			servidor.bind(nodos[indice]);
+			System.out.println("LISTO");
+			System.out.flush();
+			while (true) {
+				Socket socket = servidor.accept();
+				socket.setTcpNoDelay(true);
+				Thread lector = new Thread(() -> atender(socket), "NodoBanco " + indice + " " + socket.getRemoteSocketAddress());
+				lector.setDaemon(true);
+				lector.start();
+			}
+		}
+	}
+
+	// Metodo auxiliar que lee las peticiones de una conexion. Las que no bloquean se atienden
+	// en el propio hilo lector y las demas en el ejecutor, asi no retrasan a las siguientes
+	private void atender(Socket socket) {
+		try (Socket s = socket) {
+			DataInputStream entrada = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream salida = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+			while (true) {
+				// Longitud de la peticion, solo la necesita ServidorBanco
+				entrada.readInt();
+				long id = entrada.readLong();
+				byte operacion = entrada.readByte();
+				String a = entrada.readUTF();
+				String b = entrada.readUTF();
+				int v = entrada.readInt();
+				switch (operacion) {
+				case Conexion.INGRESAR:
+				case Conexion.DISPONIBLE:
+				case Conexion.ABONAR:
+					ejecutar(salida, id, operacion, a, b, v);
+					break;
+				default:
+					hilos.execute(() -> ejecutar(salida, id, operacion, a, b, v));
+				}
+			}
+		} catch (EOFException exc) {
+			// El otro extremo ha cerrado la conexion
+		} catch (IOException exc) {
+			System.err.println("NodoBanco " + indice + ": " + exc);
+		}
+	}
+
+	// Metodo auxiliar que realiza una operacion y contesta
+	private void ejecutar(DataOutputStream salida, long id, byte operacion, String a, String b, int v) {
+		byte estado = Conexion.HECHO;
+		int valor = 0;
+		try {
+			switch (operacion) {
+			case Conexion.INGRESAR:
+				ingresar(a, v);
+				break;
+			case Conexion.ABONAR:
+				abonado(a, b, v);
+				break;
+			case Conexion.DISPONIBLE:
+				valor = banco.disponible(a);
+				break;
+			case Conexion.TRANSFERIR:
+				transferir(a, b, v);
+				break;
+			case Conexion.ALERTAR:
+				banco.alertar(a, v);
+				break;
+			case Conexion.PREPARAR:
+				creada(a).await();
+				break;
+			default:
+				estado = Conexion.INVALIDA;
+			}
+		} catch (IllegalArgumentException exc) {
+			estado = operacion == Conexion.TRANSFERIR ? Conexion.INVALIDA : Conexion.NO_EXISTE;
+		} catch (InterruptedException | RuntimeException exc) {
+			estado = Conexion.FALLO;
+		}
+		try {
+			Conexion.responder(salida, id, estado, valor);
+		} catch (IOException exc) {
+			// El cliente ya no esta; la operacion se ha hecho igualmente
+		}
+	}
+
+	// Metodo auxiliar que ingresa en una cuenta de este nodo y abre su cerrojo de creacion
+	private void ingresar(String c, int v) {
+		banco.ingresar(c, v);
+		CountDownLatch creada = creada(c);
+		if (creada.getCount() > 0) {
+			creada.countDown();
+		}
+	}
+
+	// Metodo auxiliar que atiende una transferencia cuyo origen es de este nodo
+	private void transferir(String o, String d, int v) throws InterruptedException {
+		// Se comprueba PRE (Si la cuenta de origen es la misma que la de destino)
+		if (o.equals(d)) {
+			throw new IllegalArgumentException();
+		}
+		int nd = BancoDistribuido.nodo(d, nodos.length);
+		ReentrantLock cerrojo = origenes.computeIfAbsent(o, c -> new ReentrantLock(true));
+		cerrojo.lock();
+		try {
+			if (nd == indice) {
+				// Destino local: el motor espera las CPREs y mantiene el orden por origen
+				banco.transferir(o, d, v);
+				return;
+			}
+			// Preparar: primero el destino remoto, que no toca saldos, y despues la reserva local
+			preparar(nd, d);
+			banco.transferir(o, TRANSITO, v);
+		} finally {
+			cerrojo.unlock();
+		}
+		// Confirmar: el abono ya no depende de ninguna CPRE y no se deshace, solo se reintenta
+		long secuencia;
+		// Se anota a la vez que se numera para que ningun abono posterior la de por confirmada
+		synchronized (sinconfirmar) {
+			secuencia = ++abonos;
+			sinconfirmar.add(secuencia);
+		}
+		if (!abonar(nd, d, v, secuencia, INTENTOS)) {
+			hilos.execute(() -> abonar(nd, d, v, secuencia, Integer.MAX_VALUE));
+			throw new IllegalStateException("Abono pendiente en el nodo " + nd);
+		}
+	}
+
+	// Metodo auxiliar que espera a que exista el destino en su nodo. No toca saldos, asi que si la
+	// conexion se ha perdido (el nodo se ha reiniciado) se repite una vez por una conexion nueva
+	private void preparar(int nd, String d) {
+		for (int intento = 0; ; intento++) {
+			Conexion conexion = conexion(nd);
+			try {
+				conexion.llamar(Conexion.PREPARAR, d, null, 0);
+				return;
+			} catch (IllegalStateException exc) {
+				if (exc.getCause() == null) {
+					throw exc;
+				}
+				descartar(nd, conexion);
+				if (intento > 0) {
+					throw exc;
+				}
+			}
+		}
+	}
+
+	// Metodo auxiliar que envia un abono como mucho intentos veces hasta que el nodo destino conteste;
+	// entonces saca el dinero de la cuenta de transito. Devuelve si ha contestado
+	private boolean abonar(int nd, String d, int v, long secuencia, int intentos) {
+		long pausa = 10;
+		for (int i = 0; i < intentos; i++) {
+			Conexion conexion = null;
+			try {
+				conexion = conexion(nd);
+				// Con la secuencia va la menor sin confirmar, que es como mucho esta
+				conexion.llamar(Conexion.ABONAR, d, clave + "/" + secuencia + "/" + sinconfirmar.first(), v);
+				sinconfirmar.remove(secuencia);
+				banco.ingresar(TRANSITO, -v);
+				return true;
+			} catch (IllegalStateException exc) {
+				// Sin respuesta no se sabe si se ha abonado: se reintenta con el mismo identificador,
+				// por una conexion nueva si la anterior se ha perdido
+				if (conexion != null && exc.getCause() != null) {
+					descartar(nd, conexion);
+				}
+			}
+			LockSupport.parkNanos(pausa * 1000000L);
+			pausa = Math.min(2 * pausa, PAUSA);
+		}
+		return false;
+	}
+
+	// Metodo auxiliar que aplica un abono de otro nodo una sola vez por identificador
+	private void abonado(String c, String id, int v) {
+		int fin = id.lastIndexOf('/');
+		int medio = id.lastIndexOf('/', fin - 1);
+		long secuencia = Long.parseLong(id.substring(medio + 1, fin));
+		long confirmados = Long.parseLong(id.substring(fin + 1));
+		recibidos origen = recibidos.computeIfAbsent(id.substring(0, medio), k -> new recibidos());
+		synchronized (origen) {
+			// Los anteriores a confirmados ya estan aplicados y el origen no los reintenta: se olvidan
+			if (confirmados > origen.confirmados) {
+				origen.confirmados = confirmados;
+				origen.aplicados.headSet(confirmados).clear();
+			}
+			if (secuencia >= origen.confirmados && origen.aplicados.add(secuencia)) {
+				ingresar(c, v);
+			}
+		}
+	}
+
+	// clase auxiliar con los abonos aplicados de una ejecucion de otro nodo
+	private static class recibidos {
+		// Secuencias anteriores a esta ya aplicadas y confirmadas
+		private long confirmados;
+		// Secuencias aplicadas desde confirmados
+		private final TreeSet<Long> aplicados = new TreeSet<Long>();
+	}
+
+	// Metodo auxiliar que devuelve el cerrojo de creacion de una cuenta
+	private CountDownLatch creada(String c) {
+		return creadas.computeIfAbsent(c, k -> new CountDownLatch(1));
+	}
+
+	// Metodo auxiliar que devuelve la conexion con otro nodo, abriendola si hace falta
+	private Conexion conexion(int nodo) {
+		synchronized (conexiones) {
+			if (conexiones[nodo] == null) {
+				try {
+					conexiones[nodo] = new Conexion(nodos[nodo]);
+				} catch (IOException exc) {
+					throw new IllegalStateException(exc);
+				}
+			}
+			return conexiones[nodo];
+		}
+	}
+
+	// Metodo auxiliar que cierra una conexion perdida para que la siguiente llamada abra otra
+	private void descartar(int nodo, Conexion conexion) {
+		synchronized (conexiones) {
+			if (conexiones[nodo] == conexion) {
+				conexiones[nodo] = null;
+			}
+		}
+		try {
+			conexion.close();
+		} catch (IOException exc) {
+			// Ya estaba cerrada
+		}
+	}
+}
@@ -0,0 +1,247 @@
+package cc.banco;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Registro de cuentas con saldos en un array de int. Cada número de
+ * cuenta se asocia una sola vez, al crearla, a un hueco entero denso
+ * (0, 1, 2...), y el saldo se lee y se modifica por ese hueco sin
+ * crear objetos Integer. La busqueda del hueco usa una tabla de
+ * dispersion abierta con las claves y los huecos en arrays, sin nodos
+ * por entrada, y las cuentas no se borran nunca.
+ *
+ * Las escrituras no son seguras para hilos: las protege el monitor,
+ * cerrojo o servidor del banco que lo usa. Solo leer admite llamarse
+ * sin exclusion (ver su descripcion).
+ */
+public class RegistroCuentas {
+	/** Valor que devuelve leer si la cuenta no existe. */
+	public static final long SIN_CUENTA = Long.MIN_VALUE;
+
+	// Acceso a las claves de la tabla con orden: una clave se publica con release despues de su
+	// hueco (y del saldo y el número de la cuenta), y los lectores sin exclusion la leen con acquire
+	private static final VarHandle CLAVES = MethodHandles.arrayElementVarHandle(String[].class);
+
+	// Tabla de dispersion: claves[i] ocupa la posicion i y su hueco es huecos[i]
+	private static final class tabla {
+		private final String[] claves;
+		private final int[] huecos;
+
+		private tabla(int capacidad) {
+			this.claves = new String[capacidad];
+			this.huecos = new int[capacidad];
+		}
+	}
+
+	// Tabla actual; se sustituye entera al crecer para que los lectores sin exclusion vean una consistente
+	private volatile tabla tabla;
+	// Saldo de cada hueco
+	private volatile int[] saldos;
+	// Número de cuenta de cada hueco; las posiciones ya escritas no cambian nunca
+	private volatile String[] numeros;
+	// Numero de cuentas creadas (siguiente hueco libre)
+	private int numcuentas;
+
+	// constructor del registro vacio
+	public RegistroCuentas() {
+		this(16);
+	}
+
+	// constructor con espacio previsto para n cuentas
+	public RegistroCuentas(int n) {
+		int capacidad = 16;
+		while (capacidad < 2 * n) {
+			capacidad <<= 1;
+		}
+		this.tabla = new tabla(capacidad);
+		this.saldos = new int[Math.max(n, 16)];
+		this.numeros = new String[Math.max(n, 16)];
+		this.numcuentas = 0;
+	}
+
+	/**
+	 * @param c número de cuenta
+	 * @return hueco de la cuenta o -1 si no existe
+	 */
+	public int hueco(String c) {
+		tabla t = tabla;
+		int mascara = t.claves.length - 1;
+		for (int i = dispersion(c) & mascara; ; i = (i + 1) & mascara) {
+			String clave = t.claves[i];
+			if (clave == null) {
+				return -1;
+			}
+			if (clave == c || clave.equals(c)) {
+				return t.huecos[i];
+			}
+		}
+	}
+
+	/**
+	 * @param c número de cuenta
+	 * @return true si la cuenta existe
+	 */
+	public boolean existe(String c) {
+		return hueco(c) >= 0;
+	}
+
+	/**
+	 * Crea una cuenta que no existia.
+	 * @param c número de cuenta
+	 * @param saldo saldo inicial
+	 * @return hueco asignado a la cuenta
+	 */
+	public int crear(String c, int saldo) {
+		int h = numcuentas;
+		int[] s = saldos;
+		if (h == s.length) {
+			s = Arrays.copyOf(s, 2 * s.length);
+		}
+		s[h] = saldo;
+		saldos = s;
+		String[] ns = numeros;
+		if (h == ns.length) {
+			ns = Arrays.copyOf(ns, 2 * ns.length);
+		}
+		ns[h] = c;
+		numeros = ns;
+		tabla t = tabla;
+		if (2 * (h + 1) > t.claves.length) {
+			t = crecer(t);
+		}
+		colocar(t, c, h);
+		tabla = t;
+		numcuentas = h + 1;
+		return h;
+	}
+
+	/**
+	 * @param h hueco de una cuenta existente
+	 * @return saldo de la cuenta
+	 */
+	public int saldo(int h) {
+		return saldos[h];
+	}
+
+	/**
+	 * Suma v (que puede ser negativo) al saldo de una cuenta existente.
+	 * @param h hueco de la cuenta
+	 * @param v valor a sumar
+	 */
+	public void sumar(int h, int v) {
+		saldos[h] += v;
+	}
+
+	/**
+	 * Devuelve el número de cuenta de un hueco. Se puede llamar sin
+	 * exclusion para los huecos creados antes de que el llamante leyera
+	 * size() con exclusion.
+	 * @param h hueco de una cuenta existente
+	 * @return número de cuenta
+	 */
+	public String numero(int h) {
+		return numeros[h];
+	}
+
+	/**
+	 * Copia los saldos de n huecos consecutivos.
+	 * @param desde primer hueco
+	 * @param destino array donde se copian, en la misma posicion
+	 * @param n numero de huecos
+	 */
+	public void copiar(int desde, int[] destino, int n) {
+		System.arraycopy(saldos, desde, destino, desde, n);
+	}
+
+	/**
+	 * Lee el saldo de una cuenta sin exclusion. Nunca lanza excepciones
+	 * ni se queda en un bucle, pero si hay escrituras concurrentes el
+	 * resultado puede no ser valido: el llamante debe comprobarlo, p.ej.
+	 * con una version que las escrituras cambien.
+	 * @param c número de cuenta
+	 * @return saldo de la cuenta o SIN_CUENTA si no existe
+	 */
+	public long leer(String c) {
+		tabla t = tabla;
+		int[] s = saldos;
+		int mascara = t.claves.length - 1;
+		int i = dispersion(c) & mascara;
+		for (int intentos = 0; intentos <= mascara; intentos++, i = (i + 1) & mascara) {
+			String clave = (String) CLAVES.getAcquire(t.claves, i);
+			if (clave == null) {
+				return SIN_CUENTA;
+			}
+			if (clave == c || clave.equals(c)) {
+				int h = t.huecos[i];
+				return h < s.length ? s[h] : SIN_CUENTA;
+			}
+		}
+		return SIN_CUENTA;
+	}
+
+	/**
+	 * Busca sin exclusion el hueco de una de las n primeras cuentas
+	 * creadas, siendo n un size() que el llamante leyo con exclusion.
+	 * Las cuentas creadas despues no se encuentran aunque se esten
+	 * creando a la vez.
+	 * @param c número de cuenta
+	 * @param n numero de cuentas visibles
+	 * @return hueco de la cuenta o -1 si no esta entre las n primeras
+	 */
+	public int buscar(String c, int n) {
+		tabla t = tabla;
+		int mascara = t.claves.length - 1;
+		int i = dispersion(c) & mascara;
+		for (int intentos = 0; intentos <= mascara; intentos++, i = (i + 1) & mascara) {
+			String clave = (String) CLAVES.getAcquire(t.claves, i);
+			if (clave == null) {
+				return -1;
+			}
+			if (clave == c || clave.equals(c)) {
+				// Si la clave se esta colocando ahora su hueco puede no verse aun,
+				// pero entonces no es de las n primeras y numero no coincide
+				int h = t.huecos[i];
+				return h < n && c.equals(numero(h)) ? h : -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return numero de cuentas creadas
+	 */
+	public int size() {
+		return numcuentas;
+	}
+
+	// Metodo auxiliar que copia las claves en una tabla del doble de capacidad
+	private static tabla crecer(tabla t) {
+		tabla nueva = new tabla(2 * t.claves.length);
+		for (int i = 0; i < t.claves.length; i++) {
+			if (t.claves[i] != null) {
+				colocar(nueva, t.claves[i], t.huecos[i]);
+			}
+		}
+		return nueva;
+	}
+
+	// Metodo auxiliar que coloca una clave en la primera posicion libre desde la suya. La tabla puede
+	// estar publicada: la clave se escribe la ultima y con release, asi quien la vea ve tambien su hueco
+	private static void colocar(tabla t, String c, int h) {
+		int mascara = t.claves.length - 1;
+		int i = dispersion(c) & mascara;
+		while (t.claves[i] != null) {
+			i = (i + 1) & mascara;
+		}
+		t.huecos[i] = h;
+		CLAVES.setRelease(t.claves, i, c);
+	}
+
+	// Metodo auxiliar que mezcla los bits del hash para repartir claves parecidas ("000", "001"...)
+	private static int dispersion(String c) {
+		int x = c.hashCode() * 0x9E3779B9;
+		return x ^ (x >>> 16);
+	}
+}
@@ -0,0 +1,363 @@
+package cc.banco;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reproduce contra cualquier motor una traza grabada con GrabadorTraza,
+ * al ritmo original o tan deprisa como se pueda, e imprime operaciones
+ * por segundo y percentiles de latencia como el modo de carga. Cada
+ * actor de la traza es un hilo que hace sus operaciones en el mismo
+ * orden que en la grabacion, asi dos reproducciones de la misma traza
+ * piden exactamente las mismas operaciones a los motores comparados.
+ *
+ * Las operaciones del principio de la traza que son todas de un mismo
+ * actor (la creacion de las cuentas, por ejemplo) se hacen antes de
+ * arrancar a los demas actores y no se miden. Las operaciones que
+ * seguian pendientes al cerrar el grabador no se reproducen, porque en
+ * la grabacion no llegaron a terminar. Aun asi, una operacion que en la
+ * grabacion termino gracias a un entrelazado concreto (una alerta por un
+ * saldo que bajo solo un momento) puede quedarse bloqueada al
+ * reproducirla con otro motor o a otro ritmo.
+ *
+ * La traza se lee proyectada en memoria por ventanas, sin copiarla: cada
+ * hilo recorre la traza entera y se queda con sus registros.
+ *
+ * Uso: java cc.banco.Simulador reproducir [opcion=valor ...]
+ * <pre>
+ *   traza=traza.bin      fichero de traza
+ *   motor=BancoMonitor   motor a probar (ver Motores)
+ *   ritmo=maximo         maximo: cada actor lanza la siguiente al acabar;
+ *                        original: cada operacion se lanza a su hora de
+ *                        la grabacion y su latencia se mide desde esa
+ *                        hora (como Carga con tasa fija)
+ * </pre>
+ */
+class Reproductor {
+  static final String[] NOMBRES = { "ingresar", "transferir", "disponible", "alertar" };
+
+  // Tamano de las ventanas de la traza proyectadas en memoria
+  private static final long VENTANA = 64L << 20;
+  // Tamano maximo de un registro: CUENTA con el número de cuenta mas largo
+  private static final int MAXIMO_REGISTRO = 1 + 4 + 2 + 65535;
+
+  Path traza = Paths.get("traza.bin");
+  String motor = "BancoMonitor";
+  boolean original = false;
+
+  // Resultado del recorrido previo de la traza
+  private int actores;
+  // Registros que se hacen antes de arrancar a los actores, y su actor
+  private long preparacion;
+  private int preparador = -1;
+  // Posicion en la traza de la ultima operacion de cada actor
+  private long[] ultimas = new long[16];
+  // Actores cuya ultima operacion seguia pendiente al cerrar el grabador
+  private final BitSet pendientes = new BitSet();
+  // Segundos desde que arrancan los actores hasta que acaba el ultimo
+  private double duracion;
+
+  public static void main(String[] args) throws InterruptedException {
+    Reproductor reproductor = new Reproductor();
+    for (String arg : args)
+      reproductor.opcion(arg);
+    reproductor.ejecutar();
+    // Los motores CSP dejan procesos servidores vivos
+    System.exit(0);
+  }
+
+  // Lee una opcion de la forma nombre=valor
+  void opcion(String arg) {
+    int igual = arg.indexOf('=');
+    if (igual < 0)
+      throw new IllegalArgumentException("Opcion sin valor: " + arg);
+    String nombre = arg.substring(0, igual);
+    String valor = arg.substring(igual + 1);
+    switch (nombre) {
+    case "traza": traza = Paths.get(valor); break;
+    case "motor": motor = valor; break;
+    case "ritmo":
+      if (!valor.equals("maximo") && !valor.equals("original"))
+        throw new IllegalArgumentException("Ritmo desconocido: " + valor);
+      original = valor.equals("original");
+      break;
+    default:
+      throw new IllegalArgumentException("Opcion desconocida: " + nombre);
+    }
+  }
+
+  void ejecutar() throws InterruptedException {
+    Banco banco = Motores.crear(motor);
+    Histograma[] latencias = reproducir(banco);
+    informe(latencias);
+  }
+
+  /**
+   * Reproduce la traza contra un banco.
+   * @return latencias de cada tipo de operacion, por el indice de NOMBRES
+   * @throws UncheckedIOException si no se puede leer la traza
+   */
+  Histograma[] reproducir(Banco banco) throws InterruptedException {
+    recorrer();
+    // Preparacion, en este hilo y sin medir
+    lector lector = new lector(traza);
+    while (lector.posicion() < preparacion) {
+      lector.siguiente();
+      if (lector.tipo <= GrabadorTraza.ALERTAR && !excluida(lector))
+        realizar(banco, lector);
+    }
+    lector.cerrar();
+
+    actor[] hilos = new actor[actores];
+    long inicio = System.nanoTime() + 100_000_000L;
+    for (int i = 0; i < actores; i++) {
+      hilos[i] = new actor(banco, i, inicio);
+      hilos[i].start();
+    }
+    Histograma[] latencias = new Histograma[NOMBRES.length];
+    for (int op = 0; op < NOMBRES.length; op++)
+      latencias[op] = new Histograma();
+    long fin = inicio;
+    for (actor hilo : hilos) {
+      hilo.join();
+      fin = Math.max(fin, hilo.fin);
+      for (int op = 0; op < NOMBRES.length; op++)
+        latencias[op].sumar(hilo.latencias[op]);
+    }
+    duracion = (fin - inicio) / 1e9;
+    return latencias;
+  }
+
+  // Metodo auxiliar que recorre la traza entera antes de reproducirla: cuenta los actores,
+  // busca donde acaba la preparacion y la ultima operacion de cada actor
+  private void recorrer() {
+    lector lector = new lector(traza);
+    preparacion = -1;
+    while (lector.siguiente()) {
+      if (lector.tipo == GrabadorTraza.PENDIENTE) {
+        pendientes.set(lector.actor);
+        continue;
+      }
+      if (lector.tipo == GrabadorTraza.CUENTA)
+        continue;
+      actores = Math.max(actores, lector.actor + 1);
+      if (lector.actor >= ultimas.length)
+        ultimas = Arrays.copyOf(ultimas, Math.max(lector.actor + 1, 2 * ultimas.length));
+      ultimas[lector.actor] = lector.anterior;
+      if (preparador < 0)
+        preparador = lector.actor;
+      else if (preparacion < 0 && lector.actor != preparador)
+        // La preparacion acaba justo antes de este registro
+        preparacion = lector.anterior;
+    }
+    if (preparacion < 0)
+      preparacion = lector.posicion();
+    lector.cerrar();
+  }
+
+  // Metodo auxiliar que indica si el registro actual es una operacion que no termino al grabar
+  private boolean excluida(lector lector) {
+    return pendientes.get(lector.actor) && lector.anterior == ultimas[lector.actor];
+  }
+
+  // Metodo auxiliar que hace la operacion del registro actual
+  private static void realizar(Banco banco, lector lector) {
+    try {
+      switch (lector.tipo) {
+      case GrabadorTraza.INGRESAR:
+        banco.ingresar(lector.nombres[lector.a], lector.v);
+        break;
+      case GrabadorTraza.TRANSFERIR:
+        banco.transferir(lector.nombres[lector.a], lector.nombres[lector.b], lector.v);
+        break;
+      case GrabadorTraza.DISPONIBLE:
+        banco.disponible(lector.nombres[lector.a]);
+        break;
+      default:
+        banco.alertar(lector.nombres[lector.a], lector.v);
+      }
+    } catch (IllegalArgumentException exc) {
+      // Tambien fallo en la grabacion
+    }
+  }
+
+  void informe(Histograma[] latencias) {
+    System.out.printf("motor=%s traza=%s actores=%d ritmo=%s duracion=%.1fs%n",
+                      motor, traza, actores, original ? "original" : "maximo", duracion);
+    System.out.printf("%-12s %12s %10s %10s %10s %10s%n",
+                      "operacion", "ops/s", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+    Histograma total = new Histograma();
+    for (int op = 0; op < NOMBRES.length; op++) {
+      if (latencias[op].total() > 0)
+        linea(NOMBRES[op], latencias[op]);
+      total.sumar(latencias[op]);
+    }
+    linea("total", total);
+  }
+
+  void linea(String nombre, Histograma h) {
+    System.out.printf("%-12s %12.0f %10.1f %10.1f %10.1f %10.1f%n",
+                      nombre, h.total() / duracion,
+                      h.percentil(0.50) / 1e3, h.percentil(0.99) / 1e3,
+                      h.percentil(0.999) / 1e3, h.maximo() / 1e3);
+  }
+
+
+  /**
+   * Hilo que reproduce las operaciones de un actor de la traza.
+   */
+  private class actor extends Thread {
+    private final Banco b;
+    private final int numero;
+    private final long inicio;
+    final Histograma[] latencias = new Histograma[NOMBRES.length];
+    // Hora a la que acabo su ultima operacion
+    long fin;
+
+    actor(Banco b, int numero, long inicio) {
+      super("Reproductor " + numero);
+      this.b = b;
+      this.numero = numero;
+      this.inicio = inicio;
+      this.fin = inicio;
+      for (int op = 0; op < latencias.length; op++)
+        latencias[op] = new Histograma();
+    }
+
+    public void run() {
+      lector lector = new lector(traza);
+      // Tiempo de la grabacion que corresponde a inicio
+      long cero = -1;
+      while (lector.siguiente()) {
+        if (lector.tipo == GrabadorTraza.CUENTA || lector.tipo == GrabadorTraza.PENDIENTE)
+          continue;
+        if (cero < 0 && lector.anterior >= preparacion)
+          cero = lector.tiempo;
+        if (lector.actor != numero || lector.anterior < preparacion)
+          continue;
+        if (excluida(lector))
+          break;
+        long comienzo = System.nanoTime();
+        if (original) {
+          // Se espera a la hora de la grabacion; si ya ha pasado se lanza sin esperar
+          long prevista = inicio + (lector.tiempo - cero);
+          while (comienzo < prevista) {
+            LockSupport.parkNanos(prevista - comienzo);
+            comienzo = System.nanoTime();
+          }
+          comienzo = prevista;
+        } else {
+          while (comienzo < inicio) {
+            LockSupport.parkNanos(inicio - comienzo);
+            comienzo = System.nanoTime();
+          }
+        }
+        realizar(b, lector);
+        fin = System.nanoTime();
+        latencias[lector.tipo].registrar(fin - comienzo);
+      }
+      lector.cerrar();
+    }
+  }
+
+
+  /**
+   * Lector secuencial de una traza proyectada en memoria por ventanas.
+   * Deja los campos del ultimo registro leido en sus atributos y los
+   * números de cuenta en nombres, por su numero.
+   */
+  private static final class lector {
+    private final FileChannel canal;
+    private final long tamano;
+    private MappedByteBuffer ventana;
+    // Posicion en el fichero del comienzo de la ventana
+    private long base;
+    // Campos del ultimo registro leido
+    byte tipo;
+    int actor;
+    long tiempo;
+    int a;
+    int b;
+    int v;
+    // Posicion en el fichero del comienzo del ultimo registro leido
+    long anterior;
+    String[] nombres = new String[16];
+
+    lector(Path traza) {
+      try {
+        this.canal = FileChannel.open(traza, StandardOpenOption.READ);
+        this.tamano = canal.size();
+        proyectar(0);
+        if (tamano < 4 || ventana.getInt() != GrabadorTraza.MAGIA)
+          throw new IOException("No es una traza: " + traza);
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+    }
+
+    long posicion() {
+      return base + ventana.position();
+    }
+
+    // Lee el siguiente registro; devuelve false al final de la traza
+    boolean siguiente() {
+      try {
+        if (ventana.remaining() < MAXIMO_REGISTRO && base + ventana.limit() < tamano)
+          proyectar(posicion());
+        if (!ventana.hasRemaining())
+          return false;
+        anterior = posicion();
+        tipo = ventana.get();
+        switch (tipo) {
+        case GrabadorTraza.CUENTA:
+          int numero = ventana.getInt();
+          // Se copia con su longitud para leerlo con readUTF (UTF-8 modificado)
+          byte[] bytes = new byte[2 + (ventana.getShort(ventana.position()) & 0xffff)];
+          ventana.get(bytes);
+          if (numero >= nombres.length)
+            nombres = Arrays.copyOf(nombres, Math.max(numero + 1, 2 * nombres.length));
+          nombres[numero] = new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+          break;
+        case GrabadorTraza.PENDIENTE:
+          actor = ventana.getInt();
+          break;
+        default:
+          actor = ventana.getInt();
+          tiempo = ventana.getLong();
+          a = ventana.getInt();
+          if (tipo == GrabadorTraza.TRANSFERIR)
+            b = ventana.getInt();
+          if (tipo != GrabadorTraza.DISPONIBLE)
+            v = ventana.getInt();
+        }
+        return true;
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+    }
+
+    void cerrar() {
+      try {
+        canal.close();
+      } catch (IOException exc) {
+        throw new UncheckedIOException(exc);
+      }
+    }
+
+    // Metodo auxiliar que proyecta la ventana que empieza en una posicion del fichero
+    private void proyectar(long posicion) throws IOException {
+      base = posicion;
+      ventana = canal.map(FileChannel.MapMode.READ_ONLY, base, Math.min(VENTANA, tamano - base));
+    }
+  }
+}
@@ -0,0 +1,384 @@
+package cc.banco;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Servidor TCP que ofrece cualquier Banco a otros procesos con el
+ * protocolo binario de Conexion (ver ClienteBanco). Un unico hilo atiende
+ * todas las conexiones con un Selector de NIO; cada conexion puede tener
+ * muchas peticiones en curso y las respuestas salen segun se completan,
+ * no en el orden de llegada.
+ *
+ * ingresar y disponible se hacen en el propio hilo del selector. Las
+ * operaciones que pueden bloquear (transferir y alertar) se hacen en un
+ * ejecutor, salvo si el banco es un BancoAsincrono: entonces se piden
+ * sus futuros y una peticion bloqueada no ocupa ningun hilo. El ejecutor
+ * usa un hilo virtual por operacion si la JVM los tiene (Java 21); si no,
+ * un hilo de plataforma por operacion, como mucho HILOS a la vez, y las
+ * operaciones de mas se contestan con FALLO. No se encolan: una
+ * operacion bloqueada puede necesitar otra posterior para terminar. Las
+ * respuestas pendientes de cada conexion se escriben juntas en cuanto el
+ * socket lo admite.
+ *
+ * Uso: java cc.banco.ServidorBanco puerto [motor]
+ * El servidor escucha en la interfaz local y escribe LISTO por la salida
+ * estandar cuando acepta conexiones.
+ */
+public class ServidorBanco implements Closeable {
+	// Tamano inicial del buffer de entrada de cada conexion
+	private static final int ENTRADA = 64 * 1024;
+	// Tamano de una respuesta: id, estado y valor
+	private static final int RESPUESTA = 8 + 1 + 4;
+	// Tamanos minimo y maximo de una peticion sin su longitud: id, operacion, a y b (UTF) y v
+	private static final int MINIMA = 8 + 1 + 2 + 2 + 4;
+	private static final int MAXIMA = 8 + 1 + 2 * (2 + 65535) + 4;
+	// Operaciones que pueden bloquear en curso a la vez si no hay hilos virtuales
+	private static final int HILOS = 1024;
+
+	// Banco ofrecido
+	private final Banco banco;
+	// Futuros del banco, o null si no es un BancoAsincrono
+	private final BancoAsincrono asincrono;
+	private final Selector selector;
+	private final ServerSocketChannel servidor;
+	// Conexiones con respuestas que el hilo del selector debe empezar a escribir
+	private final ConcurrentLinkedQueue<cliente> conrespuestas = new ConcurrentLinkedQueue<cliente>();
+	// Hilos para las operaciones que pueden bloquear
+	private final ExecutorService hilos = ejecutor();
+	// Operaciones que pueden bloquear en curso como mucho: sin limite con hilos virtuales
+	private final int limite = hilos instanceof ThreadPoolExecutor ? HILOS : Integer.MAX_VALUE;
+	// Operaciones que pueden bloquear en curso en hilos
+	private final AtomicInteger enhilos = new AtomicInteger();
+	private final Thread hiloselector;
+
+	/**
+	 * Escucha en una direccion y arranca el hilo del selector.
+	 * @param banco banco a ofrecer
+	 * @param direccion direccion donde escuchar (puerto 0 para uno libre)
+	 * @throws IOException si no se puede escuchar en la direccion
+	 */
+	public ServidorBanco(Banco banco, InetSocketAddress direccion) throws IOException {
+		this.banco = banco;
+		this.asincrono = banco instanceof BancoAsincrono ? (BancoAsincrono) banco : null;
+		this.selector = Selector.open();
+		this.servidor = ServerSocketChannel.open();
+		servidor.bind(direccion);
+		servidor.configureBlocking(false);
+		servidor.register(selector, SelectionKey.OP_ACCEPT);
+		this.hiloselector = new Thread(this::servir, "ServidorBanco " + servidor.getLocalAddress());
+		hiloselector.setDaemon(true);
+		hiloselector.start();
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 1) {
+			System.err.println("Uso: java cc.banco.ServidorBanco puerto [motor]");
+			System.exit(2);
+		}
+		Banco banco = Motores.crear(args.length > 1 ? args[1] : "BancoMonitor");
+		ServidorBanco servidor = new ServidorBanco(banco, new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[0])));
+		System.out.println("LISTO");
+		System.out.flush();
+		servidor.hiloselector.join();
+	}
+
+	/**
+	 * @return direccion donde escucha el servidor
+	 */
+	public InetSocketAddress direccion() {
+		try {
+			return (InetSocketAddress) servidor.getLocalAddress();
+		} catch (IOException exc) {
+			throw new IllegalStateException(exc);
+		}
+	}
+
+	/**
+	 * Deja de aceptar peticiones y cierra todas las conexiones. Las
+	 * operaciones en curso en el banco no se retiran.
+	 */
+	public void close() throws IOException {
+		servidor.close();
+		// Cerrar el selector solo quita los canales de el, se cierran antes uno a uno
+		for (SelectionKey clave : selector.keys()) {
+			try {
+				clave.channel().close();
+			} catch (IOException exc) {
+				// Ya estaba cerrado
+			}
+		}
+		selector.close();
+		hilos.shutdown();
+	}
+
+	// Metodo auxiliar que crea el ejecutor de las operaciones que pueden bloquear: un hilo virtual
+	// por operacion si la JVM los tiene; si no, un hilo de plataforma por operacion (el limite
+	// lo pone atender)
+	private static ExecutorService ejecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException exc) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread hilo = new Thread(r);
+				hilo.setDaemon(true);
+				return hilo;
+			});
+		}
+	}
+
+	// Metodo auxiliar del hilo del selector: acepta conexiones, lee peticiones y escribe respuestas
+	private void servir() {
+		try {
+			while (true) {
+				selector.select();
+				Iterator<SelectionKey> listas = selector.selectedKeys().iterator();
+				while (listas.hasNext()) {
+					SelectionKey clave = listas.next();
+					listas.remove();
+					try {
+						if (clave.isAcceptable()) {
+							aceptar();
+						} else {
+							if (clave.isReadable()) {
+								leer((cliente) clave.attachment());
+							}
+							if (clave.isValid() && clave.isWritable()) {
+								escribir((cliente) clave.attachment());
+							}
+						}
+					} catch (IOException | RuntimeException exc) {
+						// Conexion perdida o peticion mal formada: las operaciones ya empezadas terminan
+						// igualmente y el resto de conexiones sigue atendida
+						clave.cancel();
+						clave.channel().close();
+					}
+				}
+				// Respuestas de este hilo y de los demas
+				cliente conexion;
+				while ((conexion = conrespuestas.poll()) != null) {
+					try {
+						escribir(conexion);
+					} catch (IOException | RuntimeException exc) {
+						conexion.clave.cancel();
+						conexion.canal.close();
+					}
+				}
+			}
+		} catch (ClosedSelectorException exc) {
+			// Se ha cerrado el servidor
+		} catch (IOException exc) {
+			System.err.println("ServidorBanco: " + exc);
+		}
+	}
+
+	// Metodo auxiliar que acepta una conexion nueva
+	private void aceptar() throws IOException {
+		SocketChannel canal = servidor.accept();
+		if (canal == null) {
+			return;
+		}
+		canal.configureBlocking(false);
+		canal.socket().setTcpNoDelay(true);
+		cliente conexion = new cliente(canal);
+		conexion.clave = canal.register(selector, SelectionKey.OP_READ, conexion);
+	}
+
+	// Metodo auxiliar que lee lo que haya llegado y atiende todas las peticiones completas
+	private void leer(cliente conexion) throws IOException {
+		if (conexion.canal.read(conexion.entrada) < 0) {
+			throw new IOException("Conexion cerrada");
+		}
+		ByteBuffer entrada = conexion.entrada;
+		entrada.flip();
+		while (entrada.remaining() >= 4) {
+			int longitud = entrada.getInt(entrada.position());
+			// La longitud la manda el cliente: una imposible cierra solo su conexion
+			if (longitud < MINIMA || longitud > MAXIMA) {
+				throw new IOException("Longitud de peticion invalida: " + longitud);
+			}
+			if (entrada.remaining() < 4 + longitud) {
+				break;
+			}
+			entrada.getInt();
+			DataInputStream peticion = new DataInputStream(new ByteArrayInputStream(entrada.array(), entrada.arrayOffset() + entrada.position(), longitud));
+			entrada.position(entrada.position() + longitud);
+			atender(conexion, peticion.readLong(), peticion.readByte(), peticion.readUTF(), peticion.readUTF(), peticion.readInt());
+		}
+		if (entrada.remaining() >= 4 && 4 + entrada.getInt(entrada.position()) > entrada.capacity()) {
+			// Peticion mayor que el buffer (cuentas con nombres largos): se agranda
+			ByteBuffer mayor = ByteBuffer.allocate(4 + entrada.getInt(entrada.position()));
+			mayor.put(entrada);
+			conexion.entrada = mayor;
+		} else {
+			entrada.compact();
+		}
+	}
+
+	// Metodo auxiliar que realiza una peticion, en este hilo o fuera, y prepara su respuesta
+	private void atender(cliente conexion, long id, byte operacion, String a, String b, int v) {
+		if (asincrono != null) {
+			CompletableFuture<?> futuro;
+			switch (operacion) {
+			case Conexion.INGRESAR:
+				futuro = asincrono.ingresarAsync(a, v);
+				break;
+			case Conexion.DISPONIBLE:
+				futuro = asincrono.disponibleAsync(a);
+				break;
+			case Conexion.TRANSFERIR:
+				futuro = asincrono.transferirAsync(a, b, v);
+				break;
+			case Conexion.ALERTAR:
+				futuro = asincrono.alertarAsync(a, v);
+				break;
+			default:
+				conexion.responder(id, Conexion.INVALIDA, 0);
+				return;
+			}
+			futuro.whenComplete((r, exc) -> {
+				Throwable causa = exc instanceof CompletionException ? exc.getCause() : exc;
+				conexion.responder(id, estado(operacion, causa), r instanceof Integer ? (Integer) r : 0);
+			});
+			return;
+		}
+		switch (operacion) {
+		case Conexion.INGRESAR:
+		case Conexion.DISPONIBLE:
+			ejecutar(conexion, id, operacion, a, b, v);
+			break;
+		default:
+			// Pasado el limite se rechaza en vez de encolarla detras de otras que pueden depender de ella
+			if (enhilos.incrementAndGet() > limite) {
+				enhilos.decrementAndGet();
+				conexion.responder(id, Conexion.FALLO, 0);
+				return;
+			}
+			hilos.execute(() -> {
+				try {
+					ejecutar(conexion, id, operacion, a, b, v);
+				} finally {
+					enhilos.decrementAndGet();
+				}
+			});
+		}
+	}
+
+	// Metodo auxiliar que realiza una operacion del banco y prepara su respuesta
+	private void ejecutar(cliente conexion, long id, byte operacion, String a, String b, int v) {
+		int valor = 0;
+		try {
+			switch (operacion) {
+			case Conexion.INGRESAR:
+				banco.ingresar(a, v);
+				break;
+			case Conexion.DISPONIBLE:
+				valor = banco.disponible(a);
+				break;
+			case Conexion.TRANSFERIR:
+				banco.transferir(a, b, v);
+				break;
+			case Conexion.ALERTAR:
+				banco.alertar(a, v);
+				break;
+			default:
+				conexion.responder(id, Conexion.INVALIDA, 0);
+				return;
+			}
+		} catch (RuntimeException exc) {
+			conexion.responder(id, estado(operacion, exc), 0);
+			return;
+		}
+		conexion.responder(id, Conexion.HECHO, valor);
+	}
+
+	// Metodo auxiliar que traduce el resultado de una operacion a su estado de respuesta
+	private static byte estado(byte operacion, Throwable exc) {
+		if (exc == null) {
+			return Conexion.HECHO;
+		}
+		if (exc instanceof IllegalArgumentException) {
+			return operacion == Conexion.TRANSFERIR ? Conexion.INVALIDA : Conexion.NO_EXISTE;
+		}
+		return Conexion.FALLO;
+	}
+
+	// Metodo auxiliar del hilo del selector que escribe las respuestas pendientes de una conexion
+	// mientras el socket las admita; si no caben todas espera a que se pueda escribir
+	private void escribir(cliente conexion) throws IOException {
+		conexion.avisada.set(false);
+		if (!conexion.clave.isValid()) {
+			return;
+		}
+		ByteBuffer respuesta;
+		while ((respuesta = conexion.respuestas.poll()) != null) {
+			conexion.escribiendo.add(respuesta);
+		}
+		while (!conexion.escribiendo.isEmpty()) {
+			ByteBuffer[] bloque = conexion.escribiendo.toArray(new ByteBuffer[0]);
+			conexion.canal.write(bloque);
+			while (!conexion.escribiendo.isEmpty() && !conexion.escribiendo.peek().hasRemaining()) {
+				conexion.escribiendo.poll();
+			}
+			if (bloque[bloque.length - 1].hasRemaining()) {
+				break;
+			}
+		}
+		int interes = conexion.escribiendo.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+		if (conexion.clave.interestOps() != interes) {
+			conexion.clave.interestOps(interes);
+		}
+	}
+
+	// Estado de una conexion con un cliente
+	private final class cliente {
+		private final SocketChannel canal;
+		private SelectionKey clave;
+		// Bytes leidos que aun no forman una peticion completa (solo hilo del selector)
+		private ByteBuffer entrada = ByteBuffer.allocate(ENTRADA);
+		// Respuestas listas, de cualquier hilo
+		private final ConcurrentLinkedQueue<ByteBuffer> respuestas = new ConcurrentLinkedQueue<ByteBuffer>();
+		// Respuestas a medio escribir (solo hilo del selector)
+		private final ArrayDeque<ByteBuffer> escribiendo = new ArrayDeque<ByteBuffer>();
+		// Si la conexion ya esta en conrespuestas
+		private final AtomicBoolean avisada = new AtomicBoolean();
+
+		private cliente(SocketChannel canal) {
+			this.canal = canal;
+		}
+
+		// Deja una respuesta lista y avisa al hilo del selector para que la escriba; desde el
+		// propio hilo del selector no hace falta despertarlo, las escribe al acabar la vuelta
+		private void responder(long id, byte estado, int valor) {
+			ByteBuffer respuesta = ByteBuffer.allocate(RESPUESTA);
+			respuesta.putLong(id).put(estado).putInt(valor).flip();
+			respuestas.add(respuesta);
+			if (avisada.compareAndSet(false, true)) {
+				conrespuestas.add(this);
+				if (Thread.currentThread() != hiloselector) {
+					selector.wakeup();
+				}
+			}
+		}
+	}
+}
@@ -1,6 +1,15 @@
 package cc.banco;
 
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import es.upm.babel.cclib.ConcIO;
 import es.upm.babel.cclib.Semaphore;
 
@@ -9,24 +18,258 @@ public class Simulador {
 
   static final int MAX_CUENTAS = 5;
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws InterruptedException {
+    // "carga" lanza el generador de carga en lugar de la simulacion
+    if (args.length > 0 && args[0].equals("carga")) {
+      Carga.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    // "reproducir" reproduce una traza grabada contra un motor (ver Reproductor)
+    if (args.length > 0 && args[0].equals("reproducir")) {
+      Reproductor.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    // "comprobar motor" prueba los casos en los que una operacion desbloquea varias
+    // peticiones a la vez (ver comprobar)
+    if (args.length > 0 && args[0].equals("comprobar")) {
+      if (!comprobar(args.length > 1 ? args[1] : "BancoMonitor"))
+        System.exit(1);
+      return;
+    }
+    // "grabar fichero" anota en una traza todas las operaciones de la simulacion,
+    // hasta que se termine el proceso
+    boolean grabar = args.length > 1 && args[0].equals("grabar");
+    // "virtual" arranca los actores como hilos virtuales y usa BancoCondiciones;
+    // "virtual n" muestra n alertas bloqueadas a la vez
+    boolean virtuales = args.length > 0 && args[0].equals("virtual");
+    if (virtuales && args.length > 1) {
+      alertasBloqueadas(Integer.parseInt(args[1]));
+      return;
+    }
+
     Banco banco;
     String[] cuentas = cuentas();
 
     // Por defecto el simulador usa la implementacion programado con monitores
     // Para comprobar la implementacion usando CSP cambia las dos lineas abajo.
+    // La implementacion con cerrojos por franjas de cuentas es BancoCerrojos.
     banco = new BancoMonitor();
     // banco = new BancoCSP();
+    // banco = new BancoCerrojos();
+    // banco = new BancoCSPParticionado(4);
+    // banco = new BancoCondiciones();
+    // banco = new BancoFuturos();
+    // banco = new BancoOptimista();
+    // banco = new BancoActores();
+    // banco = new BancoAnillo();
+    if (virtuales)
+      banco = new BancoCondiciones();
+    if (grabar)
+      banco = grabador(banco, Paths.get(args[1]));
 
     // Crea procesos
-    new Cajero(banco).start();
-    new Ordenante(banco).start();
-    new Ordenante(banco).start();
-    new Ordenante(banco).start();
+    List<Thread> actores = new ArrayList<Thread>();
+    actores.add(arrancar(new Cajero(banco), virtuales));
+    actores.add(arrancar(new Ordenante(banco), virtuales));
+    actores.add(arrancar(new Ordenante(banco), virtuales));
+    actores.add(arrancar(new Ordenante(banco), virtuales));
     for (int i=0; i<MAX_CUENTAS; i++)
-      new Consultor(banco,cuentas[i]).start();
+      actores.add(arrancar(new Consultor(banco,cuentas[i]), virtuales));
     for (int i=0; i<MAX_CUENTAS; i++)
-      new Avisador(banco,cuentas[i]).start();
+      actores.add(arrancar(new Avisador(banco,cuentas[i]), virtuales));
+    // Los hilos virtuales no mantienen viva la JVM
+    for (Thread actor : actores)
+      actor.join();
+  }
+
+  // Thread.ofVirtual() y Thread.Builder.start(Runnable), o null si la JVM
+  // no tiene hilos virtuales (anterior a Java 21)
+  private static final Method OF_VIRTUAL;
+  private static final Method START;
+  static {
+    Method ofVirtual = null, start = null;
+    try {
+      ofVirtual = Thread.class.getMethod("ofVirtual");
+      start = Class.forName("java.lang.Thread$Builder").getMethod("start", Runnable.class);
+    } catch (ReflectiveOperationException e) {
+      ofVirtual = null;
+    }
+    OF_VIRTUAL = ofVirtual;
+    START = start;
+  }
+
+  /**
+   * Arranca un actor en un hilo virtual si se pide y la JVM los tiene;
+   * si no, en un hilo de plataforma. Devuelve el hilo arrancado.
+   */
+  static Thread arrancar(Runnable actor, boolean virtual) {
+    if (virtual && OF_VIRTUAL != null) {
+      try {
+        return (Thread) START.invoke(OF_VIRTUAL.invoke(null), actor);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    Thread hilo = new Thread(actor);
+    hilo.start();
+    return hilo;
+  }
+
+  /**
+   * Envuelve un banco en un GrabadorTraza que se cierra al terminar el
+   * proceso (por ejemplo con Ctrl-C).
+   */
+  static Banco grabador(Banco banco, Path traza) {
+    GrabadorTraza grabador = new GrabadorTraza(banco, traza);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          grabador.close();
+        } catch (IOException e) {
+          System.err.println("No se ha podido cerrar la traza: " + e);
+        }
+      }));
+    return grabador;
+  }
+
+  /**
+   * Bloquea n alertas a la vez sobre BancoCondiciones, cada una en su
+   * hilo virtual, imprime la memoria usada y las libera todas vaciando
+   * las cuentas.
+   */
+  static void alertasBloqueadas(int n) throws InterruptedException {
+    if (OF_VIRTUAL == null)
+      System.out.println("Esta JVM no tiene hilos virtuales: se usan hilos de plataforma");
+    Banco banco = new BancoCondiciones();
+    String[] cuentas = cuentas(MAX_CUENTAS + 1);
+    // La ultima cuenta recibe el dinero al vaciar las demas
+    String sumidero = cuentas[MAX_CUENTAS];
+    banco.ingresar(sumidero, 0);
+    for (int i = 0; i < MAX_CUENTAS; i++)
+      banco.ingresar(cuentas[i], 1000);
+
+    AtomicInteger lanzadas = new AtomicInteger();
+    CountDownLatch avisadas = new CountDownLatch(n);
+    long inicio = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      String c = cuentas[i % MAX_CUENTAS];
+      int m = 1 + i % 1000;
+      arrancar(() -> {
+          lanzadas.incrementAndGet();
+          banco.alertar(c, m);
+          avisadas.countDown();
+        }, true);
+    }
+    while (lanzadas.get() < n)
+      Thread.sleep(10);
+    // Margen para que las ultimas lleguen a bloquearse
+    Thread.sleep(500);
+    System.gc();
+    Runtime rt = Runtime.getRuntime();
+    System.out.printf("%d alertas bloqueadas en %d ms, memoria usada: %d MB%n",
+                      avisadas.getCount(), (System.nanoTime() - inicio) / 1_000_000,
+                      (rt.totalMemory() - rt.freeMemory()) >> 20);
+
+    inicio = System.nanoTime();
+    for (int i = 0; i < MAX_CUENTAS; i++)
+      banco.transferir(cuentas[i], sumidero, 1000);
+    avisadas.await();
+    System.out.printf("%d alertas avisadas en %d ms%n",
+                      n, (System.nanoTime() - inicio) / 1_000_000);
+  }
+
+  /**
+   * Prueba un motor en los casos en los que una sola operacion libera
+   * varias peticiones bloqueadas a la vez. Cada caso se da por fallido
+   * si no termina en unos segundos (por ejemplo porque el motor se ha
+   * quedado con el monitor tras un error).
+   * @return true si todos los casos terminan con los saldos esperados
+   */
+  static boolean comprobar(String motor) throws InterruptedException {
+    boolean bien = true;
+    // Cuatro transferencias de origenes distintos esperan a que exista el destino
+    bien &= caso(motor, "cuatro transferencias esperan al mismo destino", banco -> {
+        String[] origenes = cuentas(4);
+        for (String o : origenes)
+          banco.ingresar(o, 10);
+        esperar(4, i -> banco.transferir(origenes[i], "D", 1),
+                () -> banco.ingresar("D", 1));
+        return banco.disponible("D") == 5;
+      });
+    // Cuatro transferencias sin saldo se liberan con un solo lote de ingresos
+    bien &= caso(motor, "cuatro transferencias liberadas por un lote", banco -> {
+        String[] origenes = cuentas(4);
+        for (String o : origenes)
+          banco.ingresar(o, 0);
+        banco.ingresar("D", 0);
+        esperar(4, i -> banco.transferir(origenes[i], "D", 1), () -> {
+            if (banco instanceof BancoLotes)
+              ((BancoLotes) banco).ingresarLote(origenes, new int[] { 1, 1, 1, 1 });
+            else
+              for (String o : origenes)
+                banco.ingresar(o, 1);
+          });
+        return banco.disponible("D") == 4;
+      });
+    // Cuatro alertas de la misma cuenta se cumplen con una sola transferencia
+    bien &= caso(motor, "cuatro alertas liberadas por una transferencia", banco -> {
+        banco.ingresar("A", 100);
+        banco.ingresar("B", 0);
+        esperar(4, i -> banco.alertar("A", 50 + 5 * i),
+                () -> banco.transferir("A", "B", 60));
+        return banco.disponible("A") == 40;
+      });
+    return bien;
+  }
+
+  // Caso de comprobar: devuelve si el banco da el resultado esperado
+  interface Caso {
+    boolean probar(Banco banco) throws InterruptedException;
+  }
+
+  // Operacion i-esima de las que se quedan bloqueadas en un caso
+  interface Bloqueada {
+    void hacer(int i);
+  }
+
+  // Ejecuta un caso sobre un banco nuevo en un hilo aparte, con limite de tiempo
+  private static boolean caso(String motor, String nombre, Caso caso) throws InterruptedException {
+    Banco banco = Motores.crear(motor);
+    boolean[] bien = new boolean[1];
+    Thread hilo = new Thread(() -> {
+        try {
+          bien[0] = caso.probar(banco);
+        } catch (Throwable e) {
+          System.out.println("  " + e);
+        }
+      });
+    hilo.setDaemon(true);
+    hilo.start();
+    hilo.join(5000);
+    boolean ok = !hilo.isAlive() && bien[0];
+    System.out.printf("%s: %s (%s)%n", ok ? "ok" : "FALLO", nombre, motor);
+    return ok;
+  }
+
+  /**
+   * Lanza n operaciones que se bloquean, cada una en su hilo, deja que
+   * lleguen a esperar, ejecuta la que debe liberarlas y espera a que
+   * terminen todas.
+   */
+  private static void esperar(int n, Bloqueada bloqueada, Runnable liberar) throws InterruptedException {
+    CountDownLatch hechas = new CountDownLatch(n);
+    for (int i = 0; i < n; i++) {
+      final int j = i;
+      Thread t = new Thread(() -> {
+          bloqueada.hacer(j);
+          hechas.countDown();
+        });
+      t.setDaemon(true);
+      t.start();
+    }
+    // Margen para que todas lleguen a bloquearse
+    Thread.sleep(200);
+    liberar.run();
+    hechas.await();
   }
 
   /**
@@ -34,8 +277,16 @@ public class Simulador {
    */
   public static String[] cuentas()
   {
-    String cs[] = new String[Simulador.MAX_CUENTAS];
-    for (int i = 0; i < Simulador.MAX_CUENTAS; i++)
+    return cuentas(Simulador.MAX_CUENTAS);
+  }
+
+  /**
+   * Devuele un array con los n primeros números de cuenta.
+   */
+  public static String[] cuentas(int n)
+  {
+    String cs[] = new String[n];
+    for (int i = 0; i < n; i++)
       cs[i] = String.format("%03d", i);
     return cs;
   }
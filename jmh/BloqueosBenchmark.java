@@ -0,0 +1,110 @@
+package cc.banco.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.Banco;
+import cc.banco.BancoLotes;
+import cc.banco.Motores;
+
+/**
+ * Escenario con muchas transferencias bloqueadas y muchas alertas en
+ * espera que nunca se cumplen, midiendo ingresar y transferir sobre las
+ * cuentas activas. Cada operacion obliga al motor a revisar sus
+ * peticiones pendientes (desbloqueartransferencia / desbloquearalertar),
+ * asi que el coste de esa revision domina el resultado.
+ *
+ * Las transferencias bloqueadas salen de cuentas sin saldo hacia las
+ * cuentas activas; si el motor implementa BancoLotes se encolan con
+ * transferirLote, si no cada una ocupa un hilo. Las alertas (un hilo
+ * cada una) se ponen sobre las cuentas activas con minimo 1, que nunca
+ * se alcanza.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BloqueosBenchmark {
+
+  @Param({ "BancoMonitor", "BancoCSP", "BancoCSPParticionado", "BancoCerrojos", "BancoOptimista", "BancoActores", "BancoAnillo" })
+  public String motor;
+
+  @Param({ "1000" })
+  public int numCuentas;
+
+  @Param({ "0", "1000", "10000" })
+  public int bloqueadas;
+
+  @Param({ "0", "1000", "10000" })
+  public int alertas;
+
+  Banco banco;
+  String[] activas;
+
+  @Setup(Level.Trial)
+  public void crear() throws InterruptedException {
+    banco = Motores.crear(motor);
+    activas = Motores.cuentas(numCuentas);
+    for (String c : activas)
+      banco.ingresar(c, OperacionesBenchmark.SALDO_INICIAL);
+    // Cuentas sin saldo de las que salen las transferencias bloqueadas
+    String[] vacias = new String[bloqueadas];
+    String[] destinos = new String[bloqueadas];
+    int[] valores = new int[bloqueadas];
+    for (int i = 0; i < bloqueadas; i++) {
+      vacias[i] = "v" + i;
+      destinos[i] = activas[i % activas.length];
+      valores[i] = 1;
+      banco.ingresar(vacias[i], 0);
+    }
+    if (banco instanceof BancoLotes) {
+      ((BancoLotes) banco).transferirLote(vacias, destinos, valores);
+    } else {
+      for (int i = 0; i < bloqueadas; i++) {
+        final int j = i;
+        esperar(() -> banco.transferir(vacias[j], destinos[j], 1));
+      }
+    }
+    for (int i = 0; i < alertas; i++) {
+      final String c = activas[i % activas.length];
+      esperar(() -> banco.alertar(c, 1));
+    }
+    // Se deja tiempo a que todos los hilos lleguen a bloquearse
+    Thread.sleep(1000);
+  }
+
+  // Lanza una operacion que se queda bloqueada en un hilo demonio
+  private static void esperar(Runnable operacion) {
+    Thread t = new Thread(operacion);
+    t.setDaemon(true);
+    t.start();
+  }
+
+  @Benchmark
+  public void ingresar() {
+    banco.ingresar(activas[ThreadLocalRandom.current().nextInt(activas.length)], 1);
+  }
+
+  @Benchmark
+  public void transferir() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    int o = r.nextInt(activas.length);
+    int d = (o + 1 + r.nextInt(activas.length - 1)) % activas.length;
+    banco.transferir(activas[o], activas[d], 1);
+  }
+}
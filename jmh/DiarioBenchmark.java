@@ -0,0 +1,87 @@
+package cc.banco.jmh;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.BancoMonitor;
+import cc.banco.Diario;
+import cc.banco.Motores;
+
+/**
+ * Operaciones/s de ingresar y transferir en un BancoMonitor duradero
+ * con cada politica de sincronizacion del diario. Con varios hilos (-t)
+ * se ve el efecto de agrupar las sincronizaciones (POR_LOTE) frente a
+ * una por operacion (POR_OPERACION); SIN_DIARIO da la referencia del
+ * banco en memoria.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiarioBenchmark {
+
+  static final int SALDO_INICIAL = 1_000_000_000;
+
+  @Param({ "SIN_DIARIO", "NINGUNA", "POR_LOTE", "POR_OPERACION" })
+  public String sincronizacion;
+
+  @Param({ "1000" })
+  public int numCuentas;
+
+  Path fichero;
+  Diario diario;
+  BancoMonitor banco;
+  String[] cuentas;
+
+  @Setup(Level.Trial)
+  public void crear() throws IOException {
+    if (!sincronizacion.equals("SIN_DIARIO")) {
+      fichero = Files.createTempFile("diario", ".bin");
+      diario = new Diario(fichero, Diario.Sincronizacion.valueOf(sincronizacion));
+    }
+    banco = new BancoMonitor(diario);
+    cuentas = Motores.cuentas(numCuentas);
+    for (String c : cuentas)
+      banco.ingresar(c, SALDO_INICIAL);
+  }
+
+  @TearDown(Level.Trial)
+  public void cerrar() throws IOException {
+    if (diario != null) {
+      diario.close();
+      Files.delete(fichero);
+    }
+  }
+
+  @Benchmark
+  public void ingresar() {
+    banco.ingresar(cuentas[ThreadLocalRandom.current().nextInt(cuentas.length)], 1);
+  }
+
+  @Benchmark
+  public void transferir() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    int o = r.nextInt(cuentas.length);
+    int d = (o + 1 + r.nextInt(cuentas.length - 1)) % cuentas.length;
+    banco.transferir(cuentas[o], cuentas[d], 1);
+  }
+}
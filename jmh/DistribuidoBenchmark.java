@@ -0,0 +1,88 @@
+package cc.banco.jmh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.BancoDistribuido;
+import cc.banco.Motores;
+
+/**
+ * Operaciones/s agregadas de transferir en un BancoDistribuido con 1, 2,
+ * 4... procesos nodo en esta maquina. El parametro locales es la
+ * fraccion de transferencias con origen y destino en el mismo nodo; el
+ * resto pasan por las dos fases entre nodos. Conviene lanzar con muchos
+ * hilos (-t 32) para que haya peticiones en curso en todos los nodos, y
+ * en una maquina con al menos tantos procesadores como nodos.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistribuidoBenchmark {
+
+  @Param({ "1", "2", "4" })
+  public int nodos;
+
+  @Param({ "BancoMonitor" })
+  public String motor;
+
+  @Param({ "1.0", "0.9" })
+  public double locales;
+
+  @Param({ "1000" })
+  public int numCuentas;
+
+  BancoDistribuido banco;
+  String[] cuentas;
+  // Cuentas de cada nodo, para elegir destinos locales
+  String[][] pornodo;
+
+  @Setup(Level.Trial)
+  public void crear() {
+    banco = BancoDistribuido.local(nodos, motor);
+    cuentas = Motores.cuentas(numCuentas);
+    List<List<String>> listas = new ArrayList<List<String>>();
+    for (int i = 0; i < nodos; i++)
+      listas.add(new ArrayList<String>());
+    for (String c : cuentas) {
+      banco.ingresar(c, OperacionesBenchmark.SALDO_INICIAL);
+      listas.get(BancoDistribuido.nodo(c, nodos)).add(c);
+    }
+    pornodo = new String[nodos][];
+    for (int i = 0; i < nodos; i++)
+      pornodo[i] = listas.get(i).toArray(new String[0]);
+  }
+
+  @TearDown(Level.Trial)
+  public void cerrar() {
+    banco.close();
+  }
+
+  @Benchmark
+  public void transferir() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    String o = cuentas[r.nextInt(cuentas.length)];
+    String[] destinos = r.nextDouble() < locales ? pornodo[BancoDistribuido.nodo(o, nodos)] : cuentas;
+    String d = destinos[r.nextInt(destinos.length)];
+    if (!o.equals(d))
+      banco.transferir(o, d, 1);
+  }
+}
@@ -0,0 +1,88 @@
+package cc.banco.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.BancoLiquidacion;
+import cc.banco.Motores;
+
+/**
+ * Liquidaciones/s: una cuenta paga a patas-1 cuentas, con una sola
+ * llamada a liquidar o con patas-1 transferencias seguidas. Las cuentas
+ * de cada liquidacion se eligen al azar entre numCuentas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LiquidacionBenchmark {
+  @Param({ "BancoCerrojos", "BancoCSP" })
+  public String motor;
+
+  @Param({ "1000" })
+  public int numCuentas;
+
+  @Param({ "2", "10", "100" })
+  public int patas;
+
+  BancoLiquidacion banco;
+  String[] cuentas;
+
+  @Setup(Level.Trial)
+  public void crear() {
+    banco = (BancoLiquidacion) Motores.crear(motor);
+    cuentas = Motores.cuentas(numCuentas);
+    for (String c : cuentas)
+      banco.ingresar(c, Integer.MAX_VALUE / 2);
+  }
+
+  @State(Scope.Thread)
+  public static class Hilo {
+    String[] c;
+    int[] v;
+
+    @Setup(Level.Trial)
+    public void crear(LiquidacionBenchmark b) {
+      c = new String[b.patas];
+      v = new int[b.patas];
+    }
+
+    // Elige las cuentas: un tramo al azar de la lista, asi son distintas
+    void elegir(String[] cuentas) {
+      int inicio = ThreadLocalRandom.current().nextInt(cuentas.length - c.length + 1);
+      for (int i = 0; i < c.length; i++) {
+        c[i] = cuentas[inicio + i];
+        v[i] = 1;
+      }
+      v[0] = -(c.length - 1);
+    }
+  }
+
+  @Benchmark
+  public void liquidar(Hilo h) {
+    h.elegir(cuentas);
+    banco.liquidar(h.c, h.v);
+  }
+
+  @Benchmark
+  public void transferir(Hilo h) {
+    h.elegir(cuentas);
+    for (int i = 1; i < h.c.length; i++)
+      banco.transferir(h.c[0], h.c[i], h.v[i]);
+  }
+}
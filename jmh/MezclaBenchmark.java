@@ -0,0 +1,66 @@
+package cc.banco.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.Banco;
+import cc.banco.Motores;
+
+/**
+ * Mezclas de lecturas (disponible) y escrituras (transferir) con el
+ * porcentaje de lecturas indicado en el parametro lecturas.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MezclaBenchmark {
+
+  @Param({ "BancoMonitor", "BancoMonitorLectura", "BancoCSP", "BancoCSPReutilizar",
+           "BancoCSPBuffer", "BancoCSPParticionado", "BancoCerrojos", "BancoOptimista", "BancoActores", "BancoAnillo" })
+  public String motor;
+
+  @Param({ "5", "1000", "1000000" })
+  public int numCuentas;
+
+  // Porcentaje de operaciones disponible (el resto son transferir)
+  @Param({ "50", "90", "99" })
+  public int lecturas;
+
+  Banco banco;
+  String[] cuentas;
+
+  @Setup(Level.Trial)
+  public void crear() {
+    banco = Motores.crear(motor);
+    cuentas = Motores.cuentas(numCuentas);
+    for (String c : cuentas)
+      banco.ingresar(c, OperacionesBenchmark.SALDO_INICIAL);
+  }
+
+  @Benchmark
+  public int mezcla() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    if (r.nextInt(100) < lecturas)
+      return banco.disponible(cuentas[r.nextInt(cuentas.length)]);
+    int o = r.nextInt(cuentas.length);
+    int d = (o + 1 + r.nextInt(cuentas.length - 1)) % cuentas.length;
+    banco.transferir(cuentas[o], cuentas[d], 1);
+    return 0;
+  }
+}
@@ -0,0 +1,81 @@
+package cc.banco.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.Banco;
+import cc.banco.Motores;
+
+/**
+ * Rendimiento (operaciones/s) y latencia (muestreo de tiempos) de
+ * ingresar, disponible y transferir sobre cuentas ya creadas con saldo
+ * suficiente, de forma que ninguna transferencia bloquea. El número de
+ * hilos se elige al lanzar con -t (1, 2, 4... hasta el número de
+ * procesadores). Las mezclas de lectura/escritura estan en
+ * MezclaBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OperacionesBenchmark {
+
+  // Saldo inicial: suficientemente alto para que ninguna transferencia de 1 bloquee
+  static final int SALDO_INICIAL = 1_000_000_000;
+
+  @Param({ "BancoMonitor", "BancoMonitorLectura", "BancoCSP", "BancoCSPReutilizar",
+           "BancoCSPBuffer", "BancoCSPParticionado", "BancoCerrojos", "BancoOptimista", "BancoActores", "BancoAnillo" })
+  public String motor;
+
+  @Param({ "5", "1000", "1000000" })
+  public int numCuentas;
+
+  Banco banco;
+  String[] cuentas;
+
+  @Setup(Level.Trial)
+  public void crear() {
+    banco = Motores.crear(motor);
+    cuentas = Motores.cuentas(numCuentas);
+    for (String c : cuentas)
+      banco.ingresar(c, SALDO_INICIAL);
+  }
+
+  private String cuenta(ThreadLocalRandom r) {
+    return cuentas[r.nextInt(cuentas.length)];
+  }
+
+  @Benchmark
+  public void ingresar() {
+    banco.ingresar(cuenta(ThreadLocalRandom.current()), 1);
+  }
+
+  @Benchmark
+  public int disponible() {
+    return banco.disponible(cuenta(ThreadLocalRandom.current()));
+  }
+
+  @Benchmark
+  public void transferir() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    int o = r.nextInt(cuentas.length);
+    // Destino distinto del origen (con una sola cuenta no hay transferencia posible)
+    int d = (o + 1 + r.nextInt(cuentas.length - 1)) % cuentas.length;
+    banco.transferir(cuentas[o], cuentas[d], 1);
+  }
+}
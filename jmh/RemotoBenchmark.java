@@ -0,0 +1,106 @@
+package cc.banco.jmh;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cc.banco.ClienteBanco;
+import cc.banco.Motores;
+import cc.banco.ServidorBanco;
+
+/**
+ * Peticiones/s por una sola conexion con un ServidorBanco en la interfaz
+ * local. Todos los hilos (-t) comparten el mismo ClienteBanco; las
+ * variantes ...EnTandas envian TANDA peticiones sin esperar y despues
+ * esperan todas las respuestas (pipelining desde un solo hilo).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RemotoBenchmark {
+  static final int TANDA = 64;
+
+  @Param({ "BancoMonitor", "BancoCerrojos", "BancoFuturos" })
+  public String motor;
+
+  @Param({ "1000" })
+  public int numCuentas;
+
+  ServidorBanco servidor;
+  ClienteBanco banco;
+  String[] cuentas;
+
+  @Setup(Level.Trial)
+  public void crear() throws IOException {
+    servidor = new ServidorBanco(Motores.crear(motor), new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    banco = new ClienteBanco(servidor.direccion());
+    cuentas = Motores.cuentas(numCuentas);
+    for (String c : cuentas)
+      banco.ingresar(c, OperacionesBenchmark.SALDO_INICIAL);
+  }
+
+  @TearDown(Level.Trial)
+  public void cerrar() throws IOException {
+    banco.close();
+    servidor.close();
+  }
+
+  @Benchmark
+  public int disponible() {
+    return banco.disponible(cuentas[ThreadLocalRandom.current().nextInt(cuentas.length)]);
+  }
+
+  @Benchmark
+  public void transferir() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    String o = cuentas[r.nextInt(cuentas.length)];
+    String d = cuentas[r.nextInt(cuentas.length)];
+    if (!o.equals(d))
+      banco.transferir(o, d, 1);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TANDA)
+  public void disponibleEnTandas() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    CompletableFuture<?>[] tanda = new CompletableFuture<?>[TANDA];
+    for (int i = 0; i < TANDA; i++)
+      tanda[i] = banco.disponibleAsync(cuentas[r.nextInt(cuentas.length)]);
+    CompletableFuture.allOf(tanda).join();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(TANDA)
+  public void transferirEnTandas() {
+    ThreadLocalRandom r = ThreadLocalRandom.current();
+    CompletableFuture<?>[] tanda = new CompletableFuture<?>[TANDA];
+    for (int i = 0; i < TANDA; i++) {
+      String o = cuentas[r.nextInt(cuentas.length)];
+      String d = cuentas[r.nextInt(cuentas.length)];
+      // Mismo origen y destino: cuenta como una peticion mas, que falla enseguida
+      tanda[i] = banco.transferirAsync(o, d, 1).exceptionally(exc -> null);
+    }
+    CompletableFuture.allOf(tanda).join();
+  }
+}